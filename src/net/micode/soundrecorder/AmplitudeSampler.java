@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Samples the amplitude of the recorder at a fixed rate on its own thread and
+ * keeps the latest samples in a ring of primitive arrays. Reading the
+ * amplitude of MediaRecorder resets its peak, so this is its only reader.
+ * Everybody else reads the ring through a Reader of their own, without locks
+ * and without disturbing each other. A PCM capture path adds its samples
+ * directly instead.
+ */
+public class AmplitudeSampler {
+    private static final String TAG = "AmplitudeSampler";
+
+    public static final int CLIP_LEVEL = 32767;
+
+    private final int mPeriod;
+
+    private final int mCapacity;
+
+    private final int mMask;
+
+    private final int[] mPeaks;
+
+    private final int[] mRms;
+
+    private final boolean[] mClipped;
+
+    private final long[] mTimes;
+
+    // sequence number of the next sample, published after the sample is
+    // stored
+    private volatile long mWritten;
+
+    private final Object mRecorderLock = new Object();
+
+    private MediaRecorder mRecorder;
+
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    private long mNextSample;
+
+    // statistics of the sampling jitter
+    private long mJitterSum;
+
+    private long mMaxJitter;
+
+    private long mLateSamples;
+
+    private final Runnable mSample = new Runnable() {
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            long jitter = now - mNextSample;
+            mJitterSum += jitter;
+            mMaxJitter = Math.max(mMaxJitter, jitter);
+
+            sample();
+
+            mNextSample += mPeriod;
+            if (mNextSample <= now) {
+                // skip the ticks we have missed instead of catching up
+                mLateSamples++;
+                mNextSample = now + mPeriod;
+            }
+            mHandler.postAtTime(this, mNextSample);
+        }
+    };
+
+    /**
+     * @param period the sampling period in milliseconds
+     * @param capacity the number of samples kept, a power of two
+     */
+    public AmplitudeSampler(int period, int capacity) {
+        mPeriod = period;
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mPeaks = new int[capacity];
+        mRms = new int[capacity];
+        mClipped = new boolean[capacity];
+        mTimes = new long[capacity];
+    }
+
+    /**
+     * Starts sampling the recorder. Not needed when the samples are added
+     * by the caller.
+     */
+    public void start(MediaRecorder recorder) {
+        setRecorder(recorder);
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            public void run() {
+                mNextSample = SystemClock.uptimeMillis();
+                mSample.run();
+            }
+        });
+    }
+
+    /**
+     * Stops sampling and the sampling thread. The samples can still be read.
+     */
+    public void stop() {
+        setRecorder(null);
+        if (mThread == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            public void run() {
+                mHandler.removeCallbacks(mSample);
+                long samples = mWritten;
+                if (samples > 0) {
+                    Log.d(TAG, samples + " samples, jitter average " + (mJitterSum / samples)
+                            + " ms, max " + mMaxJitter + " ms, " + mLateSamples + " late");
+                }
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Sets the recorder to sample. Must be called with null before the
+     * recorder is stopped or released. Until a new recorder is set the
+     * samples are silent.
+     */
+    public void setRecorder(MediaRecorder recorder) {
+        synchronized (mRecorderLock) {
+            mRecorder = recorder;
+        }
+    }
+
+    private void sample() {
+        int peak = 0;
+        synchronized (mRecorderLock) {
+            if (mRecorder != null) {
+                try {
+                    peak = mRecorder.getMaxAmplitude();
+                } catch (RuntimeException e) {
+                    // the recorder is in a bad state, report silence
+                }
+            }
+        }
+
+        // MediaRecorder only reports the peak, use the RMS of a sine
+        add(peak, peak * 181 / 256);
+    }
+
+    /**
+     * Stores a sample. There must be only one thread adding samples.
+     *
+     * @param peak the peak amplitude, 0 - 32767
+     * @param rms the RMS amplitude, 0 - 32767
+     */
+    public void add(int peak, int rms) {
+        long sequence = mWritten;
+        int index = (int) (sequence & mMask);
+        mPeaks[index] = peak;
+        mRms[index] = rms;
+        mClipped[index] = peak >= CLIP_LEVEL;
+        mTimes[index] = SystemClock.elapsedRealtime();
+        mWritten = sequence + 1;
+    }
+
+    public int period() {
+        return mPeriod;
+    }
+
+    /**
+     * Returns the highest peak sampled at or after the given elapsed real
+     * time, scanning back at most the whole ring.
+     */
+    public int peakSince(long time) {
+        long written = mWritten;
+        long oldest = Math.max(0, written - mCapacity + 1);
+        int peak = 0;
+        for (long sequence = written - 1; sequence >= oldest; sequence--) {
+            int index = (int) (sequence & mMask);
+            if (mTimes[index] < time) {
+                break;
+            }
+            peak = Math.max(peak, mPeaks[index]);
+        }
+        return peak;
+    }
+
+    public Reader newReader() {
+        return new Reader(mWritten);
+    }
+
+    /**
+     * Reads the samples in order. Each reader has its own position, a reader
+     * that falls behind by more than the capacity of the ring loses the
+     * oldest samples.
+     */
+    public class Reader {
+        private long mNext;
+
+        private long mLost;
+
+        private Reader(long next) {
+            mNext = next;
+        }
+
+        /**
+         * Copies the next samples into the arrays, which must have the same
+         * length.
+         *
+         * @return the number of samples copied
+         */
+        public int read(int[] peaks, int[] rms, boolean[] clipped, long[] times) {
+            long written = mWritten;
+            // the slot after the newest sample may be overwritten any moment
+            long from = Math.max(mNext, written - mCapacity + 1);
+            int count = (int) Math.min(written - from, peaks.length);
+            for (int i = 0; i < count; i++) {
+                int index = (int) ((from + i) & mMask);
+                peaks[i] = mPeaks[index];
+                rms[i] = mRms[index];
+                clipped[i] = mClipped[index];
+                times[i] = mTimes[index];
+            }
+
+            // drop what the writer has overwritten while we were copying
+            long valid = mWritten - mCapacity + 1;
+            int skip = (int) Math.min(count, Math.max(0, valid - from));
+            if (skip > 0) {
+                count -= skip;
+                System.arraycopy(peaks, skip, peaks, 0, count);
+                System.arraycopy(rms, skip, rms, 0, count);
+                System.arraycopy(clipped, skip, clipped, 0, count);
+                System.arraycopy(times, skip, times, 0, count);
+                from += skip;
+            }
+            mLost += from - mNext;
+            mNext = from + count;
+            return count;
+        }
+
+        /**
+         * Returns the number of samples this reader has missed.
+         */
+        public long lost() {
+            return mLost;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helpers for AMR files in the RFC 4867 storage format: a magic header
+ * followed by self-delimiting frames of 20 ms, each starting with a table of
+ * contents byte that determines the frame size.
+ */
+public class AmrFile {
+    public static final byte[] MAGIC_NB = "#!AMR\n".getBytes();
+
+    public static final byte[] MAGIC_WB = "#!AMR-WB\n".getBytes();
+
+    public static final int FRAME_DURATION = 20; // milliseconds
+
+    // frame sizes including the table of contents byte, 0 for invalid types
+    private static final int[] FRAME_SIZES_NB = {
+            13, 14, 16, 18, 20, 21, 27, 32, 6, 0, 0, 0, 0, 0, 0, 1
+    };
+
+    private static final int[] FRAME_SIZES_WB = {
+            18, 24, 33, 37, 41, 47, 51, 59, 61, 6, 0, 0, 0, 0, 1, 1
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private AmrFile() {
+    }
+
+    /**
+     * Returns the size of the frame starting with the given table of contents
+     * byte, or -1 if the byte can't start a frame.
+     */
+    public static int frameSize(int toc, boolean wideband) {
+        // the F bit and the padding bits are always zero in storage format
+        if ((toc & 0x83) != 0) {
+            return -1;
+        }
+        int size = (wideband ? FRAME_SIZES_WB : FRAME_SIZES_NB)[(toc >> 3) & 0x0f];
+        return size == 0 ? -1 : size;
+    }
+
+    /**
+     * Returns the length of the magic header the file starts with, or -1 if
+     * it is not an AMR file.
+     */
+    public static int headerLength(RandomAccessFile file) throws IOException {
+        byte[] header = new byte[MAGIC_WB.length];
+        file.seek(0);
+        int length = 0;
+        while (length < header.length) {
+            int read = file.read(header, length, header.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        if (startsWith(header, length, MAGIC_WB)) {
+            return MAGIC_WB.length;
+        } else if (startsWith(header, length, MAGIC_NB)) {
+            return MAGIC_NB.length;
+        }
+        return -1;
+    }
+
+    public static boolean isWideband(int headerLength) {
+        return headerLength == MAGIC_WB.length;
+    }
+
+    /**
+     * Cuts a file left behind by an interrupted recording back to its last
+     * complete frame. The file is streamed, so memory use does not depend on
+     * its size.
+     *
+     * @return the number of frames in the file, or -1 if it is not AMR
+     */
+    public static long reframe(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FrameScanner scanner = new FrameScanner(raf);
+            if (!scanner.isValid()) {
+                return -1;
+            }
+            long frames = 0;
+            while (scanner.next()) {
+                frames++;
+            }
+            if (scanner.end() < raf.length()) {
+                raf.setLength(scanner.end());
+            }
+            return frames;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copies the frames of an AMR file between two positions into a new
+     * file. The frames are copied as they are, there is no decoding.
+     *
+     * @return the duration of the new file in milliseconds
+     * @throws IOException if the file can't be copied or is not AMR
+     */
+    public static long trim(File source, File target, long startMillis, long endMillis)
+            throws IOException {
+        return copyFrames(source, target, new long[] {
+                startMillis / FRAME_DURATION, endMillis / FRAME_DURATION
+        });
+    }
+
+    /**
+     * Copies an AMR file without the frames between two positions into a new
+     * file.
+     *
+     * @return the duration of the new file in milliseconds
+     * @throws IOException if the file can't be copied or is not AMR
+     */
+    public static long cut(File source, File target, long startMillis, long endMillis)
+            throws IOException {
+        return copyFrames(source, target, new long[] {
+                0, startMillis / FRAME_DURATION, endMillis / FRAME_DURATION, Long.MAX_VALUE
+        });
+    }
+
+    /**
+     * Joins AMR files of the same kind, narrowband or wideband, by appending
+     * their frames to the header of the first one.
+     *
+     * @return the duration of the new file in milliseconds
+     * @throws IOException if the files can't be joined
+     */
+    public static long concatenate(File[] sources, File target) throws IOException {
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            FileChannel channel = out.getChannel();
+            long frames = 0;
+            int headerLength = -1;
+            for (File source : sources) {
+                RandomAccessFile raf = new RandomAccessFile(source, "r");
+                try {
+                    FrameScanner scanner = new FrameScanner(raf);
+                    if (!scanner.isValid()) {
+                        throw new IOException("not an AMR file: " + source);
+                    }
+                    if (headerLength < 0) {
+                        headerLength = scanner.headerLength();
+                        transfer(raf.getChannel(), 0, headerLength, channel);
+                    } else if (scanner.headerLength() != headerLength) {
+                        throw new IOException("narrowband and wideband AMR can't be joined");
+                    }
+                    while (scanner.next()) {
+                        frames++;
+                    }
+                    transfer(raf.getChannel(), headerLength, scanner.end() - headerLength,
+                            channel);
+                } finally {
+                    raf.close();
+                }
+            }
+            return frames * FRAME_DURATION;
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * Copies the header and the given ranges of frames, as pairs of the first
+     * frame and the frame after the last. The byte offsets of the range ends
+     * are found in one scan over the frames, the ranges are then copied by
+     * the channel without passing through the heap.
+     */
+    private static long copyFrames(File source, File target, long[] ranges) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            FrameScanner scanner = new FrameScanner(raf);
+            if (!scanner.isValid()) {
+                throw new IOException("not an AMR file: " + source);
+            }
+
+            long[] offsets = new long[ranges.length];
+            long frames = 0;
+            int next = 0;
+            while (true) {
+                while (next < ranges.length && ranges[next] <= frames) {
+                    offsets[next++] = scanner.end();
+                }
+                if (next == ranges.length || !scanner.next()) {
+                    break;
+                }
+                frames++;
+            }
+            // ranges past the last frame end with it
+            while (next < ranges.length) {
+                offsets[next++] = scanner.end();
+            }
+            long kept = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                kept += Math.max(0, Math.min(ranges[i + 1], frames) - Math.min(ranges[i], frames));
+            }
+
+            FileChannel in = raf.getChannel();
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel channel = out.getChannel();
+                transfer(in, 0, scanner.headerLength(), channel);
+                for (int i = 0; i < ranges.length; i += 2) {
+                    transfer(in, offsets[i], offsets[i + 1] - offsets[i], channel);
+                }
+            } finally {
+                out.close();
+            }
+            return kept * FRAME_DURATION;
+        } finally {
+            raf.close();
+        }
+    }
+
+    static void transfer(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new IOException("unable to copy frames");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams over the frames of an AMR file with a fixed size buffer. The
+     * scan ends at the end of the file, at a truncated frame or at a byte that
+     * can't start a frame.
+     */
+    public static class FrameScanner {
+        private final InputStream mIn;
+
+        private final boolean mWideband;
+
+        private final int mHeaderLength;
+
+        private final byte[] mFrame = new byte[64];
+
+        private long mOffset;
+
+        private int mSize;
+
+        private int mToc;
+
+        public FrameScanner(RandomAccessFile file) throws IOException {
+            mHeaderLength = AmrFile.headerLength(file);
+            mWideband = AmrFile.isWideband(mHeaderLength);
+            mOffset = mHeaderLength;
+            mSize = 0;
+            if (mHeaderLength > 0) {
+                file.seek(mHeaderLength);
+            }
+            // shares the file position with the RandomAccessFile
+            mIn = new BufferedInputStream(new FileInputStream(file.getFD()), BUFFER_SIZE);
+        }
+
+        public boolean isValid() {
+            return mHeaderLength > 0;
+        }
+
+        public boolean isWideband() {
+            return mWideband;
+        }
+
+        public int headerLength() {
+            return mHeaderLength;
+        }
+
+        /**
+         * Advances to the next frame, returns false if there is no complete
+         * frame left.
+         */
+        public boolean next() throws IOException {
+            if (mHeaderLength <= 0) {
+                return false;
+            }
+            int toc = mIn.read();
+            int size = toc < 0 ? -1 : frameSize(toc, mWideband);
+            if (size < 0) {
+                mOffset += mSize;
+                mSize = 0;
+                return false;
+            }
+            mFrame[0] = (byte) toc;
+            int length = 1;
+            while (length < size) {
+                int read = mIn.read(mFrame, length, size - length);
+                if (read < 0) {
+                    // truncated frame
+                    mOffset += mSize;
+                    mSize = 0;
+                    return false;
+                }
+                length += read;
+            }
+            mOffset += mSize;
+            mSize = size;
+            mToc = toc;
+            return true;
+        }
+
+        /**
+         * Returns the offset of the current frame in the file.
+         */
+        public long offset() {
+            return mOffset;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public int toc() {
+            return mToc;
+        }
+
+        /**
+         * Returns the bytes of the current frame, valid up to size().
+         */
+        public byte[] frame() {
+            return mFrame;
+        }
+
+        /**
+         * Returns the offset just after the last complete frame.
+         */
+        public long end() {
+            return mOffset + mSize;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Byte offsets of the frames of an AMR file, kept in a sidecar so that the
+ * frame at any position is found without scanning the file. A file recorded
+ * in one mode needs no table, the offset follows from the frame size.
+ * Otherwise the offset of every 50th frame, one a second, is kept and at
+ * most 49 frames after it are walked by their table of contents bytes.
+ *
+ * <pre>
+ * sidecar, big endian:
+ *   int    magic "SRSK"
+ *   short  version
+ *   short  length of the AMR header
+ *   long   length of the recording
+ *   long   modification time of the recording
+ *   int    frame size, 0 if it varies
+ *   int    number of frames
+ *   long   offset after the last frame
+ *   int    number of entries, then an int offset per entry
+ * </pre>
+ */
+public class AmrSeekIndex {
+    private static final String TAG = "AmrSeekIndex";
+
+    private static final String SEEK_SUFFIX = ".seek";
+
+    private static final int MAGIC = 0x5352534b; // "SRSK"
+
+    private static final int VERSION = 1;
+
+    private static final int FRAMES_PER_ENTRY = 50;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // largest frame, of AMR-WB at 23.85 kbit/s
+    private static final int MAX_FRAME_SIZE = 61;
+
+    private final File mRecording;
+
+    private int mHeaderLength;
+
+    private boolean mWideband;
+
+    private int mFrameSize;
+
+    private int mFrames;
+
+    private long mEnd;
+
+    private int[] mOffsets;
+
+    private AmrSeekIndex(File recording) {
+        mRecording = recording;
+    }
+
+    /**
+     * Returns the index of a recording, read from its sidecar or built by
+     * one scan over the recording and saved, or null if the recording is
+     * not AMR or can't be read.
+     */
+    public static AmrSeekIndex load(File recording) {
+        AmrSeekIndex index = new AmrSeekIndex(recording);
+        File file = RecordingFiles.sidecar(recording, SEEK_SUFFIX);
+        try {
+            if (file.exists() && index.read(file)) {
+                return index;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read " + file + ": " + e);
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            if (!index.build()) {
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to index " + recording + ": " + e);
+            return null;
+        }
+        Log.d(TAG, "indexed " + index.mFrames + " frames of " + (recording.length() / 1024)
+                + " KB in " + (System.currentTimeMillis() - start) + " ms");
+        try {
+            index.write(file);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write " + file + ": " + e);
+        }
+        return index;
+    }
+
+    private boolean build() throws IOException {
+        if (mRecording.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(mRecording, "r");
+        try {
+            AmrFile.FrameScanner scanner = new AmrFile.FrameScanner(raf);
+            if (!scanner.isValid()) {
+                return false;
+            }
+            mHeaderLength = scanner.headerLength();
+            mWideband = scanner.isWideband();
+            int[] offsets = new int[16];
+            int frames = 0;
+            int frameSize = -1;
+            while (scanner.next()) {
+                if (frames % FRAMES_PER_ENTRY == 0) {
+                    if (frames / FRAMES_PER_ENTRY == offsets.length) {
+                        int[] grown = new int[offsets.length * 2];
+                        System.arraycopy(offsets, 0, grown, 0, offsets.length);
+                        offsets = grown;
+                    }
+                    offsets[frames / FRAMES_PER_ENTRY] = (int) scanner.offset();
+                }
+                if (frameSize == -1) {
+                    frameSize = scanner.size();
+                } else if (frameSize != scanner.size()) {
+                    frameSize = 0;
+                }
+                frames++;
+            }
+            mFrames = frames;
+            mEnd = scanner.end();
+            mFrameSize = Math.max(0, frameSize);
+            int entries = mFrameSize > 0 ? 0 : (frames + FRAMES_PER_ENTRY - 1) / FRAMES_PER_ENTRY;
+            mOffsets = new int[entries];
+            System.arraycopy(offsets, 0, mOffsets, 0, entries);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private boolean read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                return false;
+            }
+            mHeaderLength = in.readShort();
+            if (in.readLong() != mRecording.length()
+                    || in.readLong() != mRecording.lastModified()) {
+                return false;
+            }
+            mWideband = AmrFile.isWideband(mHeaderLength);
+            mFrameSize = in.readInt();
+            mFrames = in.readInt();
+            mEnd = in.readLong();
+            int entries = in.readInt();
+            if (entries != (mFrameSize > 0 ? 0 : (mFrames + FRAMES_PER_ENTRY - 1)
+                    / FRAMES_PER_ENTRY)) {
+                return false;
+            }
+            mOffsets = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                mOffsets[i] = in.readInt();
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(mHeaderLength);
+            out.writeLong(mRecording.length());
+            out.writeLong(mRecording.lastModified());
+            out.writeInt(mFrameSize);
+            out.writeInt(mFrames);
+            out.writeLong(mEnd);
+            out.writeInt(mOffsets.length);
+            for (int offset : mOffsets) {
+                out.writeInt(offset);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("unable to replace " + file);
+        }
+    }
+
+    public File recording() {
+        return mRecording;
+    }
+
+    /**
+     * Returns the duration of the recording in milliseconds.
+     */
+    public long duration() {
+        return (long) mFrames * AmrFile.FRAME_DURATION;
+    }
+
+    /**
+     * Returns the offset of the frame playing at a position, in milliseconds,
+     * or the offset after the last frame for the end of the recording.
+     */
+    private long offsetOf(RandomAccessFile file, long millis) throws IOException {
+        long frame = Math.max(0, Math.min(millis / AmrFile.FRAME_DURATION, mFrames));
+        if (frame == mFrames) {
+            return mEnd;
+        }
+        if (mFrameSize > 0) {
+            return mHeaderLength + frame * mFrameSize;
+        }
+
+        long offset = mOffsets[(int) (frame / FRAMES_PER_ENTRY)] & 0xffffffffL;
+        int skip = (int) (frame % FRAMES_PER_ENTRY);
+        if (skip == 0) {
+            return offset;
+        }
+        byte[] frames = new byte[(int) Math.min(skip * MAX_FRAME_SIZE, mEnd - offset)];
+        file.seek(offset);
+        file.readFully(frames);
+        int position = 0;
+        for (int i = 0; i < skip; i++) {
+            int size = position < frames.length ? AmrFile.frameSize(frames[position] & 0xff,
+                    mWideband) : -1;
+            if (size < 0) {
+                throw new IOException("the index doesn't match the recording");
+            }
+            position += size;
+        }
+        return offset + position;
+    }
+
+    /**
+     * Writes the recording from the frame playing at a position on into a
+     * new AMR file, by the channel.
+     *
+     * @return the position in the recording the new file starts at
+     */
+    public long writeTail(long millis, File target) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mRecording, "r");
+        try {
+            long offset = offsetOf(raf, millis);
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                AmrFile.transfer(raf.getChannel(), 0, mHeaderLength, out.getChannel());
+                AmrFile.transfer(raf.getChannel(), offset, mEnd - offset, out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            raf.close();
+        }
+        long frame = Math.max(0, Math.min(millis / AmrFile.FRAME_DURATION, mFrames));
+        return frame * AmrFile.FRAME_DURATION;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The duration and format of a recording, read from its headers without a
+ * MediaPlayer. MP4 (3GPP) files are read box header by box header, jumping
+ * over the media data wherever the movie box is, so only a few hundred
+ * bytes are read whatever the length of the file. AMR files recorded in a
+ * single mode are measured from their size, others are scanned frame by
+ * frame.
+ */
+public class AudioInfo {
+    public static final String CODEC_AMR_NB = "amr-nb";
+
+    public static final String CODEC_AMR_WB = "amr-wb";
+
+    public static final String CODEC_AAC = "aac";
+
+    public static final String CODEC_PCM = "pcm";
+
+    public static final String CODEC_MULAW = "mulaw";
+
+    // frames of an AMR file checked to have the size of the first
+    private static final int AMR_PROBES = 8;
+
+    private String mCodec;
+
+    private long mDuration;
+
+    private int mSampleRate;
+
+    private int mChannels;
+
+    private int mBitRate;
+
+    // bytes of audio data, for the bit rate
+    private long mDataSize;
+
+    private AudioInfo() {
+    }
+
+    /**
+     * Reads the format of an MP4, AMR or WAV file.
+     *
+     * @throws IOException if the file can't be read, is of another format or
+     *             is not finished
+     */
+    public static AudioInfo read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            AudioInfo info = new AudioInfo();
+            byte[] head = new byte[12];
+            int length = (int) Math.min(head.length, raf.length());
+            raf.readFully(head, 0, length);
+            int amrHeader;
+            if (length == 12 && (WavWriter.hasTag(head, 0, "RIFF")
+                    || WavWriter.hasTag(head, 0, "RF64")) && WavWriter.hasTag(head, 8, "WAVE")) {
+                info.readWav(raf);
+            } else if (length >= 8 && (int) Mp4File.getInt(head, 4) == Mp4File.FTYP) {
+                info.readMp4(raf);
+            } else if ((amrHeader = AmrFile.headerLength(raf)) > 0) {
+                info.readAmr(raf, amrHeader);
+            } else {
+                throw new IOException("unknown format: " + file);
+            }
+            if (info.mDuration > 0) {
+                info.mBitRate = (int) Math.min(Integer.MAX_VALUE, info.mDataSize * 8000
+                        / info.mDuration);
+            }
+            return info;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns one of the CODEC constants.
+     */
+    public String getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * Returns the duration in milliseconds.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /**
+     * Returns the average bit rate of the audio data in bits per second.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    private void readWav(RandomAccessFile file) throws IOException {
+        WavHeader header = WavHeader.read(file);
+        if (header == null) {
+            throw new IOException("truncated WAV header");
+        }
+        mChannels = header.channels;
+        mSampleRate = header.sampleRate;
+        int frameSize = header.frameSize();
+        int format = header.format;
+        if ((format != WavWriter.FORMAT_PCM && format != WavWriter.FORMAT_MULAW)
+                || mSampleRate <= 0 || frameSize <= 0) {
+            throw new IOException("not a PCM or mu-law WAV file");
+        }
+        long frames = header.dataSize / frameSize;
+        mCodec = format == WavWriter.FORMAT_MULAW ? CODEC_MULAW : CODEC_PCM;
+        mDuration = frames * 1000 / mSampleRate;
+        mDataSize = frames * frameSize;
+    }
+
+    private void readAmr(RandomAccessFile file, int headerLength) throws IOException {
+        boolean wideband = AmrFile.isWideband(headerLength);
+        mCodec = wideband ? CODEC_AMR_WB : CODEC_AMR_NB;
+        mSampleRate = wideband ? 16000 : 8000;
+        mChannels = 1;
+
+        long data = file.length() - headerLength;
+        long frames = -1;
+        if (data > 0) {
+            file.seek(headerLength);
+            int size = AmrFile.frameSize(file.read(), wideband);
+            if (size > 0 && data % size == 0) {
+                // a file recorded in one mode has frames of one size, which
+                // is likely if a spread of them has it
+                long count = data / size;
+                frames = count;
+                for (int i = 1; i <= AMR_PROBES && frames > 0; i++) {
+                    file.seek(headerLength + (count - 1) * i / AMR_PROBES * size);
+                    if (AmrFile.frameSize(file.read(), wideband) != size) {
+                        frames = -1;
+                    }
+                }
+            }
+        }
+        long end = headerLength;
+        if (frames < 0) {
+            AmrFile.FrameScanner scanner = new AmrFile.FrameScanner(file);
+            frames = 0;
+            while (scanner.next()) {
+                frames++;
+            }
+            end = scanner.end();
+        } else {
+            end += data;
+        }
+        mDuration = frames * AmrFile.FRAME_DURATION;
+        mDataSize = end - headerLength;
+    }
+
+    private void readMp4(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long media = 0;
+        Mp4File.Box moov = null;
+        Mp4File.Box box;
+        long offset = 0;
+        // a movie box written after the media data is found by jumping over it
+        while ((box = Mp4File.readBox(file, offset, length)) != null) {
+            if (box.type == Mp4File.MDAT) {
+                media += box.dataSize();
+            } else if (box.type == Mp4File.MOOV) {
+                moov = box;
+            }
+            offset = box.end();
+        }
+        if (moov == null) {
+            throw new IOException("not a finished MP4 file");
+        }
+
+        long movieDuration = -1;
+        offset = moov.dataOffset();
+        while ((box = Mp4File.readBox(file, offset, moov.end())) != null) {
+            if (box.type == Mp4File.MVHD) {
+                long[] header = readHeader(file, box);
+                movieDuration = header[1] * 1000 / header[0];
+            } else if (box.type == Mp4File.TRAK && mCodec == null) {
+                readTrack(file, box);
+            }
+            offset = box.end();
+        }
+        if (mCodec == null) {
+            throw new IOException("no audio track");
+        }
+        if (mDuration <= 0 && movieDuration > 0) {
+            mDuration = movieDuration;
+        }
+        mDataSize = media;
+    }
+
+    /*
+     * Reads the track if it is an audio track.
+     */
+    private void readTrack(RandomAccessFile file, Mp4File.Box trak) throws IOException {
+        Mp4File.Box mdia = child(file, trak, Mp4File.MDIA);
+        Mp4File.Box hdlr = child(file, mdia, Mp4File.HDLR);
+        // version and flags, predefined, handler type
+        byte[] handler = readData(file, hdlr, 12);
+        if (handler.length < 12 || (int) Mp4File.getInt(handler, 8) != Mp4File.SOUN) {
+            return;
+        }
+        long[] header = readHeader(file, child(file, mdia, Mp4File.MDHD));
+        Mp4File.Box stbl = child(file, child(file, mdia, Mp4File.MINF), Mp4File.STBL);
+        Mp4File.Box stsd = child(file, stbl, Mp4File.STSD);
+
+        // version and flags, entry count, then the first sample entry: its
+        // box header, 8 bytes up to the data reference index, 8 reserved,
+        // the channel count, the sample size, 4 reserved and the 16.16 rate
+        byte[] entry = readData(file, stsd, 44);
+        if (entry.length < 44) {
+            throw new IOException("truncated sample description");
+        }
+        int type = (int) Mp4File.getInt(entry, 12);
+        if (type == Mp4File.SAMR) {
+            mCodec = CODEC_AMR_NB;
+        } else if (type == Mp4File.SAWB) {
+            mCodec = CODEC_AMR_WB;
+        } else if (type == Mp4File.MP4A) {
+            mCodec = CODEC_AAC;
+        } else {
+            mCodec = Integer.toHexString(type);
+        }
+        mChannels = (int) (Mp4File.getInt(entry, 32) >> 16);
+        mSampleRate = (int) (Mp4File.getInt(entry, 40) >> 16);
+        if (mSampleRate == 0) {
+            mSampleRate = (int) header[0];
+        }
+        mDuration = header[1] * 1000 / header[0];
+    }
+
+    /*
+     * Returns the time scale and the duration of a movie or media header.
+     */
+    private static long[] readHeader(RandomAccessFile file, Mp4File.Box box) throws IOException {
+        byte[] data = readData(file, box, 32);
+        long timescale;
+        long duration;
+        if (data.length >= 32 && data[0] == 1) {
+            timescale = Mp4File.getInt(data, 20);
+            duration = Mp4File.getInt(data, 24) << 32 | Mp4File.getInt(data, 28);
+        } else if (data.length >= 20 && data[0] == 0) {
+            timescale = Mp4File.getInt(data, 12);
+            duration = Mp4File.getInt(data, 16);
+            if (duration == 0xffffffffL) {
+                // unknown
+                duration = 0;
+            }
+        } else {
+            throw new IOException("bad header box");
+        }
+        if (timescale <= 0 || duration < 0 || duration > Long.MAX_VALUE / 1000) {
+            throw new IOException("bad time scale or duration");
+        }
+        return new long[] {
+                timescale, duration
+        };
+    }
+
+    private static Mp4File.Box child(RandomAccessFile file, Mp4File.Box parent, int type)
+            throws IOException {
+        Mp4File.Box box;
+        long offset = parent.dataOffset();
+        while ((box = Mp4File.readBox(file, offset, parent.end())) != null) {
+            if (box.type == type) {
+                return box;
+            }
+            offset = box.end();
+        }
+        throw new IOException("missing box " + Integer.toHexString(type));
+    }
+
+    /*
+     * Reads the start of the data of a box, at most count bytes.
+     */
+    private static byte[] readData(RandomAccessFile file, Mp4File.Box box, int count)
+            throws IOException {
+        byte[] data = new byte[(int) Math.min(count, box.dataSize())];
+        file.seek(box.dataOffset());
+        file.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Which combinations of container, encoder, sample rate and channels the
+ * device records with, and how long each takes to start. They are probed
+ * once per build of the system on a background thread, by preparing and
+ * starting a recorder for each, and cached in internal storage. A probe
+ * cut short by its time budget or by a recording goes on the next time the
+ * app starts. Untested combinations count as supported.
+ *
+ * <pre>
+ * profile file:
+ *   Build.FINGERPRINT
+ *   version
+ *   a line "format encoder rate channels latency" per combination, the
+ *   latency in milliseconds or -1 if the combination failed
+ * </pre>
+ */
+public class CodecProfile {
+    private static final String TAG = "CodecProfile";
+
+    private static final String PROFILE_FILE = "codecs";
+
+    private static final int VERSION = 1;
+
+    private static final long PROBE_BUDGET_MILLIS = 4000;
+
+    // recorded by a probe before it is stopped again
+    private static final long PROBE_RECORD_MILLIS = 100;
+
+    private static final int UNSUPPORTED = -1;
+
+    private static final int THREE_GPP = MediaRecorder.OutputFormat.THREE_GPP;
+
+    private static final int AAC = MediaRecorder.AudioEncoder.AAC;
+
+    private static final int AMR_NB = MediaRecorder.AudioEncoder.AMR_NB;
+
+    private static final int AMR_WB = MediaRecorder.AudioEncoder.AMR_WB;
+
+    private static final int WAV = RecorderService.OUTPUT_FORMAT_WAV;
+
+    // format, encoder, sample rate, channels, the ones recording starts with
+    // first; WAV is captured by AudioRecord
+    private static final int[][] CANDIDATES = {
+            {
+                    THREE_GPP, AAC, 44100, 1
+            }, {
+                    THREE_GPP, AAC, 22050, 1
+            }, {
+                    MediaRecorder.OutputFormat.AMR_NB, AMR_NB, 8000, 1
+            }, {
+                    MediaRecorder.OutputFormat.AMR_WB, AMR_WB, 16000, 1
+            }, {
+                    WAV, 0, 44100, 1
+            }, {
+                    WAV, 0, 16000, 1
+            }, {
+                    THREE_GPP, AAC, 32000, 1
+            }, {
+                    THREE_GPP, AAC, 16000, 1
+            }, {
+                    THREE_GPP, AMR_NB, 8000, 1
+            }, {
+                    WAV, 0, 22050, 1
+            }, {
+                    WAV, 0, 8000, 1
+            }, {
+                    THREE_GPP, AAC, 44100, 2
+            }, {
+                    THREE_GPP, AAC, 22050, 2
+            }
+    };
+
+    private static CodecProfile sInstance;
+
+    private final File mFile;
+
+    private final File mProbeFile;
+
+    // start latencies by combination
+    private final HashMap<String, Integer> mLatencies = new HashMap<String, Integer>();
+
+    // held while a probe recorder is open
+    private final Object mProbeLock = new Object();
+
+    private Thread mProbe;
+
+    private volatile boolean mCancelled;
+
+    private CodecProfile(Context context) {
+        mFile = new File(context.getFilesDir(), PROFILE_FILE);
+        mProbeFile = new File(context.getCacheDir(), "probe");
+        load();
+    }
+
+    public static synchronized CodecProfile getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CodecProfile(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private static String key(int outputFormat, int encoder, int sampleRate, int channels) {
+        return outputFormat + " " + encoder + " " + sampleRate + " " + channels;
+    }
+
+    /**
+     * Returns whether a combination records on this device, true as long as
+     * it hasn't been probed.
+     *
+     * @param encoder a MediaRecorder.AudioEncoder, ignored for WAV
+     */
+    public synchronized boolean isSupported(int outputFormat, int encoder, int sampleRate,
+            int channels) {
+        if (outputFormat == WAV) {
+            encoder = 0;
+        }
+        Integer latency = mLatencies.get(key(outputFormat, encoder, sampleRate, channels));
+        return latency == null || latency != UNSUPPORTED;
+    }
+
+    /**
+     * Returns the time a combination took to start, in milliseconds, or -1
+     * if it isn't known.
+     */
+    public synchronized int startLatency(int outputFormat, int encoder, int sampleRate,
+            int channels) {
+        if (outputFormat == WAV) {
+            encoder = 0;
+        }
+        Integer latency = mLatencies.get(key(outputFormat, encoder, sampleRate, channels));
+        return latency != null ? latency : -1;
+    }
+
+    /**
+     * Returns the first of the sample rates the mono combination is supported
+     * at, or the first one if none of them is.
+     */
+    public int sampleRate(int outputFormat, int encoder, int... sampleRates) {
+        for (int rate : sampleRates) {
+            if (isSupported(outputFormat, encoder, rate, 1)) {
+                return rate;
+            }
+        }
+        return sampleRates[0];
+    }
+
+    /**
+     * Starts probing the combinations that haven't been, unless a probe is
+     * running or there is a recording.
+     */
+    public synchronized void probe() {
+        if (mProbe != null || mLatencies.size() == CANDIDATES.length
+                || RecorderService.isRecording()) {
+            return;
+        }
+        mCancelled = false;
+        mProbe = new Thread("CodecProbe") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runProbe();
+            }
+        };
+        mProbe.start();
+    }
+
+    /**
+     * Stops a running probe and waits until it has released the microphone.
+     */
+    public void stopProbe() {
+        mCancelled = true;
+        synchronized (mProbeLock) {
+            // the probe checks mCancelled before it opens the next recorder
+        }
+    }
+
+    private void runProbe() {
+        long start = SystemClock.elapsedRealtime();
+        int probed = 0;
+        for (int[] candidate : CANDIDATES) {
+            String key = key(candidate[0], candidate[1], candidate[2], candidate[3]);
+            synchronized (this) {
+                if (mLatencies.containsKey(key)) {
+                    continue;
+                }
+            }
+            if (SystemClock.elapsedRealtime() - start > PROBE_BUDGET_MILLIS) {
+                break;
+            }
+            int latency;
+            synchronized (mProbeLock) {
+                if (mCancelled || RecorderService.isRecording()) {
+                    break;
+                }
+                latency = candidate[0] == WAV ? probeCapture(candidate[2]) : probeRecorder(
+                        candidate[0], candidate[1], candidate[2], candidate[3]);
+            }
+            Log.d(TAG, key + ": " + (latency == UNSUPPORTED ? "unsupported" : latency + " ms"));
+            synchronized (this) {
+                mLatencies.put(key, latency);
+            }
+            probed++;
+        }
+        synchronized (this) {
+            Log.d(TAG, "probed " + probed + " combinations in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms, " + mLatencies.size()
+                    + " of " + CANDIDATES.length + " known");
+            if (probed > 0) {
+                save();
+            }
+            mProbe = null;
+        }
+    }
+
+    private int probeRecorder(int outputFormat, int encoder, int sampleRate, int channels) {
+        MediaRecorder recorder = new MediaRecorder();
+        try {
+            long start = SystemClock.elapsedRealtime();
+            recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            recorder.setOutputFormat(outputFormat);
+            recorder.setAudioEncoder(encoder);
+            recorder.setAudioSamplingRate(sampleRate);
+            recorder.setAudioChannels(channels);
+            recorder.setOutputFile(mProbeFile.getAbsolutePath());
+            recorder.prepare();
+            recorder.start();
+            int latency = (int) (SystemClock.elapsedRealtime() - start);
+            SystemClock.sleep(PROBE_RECORD_MILLIS);
+            try {
+                recorder.stop();
+            } catch (RuntimeException e) {
+                // nothing was encoded yet, the combination did start
+            }
+            return latency;
+        } catch (IOException e) {
+            return UNSUPPORTED;
+        } catch (RuntimeException e) {
+            return UNSUPPORTED;
+        } finally {
+            recorder.reset();
+            recorder.release();
+            mProbeFile.delete();
+        }
+    }
+
+    /*
+     * The latency of a capture is the time until the first buffer of audio.
+     */
+    private static int probeCapture(int sampleRate) {
+        int minSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            return UNSUPPORTED;
+        }
+        long start = SystemClock.elapsedRealtime();
+        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minSize * 2);
+        try {
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                return UNSUPPORTED;
+            }
+            record.startRecording();
+            short[] buffer = new short[minSize / 2];
+            int read = record.read(buffer, 0, buffer.length);
+            int latency = (int) (SystemClock.elapsedRealtime() - start);
+            record.stop();
+            return read > 0 ? latency : UNSUPPORTED;
+        } catch (IllegalStateException e) {
+            return UNSUPPORTED;
+        } finally {
+            record.release();
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(mFile));
+            try {
+                // probed on another build of the system
+                if (!Build.FINGERPRINT.equals(in.readLine())
+                        || !String.valueOf(VERSION).equals(in.readLine())) {
+                    return;
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int split = line.lastIndexOf(' ');
+                    if (split > 0) {
+                        mLatencies.put(line.substring(0, split), Integer.parseInt(line
+                                .substring(split + 1)));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read the profile: " + e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "bad profile: " + e);
+            mLatencies.clear();
+        }
+    }
+
+    private void save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(temp));
+            try {
+                out.println(Build.FINGERPRINT);
+                out.println(VERSION);
+                for (String key : mLatencies.keySet()) {
+                    out.println(key + " " + mLatencies.get(key));
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("unable to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write the profile: " + e);
+            temp.delete();
+        }
+    }
+}
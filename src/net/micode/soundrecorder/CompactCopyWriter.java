@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes a telephone quality copy of the audio being recorded, 8 kHz mu-law
+ * at 64 kbit/s, for an app that asked for a recording of limited size. The
+ * input is low-pass filtered below 3.4 kHz by a fourth order Butterworth
+ * filter and resampled by linear interpolation. Once the file reaches its
+ * size limit further audio is dropped.
+ */
+public class CompactCopyWriter {
+    public static final int SAMPLE_RATE = 8000;
+
+    public static final int BIT_RATE = SAMPLE_RATE * 8;
+
+    private static final float CUTOFF = 3400;
+
+    // G.711 mu-law
+    private static final int BIAS = 0x84;
+
+    private static final int CLIP = 32635;
+
+    private final WavWriter mWriter;
+
+    private final long mMaxBytes;
+
+    private final double mStep;
+
+    private final DspChain.BiquadFilter mLowPass1;
+
+    private final DspChain.BiquadFilter mLowPass2;
+
+    private float[] mFiltered;
+
+    private byte[] mBytes;
+
+    // position of the next output sample in the current block, -1 is the
+    // last sample of the previous block
+    private double mPosition;
+
+    private float mPrevious;
+
+    private boolean mFull;
+
+    /**
+     * @param inputRate the sample rate of the recording
+     * @param maxBytes the maximum size of the file, or -1 for no limit
+     */
+    public CompactCopyWriter(File file, int inputRate, long maxBytes) throws IOException {
+        mWriter = new WavWriter(file, SAMPLE_RATE, 1, WavWriter.FORMAT_MULAW);
+        mMaxBytes = maxBytes;
+        mStep = (double) inputRate / SAMPLE_RATE;
+        // the Q of the two sections of a fourth order Butterworth filter
+        mLowPass1 = DspChain.BiquadFilter.lowPass(inputRate, CUTOFF, 0.5412f);
+        mLowPass2 = DspChain.BiquadFilter.lowPass(inputRate, CUTOFF, 1.3066f);
+    }
+
+    /**
+     * Adds a block of samples between -1 and 1, which is left unchanged.
+     */
+    public void write(float[] block, int length) throws IOException {
+        if (mFull || length <= 0) {
+            return;
+        }
+        if (mFiltered == null || mFiltered.length < length) {
+            mFiltered = new float[length];
+            mBytes = new byte[(int) (length / mStep) + 2];
+        }
+        float[] filtered = mFiltered;
+        System.arraycopy(block, 0, filtered, 0, length);
+        mLowPass1.process(filtered, length);
+        mLowPass2.process(filtered, length);
+
+        int count = 0;
+        double position = mPosition;
+        while (position <= length - 1) {
+            int index = (int) Math.floor(position);
+            float fraction = (float) (position - index);
+            float a = index < 0 ? mPrevious : filtered[index];
+            float x = fraction == 0 ? a : a + (filtered[index + 1] - a) * fraction;
+            mBytes[count++] = linearToMuLaw((int) (x * 32768f));
+            position += mStep;
+        }
+        mPosition = position - length;
+        mPrevious = filtered[length - 1];
+
+        if (mMaxBytes >= 0) {
+            long room = mMaxBytes - WavWriter.HEADER_SIZE - mWriter.dataSize();
+            if (count >= room) {
+                count = (int) Math.max(0, room);
+                mFull = true;
+            }
+        }
+        mWriter.write(mBytes, 0, count);
+    }
+
+    /**
+     * Returns whether the file has reached its size limit.
+     */
+    public boolean isFull() {
+        return mFull;
+    }
+
+    public long dataSize() {
+        return mWriter.dataSize();
+    }
+
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    static byte linearToMuLaw(int sample) {
+        int sign = 0;
+        if (sample < 0) {
+            sign = 0x80;
+            sample = -sample;
+        }
+        sample = Math.min(sample, CLIP) + BIAS;
+        int exponent = 31 - Integer.numberOfLeadingZeros(sample) - 7;
+        int mantissa = (sample >> (exponent + 3)) & 0x0f;
+        return (byte) ~(sign | exponent << 4 | mantissa);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Measures the CPU time spent on a recording as a percentage of one core.
+ * The encoders of MediaRecorder run in the media server, so its time is
+ * added to that of the app as long as the system lets /proc be read.
+ */
+public class CpuMeter {
+    private static final String MEDIA_SERVER = "/system/bin/mediaserver";
+
+    // USER_HZ of the kernel
+    private static final int CLOCK_TICK_MILLIS = 10;
+
+    // 0 until looked up, -1 if not found
+    private static int sServerPid = 0;
+
+    private final long mStartTime;
+
+    private final long mStartCpu;
+
+    public CpuMeter() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mStartCpu = cpuMillis();
+    }
+
+    /**
+     * Returns the milliseconds the meter has been running for.
+     */
+    public long elapsed() {
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    /**
+     * Returns the CPU used since the meter was created, in percent of one
+     * core.
+     */
+    public float percent() {
+        long elapsed = elapsed();
+        return elapsed > 0 ? (cpuMillis() - mStartCpu) * 100f / elapsed : 0;
+    }
+
+    private static long cpuMillis() {
+        return Process.getElapsedCpuTime() + serverCpuMillis();
+    }
+
+    private static synchronized long serverCpuMillis() {
+        if (sServerPid == 0) {
+            sServerPid = findServer();
+        }
+        if (sServerPid < 0) {
+            return 0;
+        }
+        String stat = readLine(new File("/proc/" + sServerPid + "/stat"));
+        if (stat == null) {
+            return 0;
+        }
+        // the fields after the name, which can contain spaces, start with
+        // the state; utime and stime are the 12th and 13th of them
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        try {
+            return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * CLOCK_TICK_MILLIS;
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static int findServer() {
+        String[] names = new File("/proc").list();
+        if (names == null) {
+            return -1;
+        }
+        for (String name : names) {
+            if (name.length() == 0 || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+            String command = readLine(new File("/proc/" + name + "/cmdline"));
+            if (command != null && command.startsWith(MEDIA_SERVER)) {
+                return Integer.parseInt(name);
+            }
+        }
+        return -1;
+    }
+
+    private static String readLine(File file) {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file), 512);
+            try {
+                return in.readLine();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+
+/**
+ * Chain of processors applied to blocks of captured audio. Samples are floats
+ * in the range -1 to 1 and are processed in place, no processor allocates
+ * memory per block.
+ */
+public class DspChain {
+
+    public interface Processor {
+        /**
+         * Processes the first length samples of the block in place.
+         */
+        public void process(float[] block, int length);
+    }
+
+    private final ArrayList<Processor> mProcessors = new ArrayList<Processor>();
+
+    private Processor[] mChain = new Processor[0];
+
+    public DspChain() {
+    }
+
+    /**
+     * Builds the chain enabled in the preferences.
+     */
+    public static DspChain create(Context context, int sampleRate) {
+        return create(sampleRate, SoundRecorderPreferenceActivity.isHighPassEnabled(context),
+                SoundRecorderPreferenceActivity.isNoiseGateEnabled(context),
+                SoundRecorderPreferenceActivity.isAutomaticGainEnabled(context),
+                SoundRecorderPreferenceActivity.isLimiterEnabled(context));
+    }
+
+    public static DspChain create(int sampleRate, boolean highPass, boolean noiseGate,
+            boolean automaticGain, boolean limiter) {
+        DspChain chain = new DspChain();
+        if (highPass) {
+            chain.add(BiquadFilter.highPass(sampleRate, 80, 0.707f));
+        }
+        if (noiseGate) {
+            chain.add(new NoiseGate(sampleRate, -50, -30));
+        }
+        if (automaticGain) {
+            chain.add(new AutomaticGainControl(sampleRate, -18, 24));
+        }
+        if (limiter) {
+            chain.add(new SoftLimiter(-2));
+        }
+        return chain;
+    }
+
+    public void add(Processor processor) {
+        mProcessors.add(processor);
+        mChain = mProcessors.toArray(new Processor[mProcessors.size()]);
+    }
+
+    public boolean isEmpty() {
+        return mChain.length == 0;
+    }
+
+    public void process(float[] block, int length) {
+        for (Processor processor : mChain) {
+            processor.process(block, length);
+        }
+    }
+
+    static float dbToLinear(float db) {
+        return (float) Math.pow(10, db / 20);
+    }
+
+    // one pole smoothing coefficient for the given time constant
+    static float coefficient(int sampleRate, float seconds) {
+        return (float) (1 - Math.exp(-1 / (seconds * sampleRate)));
+    }
+
+    /**
+     * Second order IIR filter, transposed direct form II.
+     */
+    public static class BiquadFilter implements Processor {
+        private final float mB0, mB1, mB2, mA1, mA2;
+
+        private float mZ1, mZ2;
+
+        private BiquadFilter(double b0, double b1, double b2, double a0, double a1, double a2) {
+            mB0 = (float) (b0 / a0);
+            mB1 = (float) (b1 / a0);
+            mB2 = (float) (b2 / a0);
+            mA1 = (float) (a1 / a0);
+            mA2 = (float) (a2 / a0);
+        }
+
+        /**
+         * Returns a high-pass filter, see the audio EQ cookbook.
+         */
+        public static BiquadFilter highPass(int sampleRate, float frequency, float q) {
+            double w0 = 2 * Math.PI * frequency / sampleRate;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * q);
+            return new BiquadFilter((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha,
+                    -2 * cos, 1 - alpha);
+        }
+
+        /**
+         * Returns a low-pass filter, see the audio EQ cookbook.
+         */
+        public static BiquadFilter lowPass(int sampleRate, float frequency, float q) {
+            double w0 = 2 * Math.PI * frequency / sampleRate;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * q);
+            return new BiquadFilter((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha,
+                    -2 * cos, 1 - alpha);
+        }
+
+        public void process(float[] block, int length) {
+            float z1 = mZ1;
+            float z2 = mZ2;
+            for (int i = 0; i < length; i++) {
+                float x = block[i];
+                float y = mB0 * x + z1;
+                z1 = mB1 * x - mA1 * y + z2;
+                z2 = mB2 * x - mA2 * y;
+                block[i] = y;
+            }
+            // keep the state out of the denormal range during silence
+            mZ1 = Math.abs(z1) < 1e-15f ? 0 : z1;
+            mZ2 = Math.abs(z2) < 1e-15f ? 0 : z2;
+        }
+    }
+
+    /**
+     * Attenuates the signal while its envelope stays below a threshold.
+     */
+    public static class NoiseGate implements Processor {
+        private final float mThreshold;
+
+        private final float mFloor;
+
+        private final float mEnvelopeRelease;
+
+        private final float mAttack;
+
+        private final float mRelease;
+
+        private float mEnvelope;
+
+        private float mGain = 1;
+
+        /**
+         * @param thresholdDb level below which the gate closes
+         * @param rangeDb attenuation of the closed gate
+         */
+        public NoiseGate(int sampleRate, float thresholdDb, float rangeDb) {
+            mThreshold = dbToLinear(thresholdDb);
+            mFloor = dbToLinear(rangeDb);
+            mEnvelopeRelease = 1 - coefficient(sampleRate, 0.05f);
+            mAttack = coefficient(sampleRate, 0.001f);
+            mRelease = coefficient(sampleRate, 0.1f);
+        }
+
+        public void process(float[] block, int length) {
+            float envelope = mEnvelope;
+            float gain = mGain;
+            for (int i = 0; i < length; i++) {
+                float level = Math.abs(block[i]);
+                envelope = level > envelope ? level : envelope * mEnvelopeRelease;
+                float target = envelope >= mThreshold ? 1 : mFloor;
+                gain += (target - gain) * (target > gain ? mAttack : mRelease);
+                block[i] *= gain;
+            }
+            mEnvelope = envelope;
+            mGain = gain;
+        }
+    }
+
+    /**
+     * Slowly steers the RMS level of the signal towards a target. Blocks
+     * quieter than the noise floor leave the gain alone, so silence is not
+     * amplified into hiss.
+     */
+    public static class AutomaticGainControl implements Processor {
+        private static final float NOISE_FLOOR = dbToLinear(-50);
+
+        private final float mTarget;
+
+        private final float mMaxGain;
+
+        private final int mSampleRate;
+
+        private float mLevel;
+
+        private float mGain = 1;
+
+        /**
+         * @param targetDb the RMS level to reach
+         * @param maxGainDb the highest gain applied
+         */
+        public AutomaticGainControl(int sampleRate, float targetDb, float maxGainDb) {
+            mSampleRate = sampleRate;
+            mTarget = dbToLinear(targetDb);
+            mMaxGain = dbToLinear(maxGainDb);
+            mLevel = mTarget;
+        }
+
+        public void process(float[] block, int length) {
+            if (length == 0) {
+                return;
+            }
+            float squares = 0;
+            for (int i = 0; i < length; i++) {
+                squares += block[i] * block[i];
+            }
+            float rms = (float) Math.sqrt(squares / length);
+
+            float gain = mGain;
+            if (rms > NOISE_FLOOR) {
+                // rise fast on loud blocks, fall back slowly
+                float seconds = rms > mLevel ? 0.05f : 1.5f;
+                float k = 1 - (float) Math.exp(-(double) length / (seconds * mSampleRate));
+                mLevel += (rms - mLevel) * k;
+                gain = Math.min(mMaxGain, mTarget / mLevel);
+            }
+
+            // ramp across the block to avoid steps in the gain
+            float step = (gain - mGain) / length;
+            float current = mGain;
+            for (int i = 0; i < length; i++) {
+                current += step;
+                block[i] *= current;
+            }
+            mGain = gain;
+        }
+    }
+
+    /**
+     * Leaves the signal alone up to a threshold and bends it smoothly towards
+     * full scale above, so that peaks never clip.
+     */
+    public static class SoftLimiter implements Processor {
+        private final float mThreshold;
+
+        private final float mHeadroom;
+
+        public SoftLimiter(float thresholdDb) {
+            mThreshold = dbToLinear(thresholdDb);
+            mHeadroom = 1 - mThreshold;
+        }
+
+        public void process(float[] block, int length) {
+            for (int i = 0; i < length; i++) {
+                float x = block[i];
+                float level = Math.abs(x);
+                if (level > mThreshold) {
+                    float over = (level - mThreshold) / mHeadroom;
+                    level = mThreshold + mHeadroom * over / (1 + over);
+                    block[i] = x < 0 ? -level : level;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.media.MediaRecorder;
+
+import java.util.ArrayList;
+
+/**
+ * Encoder, sample rate and bit rate for a recording that has to fit in a
+ * number of bytes. The settings are taken from a ladder ordered by quality,
+ * the first one whose file for the expected duration fits the budget wins,
+ * so a short recording keeps its quality and a long one gets a lower bit
+ * rate instead of being cut off. The size of a file is predicted from the
+ * frame sizes of AMR and from the bit rate of AAC plus the MP4 tables.
+ */
+public class EncoderSettings {
+    // duration planned for when the app gives none
+    public static final long OPEN_ENDED_MILLIS = 5 * 60 * 1000;
+
+    // ftyp and moov boxes of a 3GPP file without the sample tables
+    private static final int MP4_HEADER_BYTES = 1024;
+
+    // a chunk offset a second and a sample size per AAC frame
+    private static final int MP4_TABLE_BYTES = 4;
+
+    private static final int AAC_FRAME_SAMPLES = 1024;
+
+    // the AAC encoder overshoots its bit rate on loud or noisy input
+    private static final float AAC_MARGIN = 1.05f;
+
+    private static final int AMR_FRAMES_PER_SECOND = 1000 / AmrFile.FRAME_DURATION;
+
+    private static final int[] AMR_NB_RATES = {
+            12200, 10200, 7950, 7400, 6700, 5900, 5150, 4750
+    };
+
+    private static final int[] AMR_NB_FRAME_SIZES = {
+            32, 27, 21, 20, 18, 16, 14, 13
+    };
+
+    // the modes in between add little over their neighbours
+    private static final int[] AMR_WB_RATES = {
+            23850, 19850, 15850, 12650
+    };
+
+    private static final int[] AMR_WB_FRAME_SIZES = {
+            61, 51, 41, 33
+    };
+
+    private static final int AMR_NB_HEADER_BYTES = 6; // "#!AMR\n"
+
+    private static final int AMR_WB_HEADER_BYTES = 9; // "#!AMR-WB\n"
+
+    public final int outputFormat;
+
+    public final int audioEncoder;
+
+    public final int sampleRate;
+
+    public final int bitRate;
+
+    // growth of the file, including container overhead
+    private final float mBytesPerSecond;
+
+    private final int mHeaderBytes;
+
+    private EncoderSettings(int outputFormat, int audioEncoder, int sampleRate, int bitRate,
+            float bytesPerSecond, int headerBytes) {
+        this.outputFormat = outputFormat;
+        this.audioEncoder = audioEncoder;
+        this.sampleRate = sampleRate;
+        this.bitRate = bitRate;
+        mBytesPerSecond = bytesPerSecond;
+        mHeaderBytes = headerBytes;
+    }
+
+    /**
+     * Returns the predicted size of a recording of the given length.
+     */
+    public long bytesFor(long millis) {
+        return mHeaderBytes + (long) Math.ceil(mBytesPerSecond * millis / 1000);
+    }
+
+    /**
+     * Returns the length of recording that fits in the given size.
+     */
+    public long millisFor(long bytes) {
+        return Math.max(0, (long) ((bytes - mHeaderBytes) * 1000 / mBytesPerSecond));
+    }
+
+    /**
+     * Returns the rate the file grows at, in bits per second.
+     */
+    public int fileBitRate() {
+        return (int) Math.ceil(mBytesPerSecond * 8);
+    }
+
+    @Override
+    public String toString() {
+        String encoder;
+        if (audioEncoder == MediaRecorder.AudioEncoder.AAC) {
+            encoder = "AAC";
+        } else if (audioEncoder == MediaRecorder.AudioEncoder.AMR_WB) {
+            encoder = "AMR-WB";
+        } else {
+            encoder = "AMR-NB";
+        }
+        return encoder + " " + sampleRate + " Hz " + bitRate + " bit/s";
+    }
+
+    /**
+     * Returns the best settings whose recording fits in maxBytes.
+     *
+     * @param outputFormat the container, THREE_GPP or one of the AMR formats
+     * @param highQuality whether the ladder starts at the high quality
+     *            settings
+     * @param expectedMillis the expected length of the recording, or -1 if it
+     *            is open ended
+     * @param codecs settings the device doesn't record with are skipped
+     */
+    public static EncoderSettings forSize(int outputFormat, boolean highQuality, long maxBytes,
+            long expectedMillis, CodecProfile codecs) {
+        long millis = expectedMillis > 0 ? expectedMillis : OPEN_ENDED_MILLIS;
+        ArrayList<EncoderSettings> ladder = ladder(outputFormat, highQuality);
+        for (int i = ladder.size() - 1; i >= 0 && ladder.size() > 1; i--) {
+            EncoderSettings settings = ladder.get(i);
+            if (!codecs.isSupported(settings.outputFormat, settings.audioEncoder,
+                    settings.sampleRate, 1)) {
+                ladder.remove(i);
+            }
+        }
+        for (EncoderSettings settings : ladder) {
+            if (settings.bytesFor(millis) <= maxBytes) {
+                return settings;
+            }
+        }
+        // the longest recording within the budget
+        return ladder.get(ladder.size() - 1);
+    }
+
+    /**
+     * Returns the settings for the given parameters, to predict the size of
+     * their recordings. AMR is encoded in the highest mode within bitRate.
+     */
+    public static EncoderSettings of(int outputFormat, int audioEncoder, int sampleRate,
+            int bitRate) {
+        if (audioEncoder == MediaRecorder.AudioEncoder.AAC) {
+            return aac(sampleRate, bitRate);
+        }
+        ArrayList<EncoderSettings> modes = new ArrayList<EncoderSettings>();
+        addAmr(modes, outputFormat, audioEncoder == MediaRecorder.AudioEncoder.AMR_WB);
+        for (EncoderSettings settings : modes) {
+            if (settings.bitRate <= bitRate) {
+                return settings;
+            }
+        }
+        return modes.get(modes.size() - 1);
+    }
+
+    private static ArrayList<EncoderSettings> ladder(int outputFormat, boolean highQuality) {
+        ArrayList<EncoderSettings> ladder = new ArrayList<EncoderSettings>();
+        if (outputFormat == MediaRecorder.OutputFormat.THREE_GPP) {
+            if (highQuality) {
+                ladder.add(aac(44100, 64000));
+                ladder.add(aac(32000, 48000));
+            }
+            ladder.add(aac(22050, 32000));
+            ladder.add(aac(16000, 24000));
+            // below that AMR-NB in the 3GPP file sounds better than AAC
+            addAmr(ladder, outputFormat, false);
+        } else {
+            if (highQuality) {
+                addAmr(ladder, MediaRecorder.OutputFormat.AMR_WB, true);
+            }
+            addAmr(ladder, MediaRecorder.OutputFormat.AMR_NB, false);
+        }
+        return ladder;
+    }
+
+    private static EncoderSettings aac(int sampleRate, int bitRate) {
+        float bytesPerSecond = bitRate / 8f * AAC_MARGIN + MP4_TABLE_BYTES
+                * ((float) sampleRate / AAC_FRAME_SAMPLES + 1);
+        return new EncoderSettings(MediaRecorder.OutputFormat.THREE_GPP,
+                MediaRecorder.AudioEncoder.AAC, sampleRate, bitRate, bytesPerSecond,
+                MP4_HEADER_BYTES);
+    }
+
+    private static void addAmr(ArrayList<EncoderSettings> ladder, int outputFormat,
+            boolean wideband) {
+        int[] rates = wideband ? AMR_WB_RATES : AMR_NB_RATES;
+        int[] sizes = wideband ? AMR_WB_FRAME_SIZES : AMR_NB_FRAME_SIZES;
+        boolean mp4 = outputFormat == MediaRecorder.OutputFormat.THREE_GPP;
+        int header;
+        if (mp4) {
+            header = MP4_HEADER_BYTES;
+        } else {
+            header = wideband ? AMR_WB_HEADER_BYTES : AMR_NB_HEADER_BYTES;
+        }
+        for (int i = 0; i < rates.length; i++) {
+            // all frames of one mode have the same size, so the MP4 sample
+            // table is a single entry
+            float bytesPerSecond = sizes[i] * AMR_FRAMES_PER_SECOND
+                    + (mp4 ? MP4_TABLE_BYTES : 0);
+            ladder.add(new EncoderSettings(outputFormat, wideband
+                    ? MediaRecorder.AudioEncoder.AMR_WB : MediaRecorder.AudioEncoder.AMR_NB,
+                    wideband ? 16000 : 8000, rates[i], bytesPerSecond, header));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+/**
+ * In-place radix-2 complex FFT of a fixed size. The twiddle factors and the
+ * bit reversal permutation are computed once, transforms allocate nothing.
+ */
+public class Fft {
+    private final int mSize;
+
+    private final float[] mCos;
+
+    private final float[] mSin;
+
+    private final int[] mReversed;
+
+    /**
+     * @param size the transform size, a power of two
+     */
+    public Fft(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("size must be a power of two: " + size);
+        }
+        mSize = size;
+        mCos = new float[size / 2];
+        mSin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / size);
+            mSin[i] = (float) Math.sin(2 * Math.PI * i / size);
+        }
+
+        mReversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            mReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Transforms the complex signal in place. The inverse transform is scaled
+     * by 1 / size.
+     */
+    public void transform(float[] re, float[] im, boolean inverse) {
+        int n = mSize;
+        for (int i = 0; i < n; i++) {
+            int j = mReversed[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+
+        float sign = inverse ? 1 : -1;
+        for (int length = 2; length <= n; length <<= 1) {
+            int half = length >> 1;
+            int step = n / length;
+            for (int start = 0; start < n; start += length) {
+                for (int k = 0; k < half; k++) {
+                    float wr = mCos[k * step];
+                    float wi = sign * mSin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+
+        if (inverse) {
+            float scale = 1f / n;
+            for (int i = 0; i < n; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+}
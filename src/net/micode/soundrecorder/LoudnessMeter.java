@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures integrated loudness and true peak as defined by ITU-R BS.1770 and
+ * EBU R128. Gating blocks of 400 ms overlap by 75%, their loudness is kept in
+ * a histogram of 0.1 LU bins instead of a list, so a meter needs the same
+ * memory for a minute as for hours. Meters of adjacent parts of a file can be
+ * merged, which is how a file is measured on several threads.
+ */
+public class LoudnessMeter {
+    private static final String TAG = "LoudnessMeter";
+
+    private static final float ABSOLUTE_GATE = -70;
+
+    private static final float RELATIVE_GATE = -10;
+
+    // histogram range in LUFS and bins per LU
+    private static final float MAX_LOUDNESS = 10;
+
+    private static final int BINS_PER_LU = 10;
+
+    private static final int BINS = (int) ((MAX_LOUDNESS - ABSOLUTE_GATE) * BINS_PER_LU);
+
+    // a gating block is four steps of 100 ms
+    private static final int STEPS_PER_SECOND = 10;
+
+    private static final int STEPS_PER_BLOCK = 4;
+
+    // 4x oversampling for the true peak, 12 taps per phase
+    private static final int OVERSAMPLING = 4;
+
+    private static final int TAPS = 12;
+
+    private static final int MIN_CHUNK_SECONDS = 10;
+
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * The result of a measurement.
+     */
+    public static class Loudness {
+        /** integrated loudness in LUFS, negative infinity for silence */
+        public final float integrated;
+
+        /** true peak in dBTP */
+        public final float truePeak;
+
+        public Loudness(float integrated, float truePeak) {
+            this.integrated = integrated;
+            this.truePeak = truePeak;
+        }
+    }
+
+    private final int mStepSize;
+
+    // K-weighting, a high shelf followed by a high-pass, see BS.1770
+    private final double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+
+    private final double mHighPassA1, mHighPassA2;
+
+    private double mShelfZ1, mShelfZ2, mHighPassZ1, mHighPassZ2;
+
+    private final double[] mSteps = new double[STEPS_PER_BLOCK];
+
+    private int mStepCount;
+
+    private int mStepPosition;
+
+    private double mStepEnergy;
+
+    private final long[] mCounts = new long[BINS];
+
+    private final double[] mEnergies = new double[BINS];
+
+    private boolean mCounting = true;
+
+    private final float[] mInterpolator = new float[OVERSAMPLING * TAPS];
+
+    // the last samples, stored twice so the taps are read without wrapping
+    private final float[] mHistory = new float[TAPS * 2];
+
+    private int mHistoryPosition;
+
+    private float mPeak;
+
+    public LoudnessMeter(int sampleRate) {
+        mStepSize = sampleRate / STEPS_PER_SECOND;
+
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2 * (k * k - 1) / a0;
+        mShelfA2 = (1 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        mHighPassA1 = 2 * (k * k - 1) / a0;
+        mHighPassA2 = (1 - k / q + k * k) / a0;
+
+        // windowed sinc, phase p of the output uses taps p, p + 4, ...
+        int length = mInterpolator.length;
+        double center = (length - 1) / 2.0;
+        for (int i = 0; i < length; i++) {
+            double x = (i - center) / OVERSAMPLING;
+            double sinc = Math.sin(Math.PI * x) / (Math.PI * x);
+            double window = 0.5 + 0.5 * Math.cos(2 * Math.PI * (i - center) / (length + 1));
+            mInterpolator[i] = (float) (sinc * window);
+        }
+    }
+
+    /**
+     * Sets whether the following samples count towards the result. Samples
+     * that don't count still settle the filters and fill the gating blocks,
+     * so the part before a chunk can be fed first.
+     */
+    public void setCounting(boolean counting) {
+        mCounting = counting;
+    }
+
+    public void process(float[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            double x = samples[i];
+            double y = mShelfB0 * x + mShelfZ1;
+            mShelfZ1 = mShelfB1 * x - mShelfA1 * y + mShelfZ2;
+            mShelfZ2 = mShelfB2 * x - mShelfA2 * y;
+            x = y;
+            y = x + mHighPassZ1;
+            mHighPassZ1 = -2 * x - mHighPassA1 * y + mHighPassZ2;
+            mHighPassZ2 = x - mHighPassA2 * y;
+            mStepEnergy += y * y;
+
+            if (++mStepPosition == mStepSize) {
+                endStep();
+            }
+
+            float sample = samples[i];
+            mHistory[mHistoryPosition] = sample;
+            mHistory[mHistoryPosition + TAPS] = sample;
+            mHistoryPosition = mHistoryPosition == TAPS - 1 ? 0 : mHistoryPosition + 1;
+            if (mCounting) {
+                truePeak(sample);
+            }
+        }
+    }
+
+    private void endStep() {
+        mSteps[mStepCount % STEPS_PER_BLOCK] = mStepEnergy;
+        mStepCount++;
+        mStepEnergy = 0;
+        mStepPosition = 0;
+        if (!mCounting || mStepCount < STEPS_PER_BLOCK) {
+            return;
+        }
+
+        double sum = 0;
+        for (int i = 0; i < STEPS_PER_BLOCK; i++) {
+            sum += mSteps[i];
+        }
+        double energy = sum / (mStepSize * STEPS_PER_BLOCK);
+        float loudness = loudness(energy);
+        if (loudness < ABSOLUTE_GATE) {
+            return;
+        }
+        int bin = Math.min(BINS - 1, (int) ((loudness - ABSOLUTE_GATE) * BINS_PER_LU));
+        mCounts[bin]++;
+        mEnergies[bin] += energy;
+    }
+
+    private void truePeak(float sample) {
+        float peak = mPeak;
+        // the oldest sample meets the last tap
+        int oldest = mHistoryPosition;
+        for (int phase = 0; phase < OVERSAMPLING; phase++) {
+            float y = 0;
+            for (int tap = 0; tap < TAPS; tap++) {
+                y += mInterpolator[(TAPS - 1 - tap) * OVERSAMPLING + phase]
+                        * mHistory[oldest + tap];
+            }
+            peak = Math.max(peak, Math.abs(y));
+        }
+        mPeak = Math.max(peak, Math.abs(sample));
+    }
+
+    /**
+     * Adds the blocks and the peak measured by another meter.
+     */
+    public void merge(LoudnessMeter other) {
+        for (int i = 0; i < BINS; i++) {
+            mCounts[i] += other.mCounts[i];
+            mEnergies[i] += other.mEnergies[i];
+        }
+        mPeak = Math.max(mPeak, other.mPeak);
+    }
+
+    public Loudness result() {
+        long count = 0;
+        double energy = 0;
+        for (int i = 0; i < BINS; i++) {
+            count += mCounts[i];
+            energy += mEnergies[i];
+        }
+        float integrated = Float.NEGATIVE_INFINITY;
+        if (count > 0) {
+            // the relative gate is applied at the resolution of the bins
+            float gate = loudness(energy / count) + RELATIVE_GATE;
+            int first = (int) Math.max(0, Math.ceil((gate - ABSOLUTE_GATE) * BINS_PER_LU));
+            count = 0;
+            energy = 0;
+            for (int i = first; i < BINS; i++) {
+                count += mCounts[i];
+                energy += mEnergies[i];
+            }
+            if (count > 0) {
+                integrated = loudness(energy / count);
+            }
+        }
+        float truePeak = mPeak > 0 ? (float) (20 * Math.log10(mPeak)) : Float.NEGATIVE_INFINITY;
+        return new Loudness(integrated, truePeak);
+    }
+
+    private static float loudness(double energy) {
+        return (float) (-0.691 + 10 * Math.log10(energy));
+    }
+
+    /**
+     * Measures a 16 bit mono WAV file on up to the given number of threads.
+     */
+    public static Loudness measure(File file, int threads, final ProgressListener listener)
+            throws IOException {
+        long started = SystemClock.elapsedRealtime();
+        WavReader reader = new WavReader(file);
+        final int sampleRate = reader.getSampleRate();
+        final long samples = reader.getSampleCount();
+        reader.close();
+
+        long minChunk = (long) MIN_CHUNK_SECONDS * sampleRate;
+        int chunks = (int) Math.max(1, Math.min(threads, samples / minChunk));
+        // chunk boundaries fall on the 100 ms steps of the gating blocks
+        int step = sampleRate / STEPS_PER_SECOND;
+        long chunkSize = (samples / chunks + step - 1) / step * step;
+        final AtomicLong done = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            ArrayList<Future<LoudnessMeter>> results = new ArrayList<Future<LoudnessMeter>>();
+            for (int i = 0; i < chunks; i++) {
+                long start = i * chunkSize;
+                long end = i == chunks - 1 ? samples : Math.min(samples, start + chunkSize);
+                results.add(executor.submit(new MeasureChunk(file, start, end, step) {
+                    @Override
+                    void onProgress(int count) {
+                        if (listener != null) {
+                            listener.onProgress(done.addAndGet(count), samples);
+                        }
+                    }
+                }));
+            }
+            LoudnessMeter meter = null;
+            for (Future<LoudnessMeter> result : results) {
+                if (meter == null) {
+                    meter = result.get();
+                } else {
+                    meter.merge(result.get());
+                }
+            }
+
+            Loudness loudness = meter.result();
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - started);
+            float factor = (float) (samples * 1000 / sampleRate) / elapsed;
+            Log.d(TAG, file.getName() + ": " + loudness.integrated + " LUFS, "
+                    + loudness.truePeak + " dBTP, measured in " + elapsed + " ms on " + chunks
+                    + " threads, " + factor + "x real time");
+            return loudness;
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Measures the samples from start to end. The 300 ms before start are
+     * fed first without counting, so the blocks straddling the start of the
+     * chunk are measured exactly once.
+     */
+    private static abstract class MeasureChunk implements Callable<LoudnessMeter> {
+        private final File mFile;
+
+        private final long mStart;
+
+        private final long mEnd;
+
+        private final int mStep;
+
+        MeasureChunk(File file, long start, long end, int step) {
+            mFile = file;
+            mStart = start;
+            mEnd = end;
+            mStep = step;
+        }
+
+        abstract void onProgress(int count);
+
+        public LoudnessMeter call() throws IOException {
+            // lowered further by the queue while recording
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            WavReader reader = new WavReader(mFile);
+            try {
+                LoudnessMeter meter = new LoudnessMeter(reader.getSampleRate());
+                float[] block = new float[BLOCK_SIZE];
+                if (mStart > 0) {
+                    long from = mStart - (long) mStep * (STEPS_PER_BLOCK - 1);
+                    reader.seek(from);
+                    meter.setCounting(false);
+                    for (long position = from; position < mStart; position += BLOCK_SIZE) {
+                        int count = (int) Math.min(BLOCK_SIZE, mStart - position);
+                        reader.read(block, 0, count);
+                        meter.process(block, 0, count);
+                    }
+                    meter.setCounting(true);
+                } else {
+                    reader.seek(0);
+                }
+
+                for (long position = mStart; position < mEnd; position += BLOCK_SIZE) {
+                    int count = (int) Math.min(BLOCK_SIZE, mEnd - position);
+                    reader.read(block, 0, count);
+                    meter.process(block, 0, count);
+                    onProgress(count);
+                }
+                return meter;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Brings WAV recordings to a common loudness. The first pass measures the
+ * recording, or takes the measurement from its metadata, the second writes a
+ * copy with the gain applied. The gain is limited so the true peak stays
+ * below -1 dBTP.
+ */
+public class LoudnessNormalizer {
+    private static final String TAG = "LoudnessNormalizer";
+
+    // the usual level for spoken word on mobile devices, R128 broadcast is -23
+    public static final float TARGET_LOUDNESS = -16;
+
+    public static final float MAX_TRUE_PEAK = -1;
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private LoudnessNormalizer() {
+    }
+
+    /**
+     * Returns the loudness of a recording, measuring it only if its metadata
+     * has no valid measurement yet.
+     */
+    public static LoudnessMeter.Loudness measure(File recording, int threads,
+            ProgressListener listener) throws IOException {
+        RecordingMetadata metadata = RecordingMetadata.load(recording);
+        if (metadata.contains(RecordingMetadata.KEY_LOUDNESS)
+                && metadata.contains(RecordingMetadata.KEY_TRUE_PEAK)) {
+            return new LoudnessMeter.Loudness(
+                    metadata.getFloat(RecordingMetadata.KEY_LOUDNESS, 0),
+                    metadata.getFloat(RecordingMetadata.KEY_TRUE_PEAK, 0));
+        }
+
+        LoudnessMeter.Loudness loudness = LoudnessMeter.measure(recording, threads, listener);
+        metadata.putFloat(RecordingMetadata.KEY_LOUDNESS, loudness.integrated);
+        metadata.putFloat(RecordingMetadata.KEY_TRUE_PEAK, loudness.truePeak);
+        try {
+            metadata.save();
+        } catch (IOException e) {
+            Log.w(TAG, "unable to cache the loudness of " + recording + ": " + e);
+        }
+        return loudness;
+    }
+
+    /**
+     * Returns the gain in dB that brings a recording to the target loudness.
+     */
+    public static float gain(LoudnessMeter.Loudness loudness) {
+        if (Float.isInfinite(loudness.integrated)) {
+            return 0;
+        }
+        return Math.min(TARGET_LOUDNESS - loudness.integrated,
+                MAX_TRUE_PEAK - loudness.truePeak);
+    }
+
+    /**
+     * Writes a normalized copy of a 16 bit mono WAV recording. Progress is
+     * reported in samples over both passes.
+     *
+     * @return the duration of the copy in milliseconds
+     */
+    public static long normalize(File source, File target, int threads,
+            final ProgressListener listener) throws IOException {
+        WavReader reader = new WavReader(source);
+        try {
+            final long samples = reader.getSampleCount();
+            LoudnessMeter.Loudness loudness = measure(source, threads, new ProgressListener() {
+                public void onProgress(long done, long total) {
+                    if (listener != null) {
+                        listener.onProgress(done, samples * 2);
+                    }
+                }
+            });
+            float gainDb = gain(loudness);
+            float gain = DspChain.dbToLinear(gainDb);
+            Log.d(TAG, "applying " + gainDb + " dB to " + source.getName());
+
+            WavWriter writer = new WavWriter(target, reader.getSampleRate(), 1,
+                    WavWriter.FORMAT_PCM, true);
+            try {
+                float[] block = new float[BLOCK_SIZE];
+                byte[] bytes = new byte[BLOCK_SIZE * 2];
+                for (long position = 0; position < samples; position += BLOCK_SIZE) {
+                    int count = (int) Math.min(BLOCK_SIZE, samples - position);
+                    reader.read(block, 0, count);
+                    for (int i = 0; i < count; i++) {
+                        float x = block[i] * gain * 32768f;
+                        int sample = x >= 32767 ? 32767 : x <= -32768 ? -32768 : (int) x;
+                        bytes[i * 2] = (byte) sample;
+                        bytes[i * 2 + 1] = (byte) (sample >> 8);
+                    }
+                    writer.write(bytes, 0, count * 2);
+                    if (listener != null) {
+                        listener.onProgress(samples + position + count, samples * 2);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            return reader.getDuration();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Adds recordings to the media database and to the recordings playlist.
+ * May be called from any thread.
+ */
+public class MediaStoreHelper {
+    private static final String TAG = "MediaStoreHelper";
+
+    private MediaStoreHelper() {
+    }
+
+    /**
+     * Returns the MIME type of a recording from its extension.
+     */
+    public static String mimeType(File file) {
+        String name = file.getName();
+        if (name.endsWith(".amr")) {
+            return SoundRecorder.AUDIO_AMR;
+        } else if (name.endsWith(".wav")) {
+            return SoundRecorder.AUDIO_WAV;
+        }
+        return SoundRecorder.AUDIO_3GPP;
+    }
+
+    /*
+     * A simple utility to do a query into the databases.
+     */
+    private static Cursor query(ContentResolver resolver, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        try {
+            if (resolver == null) {
+                return null;
+            }
+            return resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        } catch (UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the media database has a row for the file.
+     */
+    public static boolean isRegistered(Context context, File file) {
+        Cursor cursor = query(context.getContentResolver(),
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, new String[] {
+                    MediaStore.Audio.Media._ID
+                }, MediaStore.Audio.Media.DATA + "=?", new String[] {
+                    file.getAbsolutePath()
+                }, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Removes the rows of the file from the media database.
+     */
+    public static void removeRecording(Context context, File file) {
+        context.getContentResolver().delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                MediaStore.Audio.Media.DATA + "=?", new String[] {
+                    file.getAbsolutePath()
+                });
+    }
+
+    /*
+     * Add the given audioId to the playlist with the given playlistId; and
+     * maintain the play_order in the playlist.
+     */
+    private static void addToPlaylist(ContentResolver resolver, int audioId, long playlistId) {
+        String[] cols = new String[] {
+            "count(*)"
+        };
+        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId);
+        Cursor cur = resolver.query(uri, cols, null, null, null);
+        cur.moveToFirst();
+        final int base = cur.getInt(0);
+        cur.close();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Integer.valueOf(base + audioId));
+        values.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, audioId);
+        resolver.insert(uri, values);
+    }
+
+    /*
+     * Obtain the id for the default play list from the audio_playlists table.
+     */
+    private static int getPlaylistId(Resources res, ContentResolver resolver) {
+        Uri uri = MediaStore.Audio.Playlists.getContentUri("external");
+        final String[] ids = new String[] {
+            MediaStore.Audio.Playlists._ID
+        };
+        final String where = MediaStore.Audio.Playlists.NAME + "=?";
+        final String[] args = new String[] {
+            res.getString(R.string.audio_db_playlist_name)
+        };
+        Cursor cursor = query(resolver, uri, ids, where, args, null);
+        if (cursor == null) {
+            Log.v(TAG, "query returns null");
+        }
+        int id = -1;
+        if (cursor != null) {
+            cursor.moveToFirst();
+            if (!cursor.isAfterLast()) {
+                id = cursor.getInt(0);
+            }
+            cursor.close();
+        }
+        return id;
+    }
+
+    /*
+     * Create a playlist with the given default playlist name, if no such
+     * playlist exists.
+     */
+    private static Uri createPlaylist(Resources res, ContentResolver resolver) {
+        ContentValues cv = new ContentValues();
+        cv.put(MediaStore.Audio.Playlists.NAME, res.getString(R.string.audio_db_playlist_name));
+        Uri uri = resolver.insert(MediaStore.Audio.Playlists.getContentUri("external"), cv);
+        if (uri == null) {
+            Log.w(TAG, res.getString(R.string.error_mediadb_new_record));
+        }
+        return uri;
+    }
+
+    /**
+     * Adds file and returns content uri.
+     *
+     * @throws UnsupportedOperationException if the media database can't be
+     *             written
+     */
+    public static Uri addRecording(Context context, File file, long durationMillis,
+            String mimeType) {
+        Resources res = context.getResources();
+        ContentValues cv = new ContentValues();
+        long current = System.currentTimeMillis();
+        long modDate = file.lastModified();
+        Date date = new Date(current);
+        SimpleDateFormat formatter = new SimpleDateFormat(
+                res.getString(R.string.audio_db_title_format));
+        String title = formatter.format(date);
+
+        // Lets label the recorded audio file as NON-MUSIC so that the file
+        // won't be displayed automatically, except for in the playlist.
+        cv.put(MediaStore.Audio.Media.IS_MUSIC, "0");
+
+        cv.put(MediaStore.Audio.Media.TITLE, title);
+        cv.put(MediaStore.Audio.Media.DATA, file.getAbsolutePath());
+        cv.put(MediaStore.Audio.Media.DATE_ADDED, (int) (current / 1000));
+        cv.put(MediaStore.Audio.Media.DATE_MODIFIED, (int) (modDate / 1000));
+        cv.put(MediaStore.Audio.Media.DURATION, durationMillis);
+        cv.put(MediaStore.Audio.Media.MIME_TYPE, mimeType);
+        cv.put(MediaStore.Audio.Media.ARTIST, res.getString(R.string.audio_db_artist_name));
+        cv.put(MediaStore.Audio.Media.ALBUM, res.getString(R.string.audio_db_album_name));
+        Log.d(TAG, "Inserting audio record: " + cv.toString());
+        ContentResolver resolver = context.getContentResolver();
+        Uri base = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        Log.d(TAG, "ContentURI: " + base);
+        Uri result = resolver.insert(base, cv);
+        if (result == null) {
+            Log.w(TAG, res.getString(R.string.error_mediadb_new_record));
+            return null;
+        }
+
+        if (getPlaylistId(res, resolver) == -1) {
+            createPlaylist(res, resolver);
+        }
+        int audioId = Integer.valueOf(result.getLastPathSegment());
+        addToPlaylist(resolver, audioId, getPlaylistId(res, resolver));
+
+        // Notify those applications such as Music listening to the
+        // scanner events that a recorded audio file just created.
+        context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, result));
+        return result;
+    }
+}
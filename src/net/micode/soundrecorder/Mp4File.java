@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * The layout of an MP4 (3GPP) file as MediaRecorder writes it: one media
+ * data box and a movie box with a single audio track. Only the headers of
+ * the boxes and of the sample tables are read, so a file of any length is
+ * described in a few hundred bytes.
+ */
+public class Mp4File {
+    public static final int FTYP = 0x66747970; // 'ftyp'
+
+    public static final int MDAT = 0x6d646174; // 'mdat'
+
+    public static final int MOOV = 0x6d6f6f76; // 'moov'
+
+    public static final int MVHD = 0x6d766864; // 'mvhd'
+
+    public static final int TRAK = 0x7472616b; // 'trak'
+
+    public static final int TKHD = 0x746b6864; // 'tkhd'
+
+    public static final int EDTS = 0x65647473; // 'edts'
+
+    public static final int MDIA = 0x6d646961; // 'mdia'
+
+    public static final int MDHD = 0x6d646864; // 'mdhd'
+
+    public static final int MINF = 0x6d696e66; // 'minf'
+
+    public static final int STBL = 0x7374626c; // 'stbl'
+
+    public static final int STSD = 0x73747364; // 'stsd'
+
+    public static final int STTS = 0x73747473; // 'stts'
+
+    public static final int STSC = 0x73747363; // 'stsc'
+
+    public static final int STSZ = 0x7374737a; // 'stsz'
+
+    public static final int STCO = 0x7374636f; // 'stco'
+
+    public static final int CO64 = 0x636f3634; // 'co64'
+
+    public static final int STSS = 0x73747373; // 'stss'
+
+    public static final int CTTS = 0x63747473; // 'ctts'
+
+    public static final int HDLR = 0x68646c72; // 'hdlr'
+
+    public static final int SOUN = 0x736f756e; // 'soun'
+
+    public static final int SAMR = 0x73616d72; // 'samr'
+
+    public static final int SAWB = 0x73617762; // 'sawb'
+
+    public static final int MP4A = 0x6d703461; // 'mp4a'
+
+    /**
+     * The position of a box in the file.
+     */
+    public static class Box {
+        public final int type;
+
+        public final long offset;
+
+        public final long size;
+
+        public final int headerSize;
+
+        Box(int type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        public long dataOffset() {
+            return offset + headerSize;
+        }
+
+        public long dataSize() {
+            return size - headerSize;
+        }
+
+        public long end() {
+            return offset + size;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+
+    private Box mFtyp;
+
+    private Box mMdat;
+
+    private Box mMoov;
+
+    private Box mStsd;
+
+    private Box mStts;
+
+    private Box mStsc;
+
+    private Box mStsz;
+
+    private Box mChunkOffsets;
+
+    private long mMovieTimescale;
+
+    private long mMediaTimescale;
+
+    private long mSampleSize;
+
+    private long mSampleCount;
+
+    private long mChunkCount;
+
+    private long mTimeEntries;
+
+    private long mChunkEntries;
+
+    private boolean mSyncTable;
+
+    /**
+     * Reads the layout of a file, which is left open until close().
+     *
+     * @throws IOException if the file can't be read or is not a finished
+     *             single track MP4 file
+     */
+    public Mp4File(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            parse();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    private void parse() throws IOException {
+        for (Box box : children(0, mFile.length())) {
+            if (box.type == FTYP && mFtyp == null) {
+                mFtyp = box;
+            } else if (box.type == MDAT) {
+                if (mMdat != null) {
+                    throw new IOException("more than one media data box");
+                }
+                mMdat = box;
+            } else if (box.type == MOOV) {
+                mMoov = box;
+            }
+        }
+        if (mFtyp == null || mMdat == null || mMoov == null) {
+            throw new IOException("not a finished MP4 file");
+        }
+
+        Box trak = null;
+        for (Box box : children(mMoov)) {
+            if (box.type == MVHD) {
+                mMovieTimescale = readTimescale(box);
+            } else if (box.type == TRAK) {
+                if (trak != null) {
+                    throw new IOException("more than one track");
+                }
+                trak = box;
+            }
+        }
+        Box mdia = child(trak, MDIA);
+        mMediaTimescale = readTimescale(child(mdia, MDHD));
+        Box stbl = child(child(mdia, MINF), STBL);
+        for (Box box : children(stbl)) {
+            switch (box.type) {
+                case STSD:
+                    mStsd = box;
+                    break;
+                case STTS:
+                    mStts = box;
+                    break;
+                case STSC:
+                    mStsc = box;
+                    break;
+                case STSZ:
+                    mStsz = box;
+                    break;
+                case STCO:
+                case CO64:
+                    mChunkOffsets = box;
+                    break;
+                case STSS:
+                case CTTS:
+                    mSyncTable = true;
+                    break;
+            }
+        }
+        if (mMovieTimescale <= 0 || mMediaTimescale <= 0 || mStsd == null || mStts == null
+                || mStsc == null || mStsz == null || mChunkOffsets == null) {
+            throw new IOException("incomplete sample tables");
+        }
+
+        mFile.seek(mStts.dataOffset() + 4);
+        mTimeEntries = mFile.readInt() & 0xffffffffL;
+        mFile.seek(mStsc.dataOffset() + 4);
+        mChunkEntries = mFile.readInt() & 0xffffffffL;
+        mFile.seek(mStsz.dataOffset() + 4);
+        mSampleSize = mFile.readInt() & 0xffffffffL;
+        mSampleCount = mFile.readInt() & 0xffffffffL;
+        mFile.seek(mChunkOffsets.dataOffset() + 4);
+        mChunkCount = mFile.readInt() & 0xffffffffL;
+        if (mStts.dataSize() < 8 + mTimeEntries * 8 || mStsc.dataSize() < 8 + mChunkEntries * 12
+                || (mSampleSize == 0 && mStsz.dataSize() < 12 + mSampleCount * 4)
+                || mChunkOffsets.dataSize() < 8 + mChunkCount * chunkOffsetSize()) {
+            throw new IOException("truncated sample tables");
+        }
+    }
+
+    /*
+     * Reads the time scale of a movie or media header, which have the same
+     * layout up to it.
+     */
+    private long readTimescale(Box header) throws IOException {
+        mFile.seek(header.dataOffset());
+        int version = mFile.readUnsignedByte();
+        mFile.seek(header.dataOffset() + (version == 1 ? 20 : 12));
+        return mFile.readInt() & 0xffffffffL;
+    }
+
+    /**
+     * Reads the header of the box at an offset, or returns null if there is
+     * no valid box before the limit.
+     */
+    public Box readBox(long offset, long limit) throws IOException {
+        return readBox(mFile, offset, limit);
+    }
+
+    /**
+     * Reads the header of the box at an offset of a file, with a single read.
+     */
+    static Box readBox(RandomAccessFile file, long offset, long limit) throws IOException {
+        if (offset < 0 || offset + 8 > limit) {
+            return null;
+        }
+        byte[] header = new byte[(int) Math.min(16, limit - offset)];
+        file.seek(offset);
+        file.readFully(header);
+        long size = getInt(header, 0);
+        int type = (int) getInt(header, 4);
+        int headerSize = 8;
+        if (size == 1) {
+            if (header.length < 16) {
+                return null;
+            }
+            size = getInt(header, 8) << 32 | getInt(header, 12);
+            headerSize = 16;
+        } else if (size == 0) {
+            // the box runs to the end of the file
+            size = limit - offset;
+        }
+        if (size < headerSize || size > limit - offset) {
+            return null;
+        }
+        return new Box(type, offset, size, headerSize);
+    }
+
+    public ArrayList<Box> children(Box parent) throws IOException {
+        return children(parent.dataOffset(), parent.end());
+    }
+
+    private ArrayList<Box> children(long offset, long end) throws IOException {
+        ArrayList<Box> boxes = new ArrayList<Box>();
+        Box box;
+        while ((box = readBox(offset, end)) != null) {
+            boxes.add(box);
+            offset = box.end();
+        }
+        return boxes;
+    }
+
+    /**
+     * Returns the first child of a box with the given type.
+     *
+     * @throws IOException if there is none
+     */
+    public Box child(Box parent, int type) throws IOException {
+        if (parent != null) {
+            for (Box box : children(parent)) {
+                if (box.type == type) {
+                    return box;
+                }
+            }
+        }
+        throw new IOException("missing box " + Integer.toHexString(type));
+    }
+
+    public RandomAccessFile file() {
+        return mFile;
+    }
+
+    public Box ftyp() {
+        return mFtyp;
+    }
+
+    public Box mdat() {
+        return mMdat;
+    }
+
+    public Box moov() {
+        return mMoov;
+    }
+
+    public Box stsd() {
+        return mStsd;
+    }
+
+    public Box stts() {
+        return mStts;
+    }
+
+    public Box stsc() {
+        return mStsc;
+    }
+
+    public Box stsz() {
+        return mStsz;
+    }
+
+    /**
+     * Returns the chunk offset table, a 'stco' or a 'co64' box.
+     */
+    public Box chunkOffsets() {
+        return mChunkOffsets;
+    }
+
+    public int chunkOffsetSize() {
+        return mChunkOffsets.type == CO64 ? 8 : 4;
+    }
+
+    public long movieTimescale() {
+        return mMovieTimescale;
+    }
+
+    public long mediaTimescale() {
+        return mMediaTimescale;
+    }
+
+    /**
+     * Returns the size of all samples, or 0 if they have a size each.
+     */
+    public long sampleSize() {
+        return mSampleSize;
+    }
+
+    public long sampleCount() {
+        return mSampleCount;
+    }
+
+    public long chunkCount() {
+        return mChunkCount;
+    }
+
+    public long timeEntries() {
+        return mTimeEntries;
+    }
+
+    public long chunkEntries() {
+        return mChunkEntries;
+    }
+
+    /**
+     * Returns whether the track has sync sample or composition offset tables,
+     * which audio tracks don't need.
+     */
+    public boolean hasSyncTable() {
+        return mSyncTable;
+    }
+
+    /**
+     * Returns the duration of the track in units of the media time scale,
+     * summed over the time to sample table.
+     */
+    public long mediaDuration() throws IOException {
+        mFile.seek(mStts.dataOffset() + 8);
+        byte[] entries = new byte[(int) Math.min(mTimeEntries * 8, 64 * 1024)];
+        long duration = 0;
+        long left = mTimeEntries * 8;
+        while (left > 0) {
+            int length = (int) Math.min(left, entries.length);
+            mFile.readFully(entries, 0, length);
+            for (int i = 0; i < length; i += 8) {
+                duration += getInt(entries, i) * getInt(entries, i + 4);
+            }
+            left -= length;
+        }
+        return duration;
+    }
+
+    /**
+     * Reads an unsigned big endian 32 bit value.
+     */
+    static long getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xffL) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Rebuilds the movie box of a 3GPP recording whose process died before
+ * MediaRecorder wrote it. Only AMR-NB media data can be indexed again: each
+ * frame starts with a byte giving its size, while AAC frames carry nothing
+ * to find their boundaries by. The frames are scanned twice, once to count
+ * them and once to write their sizes, so memory use does not depend on the
+ * length of the recording.
+ */
+public class Mp4Repair {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int FREE = 0x66726565; // 'free'
+
+    private static final int SAMPLE_RATE = 8000;
+
+    private static final int FRAME_SAMPLES = 160;
+
+    // share of the media data the frames have to cover to be taken for AMR
+    private static final float MIN_COVERAGE = 0.9f;
+
+    private static final int[] UNITY_MATRIX = {
+            0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000
+    };
+
+    private final RandomAccessFile mFile;
+
+    private long mDataOffset;
+
+    // size of the header of the media data box, 8 or 16
+    private int mMdatHeader;
+
+    private long mFrames;
+
+    private long mFrameBytes;
+
+    // the size all frames have, or 0 if they differ
+    private int mFrameSize = -1;
+
+    private Mp4Repair(RandomAccessFile file) {
+        mFile = file;
+    }
+
+    /**
+     * Indexes the AMR-NB frames of an MP4 file left without a movie box.
+     *
+     * @return the duration of the file in milliseconds, or -1 if it has no
+     *         media data box or the media data is not AMR-NB
+     */
+    public static long repair(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            Mp4Repair repair = new Mp4Repair(raf);
+            if (!repair.findMediaData() || !repair.scanFrames()) {
+                return -1;
+            }
+            repair.writeMovie(file);
+            return repair.mFrames * AmrFile.FRAME_DURATION;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * Walks the top level boxes up to the media data box, whose size is still
+     * 0 or runs past the end of the file.
+     */
+    private boolean findMediaData() throws IOException {
+        long length = mFile.length();
+        long offset = 0;
+        while (offset + 8 <= length) {
+            mFile.seek(offset);
+            long size = mFile.readInt() & 0xffffffffL;
+            int type = mFile.readInt();
+            if (type == Mp4File.MDAT) {
+                mMdatHeader = size == 1 ? 16 : 8;
+                mDataOffset = offset + mMdatHeader;
+                return mDataOffset < length;
+            } else if (offset == 0 ? type != Mp4File.FTYP : type != FREE) {
+                return false;
+            } else if (size == 1 && offset + 16 <= length) {
+                size = mFile.readLong();
+            }
+            if (size < 8) {
+                return false;
+            }
+            offset += size;
+        }
+        return false;
+    }
+
+    private boolean scanFrames() throws IOException {
+        long available = mFile.length() - mDataOffset;
+        DataInputStream in = open();
+        try {
+            while (mFrameBytes < available) {
+                int size = AmrFile.frameSize(in.readUnsignedByte(), false);
+                if (size < 0 || mFrameBytes + size > available) {
+                    break;
+                }
+                in.skipBytes(size - 1);
+                mFrameSize = mFrameSize < 0 || mFrameSize == size ? size : 0;
+                mFrameBytes += size;
+                mFrames++;
+            }
+        } catch (EOFException e) {
+            // the last frame is cut off
+        }
+        return mFrames > 0 && mFrameBytes >= available * MIN_COVERAGE;
+    }
+
+    /*
+     * The stream shares the descriptor of the file and is not closed.
+     */
+    private DataInputStream open() throws IOException {
+        mFile.seek(mDataOffset);
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(mFile.getFD()),
+                BUFFER_SIZE));
+    }
+
+    /*
+     * Cuts off what follows the last whole frame, closes the media data box
+     * and appends the movie box.
+     */
+    private void writeMovie(File file) throws IOException {
+        long end = mDataOffset + mFrameBytes;
+        mFile.setLength(end);
+        mFile.seek(mDataOffset - mMdatHeader);
+        if (mMdatHeader == 16) {
+            mFile.writeInt(1);
+            mFile.writeInt(Mp4File.MDAT);
+            mFile.writeLong(mMdatHeader + mFrameBytes);
+        } else {
+            mFile.writeInt((int) (mMdatHeader + mFrameBytes));
+        }
+
+        long samples = mFrames * FRAME_SAMPLES;
+        long millis = mFrames * AmrFile.FRAME_DURATION;
+        int stsz = 20 + (mFrameSize > 0 ? 0 : (int) (mFrames * 4));
+        int stbl = 8 + 69 + 24 + 28 + stsz + 20;
+        int hdlr = 8 + 24 + 12;
+        int minf = 8 + 16 + 36 + stbl;
+        int mdia = 8 + 32 + hdlr + minf;
+        int trak = 8 + 92 + mdia;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true), BUFFER_SIZE));
+        try {
+            header(out, 8 + 108 + trak, Mp4File.MOOV);
+
+            fullHeader(out, 108, Mp4File.MVHD, 0);
+            out.writeInt(0); // creation time
+            out.writeInt(0); // modification time
+            out.writeInt(1000);
+            out.writeInt((int) millis);
+            out.writeInt(0x10000); // rate
+            out.writeShort(0x100); // volume
+            out.write(new byte[10]);
+            matrix(out);
+            out.write(new byte[24]);
+            out.writeInt(2); // next track id
+
+            header(out, trak, Mp4File.TRAK);
+            fullHeader(out, 92, Mp4File.TKHD, 7); // enabled, in movie and preview
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(1); // track id
+            out.writeInt(0);
+            out.writeInt((int) millis);
+            out.write(new byte[12]); // reserved, layer, alternate group
+            out.writeShort(0x100); // volume
+            out.writeShort(0);
+            matrix(out);
+            out.writeInt(0); // width
+            out.writeInt(0); // height
+
+            header(out, mdia, Mp4File.MDIA);
+            fullHeader(out, 32, Mp4File.MDHD, 0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(SAMPLE_RATE);
+            out.writeInt((int) samples);
+            out.writeShort(0x55c4); // 'und'
+            out.writeShort(0);
+            fullHeader(out, hdlr, Mp4File.HDLR, 0);
+            out.writeInt(0);
+            out.writeInt(Mp4File.SOUN);
+            out.write(new byte[12]);
+            out.write("SoundHandle".getBytes());
+            out.writeByte(0);
+
+            header(out, minf, Mp4File.MINF);
+            fullHeader(out, 16, 0x736d6864, 0); // 'smhd'
+            out.writeInt(0); // balance
+            header(out, 36, 0x64696e66); // 'dinf'
+            fullHeader(out, 28, 0x64726566, 0); // 'dref'
+            out.writeInt(1);
+            fullHeader(out, 12, 0x75726c20, 1); // 'url ', media in this file
+
+            header(out, stbl, Mp4File.STBL);
+            fullHeader(out, 69, Mp4File.STSD, 0);
+            out.writeInt(1);
+            header(out, 53, Mp4File.SAMR);
+            out.write(new byte[6]);
+            out.writeShort(1); // data reference index
+            out.write(new byte[8]);
+            out.writeShort(1); // channels
+            out.writeShort(16); // bits per sample
+            out.writeInt(0);
+            out.writeInt(SAMPLE_RATE << 16);
+            header(out, 17, 0x64616d72); // 'damr'
+            out.writeInt(0); // vendor
+            out.writeByte(0); // decoder version
+            out.writeShort(0x81ff); // all modes
+            out.writeByte(0); // mode change period
+            out.writeByte(1); // frames per sample
+
+            fullHeader(out, 24, Mp4File.STTS, 0);
+            out.writeInt(1);
+            out.writeInt((int) mFrames);
+            out.writeInt(FRAME_SAMPLES);
+            fullHeader(out, 28, Mp4File.STSC, 0);
+            out.writeInt(1);
+            out.writeInt(1); // first chunk
+            out.writeInt((int) mFrames);
+            out.writeInt(1); // sample description
+            fullHeader(out, stsz, Mp4File.STSZ, 0);
+            out.writeInt(Math.max(0, mFrameSize));
+            out.writeInt((int) mFrames);
+            if (mFrameSize == 0) {
+                DataInputStream in = open();
+                for (long i = 0; i < mFrames; i++) {
+                    int size = AmrFile.frameSize(in.readUnsignedByte(), false);
+                    in.skipBytes(size - 1);
+                    out.writeInt(size);
+                }
+            }
+            // a single chunk of all frames
+            fullHeader(out, 20, Mp4File.STCO, 0);
+            out.writeInt(1);
+            out.writeInt((int) mDataOffset);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void header(DataOutputStream out, int size, int type) throws IOException {
+        out.writeInt(size);
+        out.writeInt(type);
+    }
+
+    private static void fullHeader(DataOutputStream out, int size, int type, int flags)
+            throws IOException {
+        header(out, size, type);
+        out.writeInt(flags);
+    }
+
+    private static void matrix(DataOutputStream out) throws IOException {
+        for (int value : UNITY_MATRIX) {
+            out.writeInt(value);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays a WAV recording with AudioTrack through a TimeStretcher, so the
+ * speed can be changed while playing. Positions are in milliseconds of the
+ * recording, not of the time played. The methods follow those of
+ * MediaPlayer and must be called on the thread that created the player,
+ * the listeners are called on it too.
+ */
+public class PcmPlayer {
+    private static final String TAG = "PcmPlayer";
+
+    // output hops the position can be mapped back for, well over the
+    // audio buffered in the track
+    private static final int MARKS = 128;
+
+    private static final int DRAIN_POLL_MILLIS = 20;
+
+    // speeds are told apart by quarters in the statistics
+    private static final int SPEEDS = (int) (TimeStretcher.MAX_SPEED * 4) + 1;
+
+    public interface OnCompletionListener {
+        public void onCompletion(PcmPlayer player);
+    }
+
+    public interface OnErrorListener {
+        public void onError(PcmPlayer player);
+    }
+
+    private final WavReader mReader;
+
+    private final int mSampleRate;
+
+    private final TimeStretcher mStretcher;
+
+    private final Handler mHandler = new Handler();
+
+    private AudioTrack mTrack;
+
+    private Thread mThread;
+
+    private volatile boolean mRunning;
+
+    private boolean mPaused = true;
+
+    // position to seek to on the playback thread, -1 if none
+    private long mSeekPosition = -1;
+
+    // output frames written to the track
+    private long mWritten;
+
+    // input position playing starts from, until the first hop is written
+    private long mStartPosition;
+
+    // input position and speed of the latest hops written
+    private final long[] mMarkFrames = new long[MARKS];
+
+    private final long[] mMarkPositions = new long[MARKS];
+
+    private final float[] mMarkSpeeds = new float[MARKS];
+
+    private int mMarkCount;
+
+    private int mMarkNext;
+
+    // statistics of the stretching cost by speed
+    private final long[] mHops = new long[SPEEDS];
+
+    private final long[] mStretchNanos = new long[SPEEDS];
+
+    private OnCompletionListener mOnCompletionListener;
+
+    private OnErrorListener mOnErrorListener;
+
+    private final Runnable mPlayback = new Runnable() {
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            int hop = mStretcher.hop();
+            float[] input = new float[hop * 4];
+            float[] output = new float[hop];
+            short[] samples = new short[hop];
+            long end = mReader.getSampleCount();
+
+            try {
+                while (mRunning) {
+                    if (!waitForPlay()) {
+                        return;
+                    }
+
+                    int needed;
+                    while ((needed = mStretcher.needed()) > 0) {
+                        int count = Math.min(needed, input.length);
+                        mReader.read(input, 0, count);
+                        mStretcher.add(input, 0, count);
+                    }
+                    float speed = mStretcher.getSpeed();
+                    long start = System.nanoTime();
+                    long position = mStretcher.process(output);
+                    int bucket = Math.round(speed * 4);
+                    mStretchNanos[bucket] += System.nanoTime() - start;
+                    mHops[bucket]++;
+
+                    if (position >= end) {
+                        if (drain()) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    for (int i = 0; i < hop; i++) {
+                        float x = output[i] * 32768f;
+                        samples[i] = (short) (x >= 32767 ? 32767 : x <= -32768 ? -32768 : x);
+                    }
+                    mark(position, speed);
+                    int written = mTrack.write(samples, 0, hop);
+                    if (written < 0) {
+                        Log.e(TAG, "unable to play audio: " + written);
+                        failed();
+                        return;
+                    }
+                    synchronized (PcmPlayer.this) {
+                        mWritten += written;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "unable to read audio: " + e);
+                failed();
+            }
+        }
+    };
+
+    /**
+     * @throws IOException if the file can't be read or is not a 16 bit mono
+     *             WAV file
+     */
+    public PcmPlayer(File file) throws IOException {
+        mReader = new WavReader(file);
+        mSampleRate = mReader.getSampleRate();
+        mStretcher = new TimeStretcher(mSampleRate);
+    }
+
+    public void setOnCompletionListener(OnCompletionListener listener) {
+        mOnCompletionListener = listener;
+    }
+
+    public void setOnErrorListener(OnErrorListener listener) {
+        mOnErrorListener = listener;
+    }
+
+    /**
+     * Creates the audio track.
+     *
+     * @return false if the sample rate can't be played
+     */
+    public boolean prepare() {
+        int minSize = AudioTrack.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            Log.w(TAG, mSampleRate + " Hz is not supported");
+            return false;
+        }
+        // a few hops, short enough for a change of speed to be heard soon
+        int bufferSize = Math.max(minSize, mStretcher.hop() * 2 * 8);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize,
+                AudioTrack.MODE_STREAM);
+        if (mTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            mTrack.release();
+            mTrack = null;
+            return false;
+        }
+        return true;
+    }
+
+    public void start() {
+        synchronized (this) {
+            mPaused = false;
+            notifyAll();
+        }
+        mTrack.play();
+        if (mThread == null) {
+            mRunning = true;
+            mThread = new Thread(mPlayback, TAG);
+            mThread.start();
+        }
+    }
+
+    public void pause() {
+        synchronized (this) {
+            mPaused = true;
+        }
+        mTrack.pause();
+    }
+
+    /**
+     * Moves the playback to a position, in milliseconds of the recording.
+     */
+    public void seekTo(long millis) {
+        synchronized (this) {
+            mSeekPosition = Math.max(0, Math.min(millis, getDuration())) * mSampleRate / 1000;
+            if (mPaused && mTrack != null) {
+                // frees the playback thread if it waits to write
+                mTrack.flush();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Changes the speed, also while playing.
+     */
+    public void setSpeed(float speed) {
+        mStretcher.setSpeed(speed);
+    }
+
+    public void setVolume(float left, float right) {
+        mTrack.setStereoVolume(left, right);
+    }
+
+    /**
+     * Returns the position of the audio being heard, in milliseconds of the
+     * recording.
+     */
+    public synchronized long getCurrentPosition() {
+        if (mSeekPosition >= 0) {
+            return mSeekPosition * 1000 / mSampleRate;
+        }
+        if (mMarkCount == 0) {
+            return mStartPosition * 1000 / mSampleRate;
+        }
+        long played = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        // the latest hop that started playing
+        int mark = (mMarkNext - 1 + MARKS) % MARKS;
+        for (int i = 1; i < mMarkCount && mMarkFrames[mark] > played; i++) {
+            mark = (mark - 1 + MARKS) % MARKS;
+        }
+        long offset = Math.max(0, played - mMarkFrames[mark]);
+        offset = Math.min(offset, mStretcher.hop());
+        long position = mMarkPositions[mark] + (long) (offset * mMarkSpeeds[mark]);
+        return Math.min(position * 1000 / mSampleRate, getDuration());
+    }
+
+    public long getDuration() {
+        return mReader.getDuration();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+        }
+        if (mTrack != null) {
+            mTrack.pause();
+            mTrack.flush();
+        }
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+            }
+            mThread = null;
+        }
+    }
+
+    public void release() {
+        stop();
+        mHandler.removeCallbacksAndMessages(null);
+        if (mTrack != null) {
+            mTrack.release();
+            mTrack = null;
+        }
+        try {
+            mReader.close();
+        } catch (IOException e) {
+        }
+
+        long hopNanos = 1000000000L * mStretcher.hop() / mSampleRate;
+        for (int i = 0; i < SPEEDS; i++) {
+            if (mHops[i] > 0) {
+                long average = mStretchNanos[i] / mHops[i];
+                Log.d(TAG, "speed " + (i / 4f) + ": " + mHops[i] + " hops at " + mSampleRate
+                        + " Hz, average " + (average / 1000) + " us ("
+                        + (average * 100 / hopNanos) + "% of real time)");
+            }
+        }
+    }
+
+    /*
+     * Waits while paused and carries out a seek.
+     *
+     * @return false if the player was stopped
+     */
+    private boolean waitForPlay() throws IOException {
+        long seek;
+        synchronized (this) {
+            while (mRunning && mPaused && mSeekPosition < 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+            if (!mRunning) {
+                return false;
+            }
+            seek = mSeekPosition;
+        }
+        if (seek < 0) {
+            return true;
+        }
+
+        mReader.seek(seek);
+        mStretcher.reset(seek);
+        boolean paused;
+        synchronized (this) {
+            paused = mPaused;
+            mTrack.pause();
+            mTrack.flush();
+            mWritten = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            mMarkCount = 0;
+            mMarkNext = 0;
+            mStartPosition = seek;
+            if (mSeekPosition == seek) {
+                mSeekPosition = -1;
+            }
+        }
+        if (!paused) {
+            mTrack.play();
+        }
+        return true;
+    }
+
+    private synchronized void mark(long position, float speed) {
+        mMarkFrames[mMarkNext] = mWritten;
+        mMarkPositions[mMarkNext] = position;
+        mMarkSpeeds[mMarkNext] = speed;
+        mMarkNext = (mMarkNext + 1) % MARKS;
+        mMarkCount = Math.min(mMarkCount + 1, MARKS);
+    }
+
+    /*
+     * Waits for the audio written to be heard and reports the completion.
+     *
+     * @return false if a seek came in while the end played
+     */
+    private boolean drain() {
+        while (mRunning) {
+            long played = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            synchronized (this) {
+                if (mSeekPosition >= 0) {
+                    return false;
+                }
+                if (played >= mWritten) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+            }
+        }
+        if (mRunning) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mOnCompletionListener != null) {
+                        mOnCompletionListener.onCompletion(PcmPlayer.this);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    private void failed() {
+        mRunning = false;
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mOnErrorListener != null) {
+                    mOnErrorListener.onError(PcmPlayer.this);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Captures 16 bit mono PCM with AudioRecord, runs it through a DspChain and
+ * writes it into a WAV file. Audio is handled in blocks of 20 ms on a capture
+ * thread, all buffers are allocated up front. Every block written adds one
+ * bucket to the waveform index, so the index follows the file rather than
+ * the wall clock.
+ *
+ * With voice activation, blocks are only written while their level is above
+ * a threshold and for a hang time after. The blocks just before the level
+ * rises are kept as pre-roll and written first. The silence left out is
+ * logged in RecordingGaps. Blocks left out skip the processing and the
+ * storage, the capture loop itself has to keep running to hear the voice.
+ *
+ * A compact copy for another app can be written from the same blocks, after
+ * the processing, so one capture gives both files.
+ */
+public class PcmRecorder {
+    private static final String TAG = "PcmRecorder";
+
+    // blocks per second, one block per amplitude sample
+    private static final int BLOCKS_PER_SECOND = 1000 / PeakIndex.BUCKET_MILLIS;
+
+    public interface OnErrorListener {
+        /**
+         * Called on the capture thread when capturing or writing failed. The
+         * recorder has stopped capturing.
+         */
+        public void onError(PcmRecorder recorder);
+    }
+
+    private final File mFile;
+
+    private final int mSampleRate;
+
+    private final int mBlockSize;
+
+    private final DspChain mChain;
+
+    private AudioRecord mAudioRecord;
+
+    private WavWriter mWriter;
+
+    private Thread mThread;
+
+    private volatile boolean mRunning;
+
+    private volatile AmplitudeSampler mSampler;
+
+    private volatile PeakIndexWriter mPeakWriter;
+
+    private OnErrorListener mOnErrorListener;
+
+    // the compact copy, off while mCopyFile is null
+    private File mCopyFile;
+
+    private long mCopyMaxBytes;
+
+    private CompactCopyWriter mCopyWriter;
+
+    private long mCopyNanos;
+
+    // voice activation, off while mGaps is null
+    private RecordingGaps mGaps;
+
+    private int mThreshold;
+
+    private int mHangBlocks;
+
+    private short[][] mPreRoll;
+
+    private int[] mPreRollLengths;
+
+    private int mPreRollCount;
+
+    private int mPreRollNext;
+
+    private boolean mVoiced;
+
+    private int mQuietBlocks;
+
+    // the gap being left out
+    private long mGapPosition;
+
+    private long mGapTime;
+
+    private long mGapBlocks;
+
+    // statistics of the processing cost
+    private long mBlocks;
+
+    private long mDspNanos;
+
+    private long mMaxDspNanos;
+
+    private long mWrittenNanos;
+
+    private long mIdleBlocks;
+
+    private long mIdleNanos;
+
+    private long mThreadMillis;
+
+    private long mCaptureMillis;
+
+    private final Runnable mCapture = new Runnable() {
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            long startThread = SystemClock.currentThreadTimeMillis();
+            long start = SystemClock.elapsedRealtime();
+            short[] samples = new short[mBlockSize];
+            float[] block = new float[mBlockSize];
+            byte[] bytes = new byte[mBlockSize * 2];
+
+            try {
+                while (mRunning) {
+                    int read = mAudioRecord.read(samples, 0, mBlockSize);
+                    if (read < 0) {
+                        Log.e(TAG, "unable to read audio: " + read);
+                        failed();
+                        return;
+                    }
+
+                    long blockStart = System.nanoTime();
+                    if (mGaps != null && !gate(samples, read, block, bytes)) {
+                        mIdleBlocks++;
+                        mIdleNanos += System.nanoTime() - blockStart;
+                        continue;
+                    }
+                    if (!write(samples, read, block, bytes)) {
+                        return;
+                    }
+                    mWrittenNanos += System.nanoTime() - blockStart;
+                }
+            } finally {
+                mThreadMillis = SystemClock.currentThreadTimeMillis() - startThread;
+                mCaptureMillis = SystemClock.elapsedRealtime() - start;
+            }
+        }
+    };
+
+    /*
+     * Processes a block and writes it.
+     *
+     * @return false if writing failed
+     */
+    private boolean write(short[] samples, int read, float[] block, byte[] bytes) {
+        for (int i = 0; i < read; i++) {
+            block[i] = samples[i] / 32768f;
+        }
+        long start = System.nanoTime();
+        mChain.process(block, read);
+        long nanos = System.nanoTime() - start;
+        mBlocks++;
+        mDspNanos += nanos;
+        mMaxDspNanos = Math.max(mMaxDspNanos, nanos);
+
+        int peak = 0;
+        long squares = 0;
+        for (int i = 0; i < read; i++) {
+            float x = block[i] * 32768f;
+            int sample = x >= 32767 ? 32767 : x <= -32768 ? -32768 : (int) x;
+            int level = sample < 0 ? -sample : sample;
+            peak = Math.max(peak, level);
+            squares += (long) sample * sample;
+            bytes[i * 2] = (byte) sample;
+            bytes[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        peak = Math.min(peak, 32767);
+        int rms = read > 0 ? (int) Math.sqrt(squares / read) : 0;
+
+        try {
+            mWriter.write(bytes, 0, read * 2);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write audio: " + e);
+            failed();
+            return false;
+        }
+
+        if (mCopyWriter != null) {
+            long copyStart = System.nanoTime();
+            try {
+                mCopyWriter.write(block, read);
+            } catch (IOException e) {
+                Log.e(TAG, "unable to write the compact copy: " + e);
+                failed();
+                return false;
+            }
+            mCopyNanos += System.nanoTime() - copyStart;
+        }
+
+        PeakIndexWriter peakWriter = mPeakWriter;
+        if (peakWriter != null) {
+            try {
+                peakWriter.add(peak, rms);
+            } catch (IOException e) {
+                Log.w(TAG, "unable to write waveform index: " + e);
+                mPeakWriter = null;
+            }
+        }
+
+        AmplitudeSampler sampler = mSampler;
+        if (sampler != null && read > 0) {
+            sampler.add(peak, rms);
+        }
+        return true;
+    }
+
+    /*
+     * Decides whether a block is recorded under voice activation. When the
+     * level rises after a gap, the pre-roll is written before the block.
+     *
+     * @return false if the block is left out
+     */
+    private boolean gate(short[] samples, int read, float[] block, byte[] bytes) {
+        int peak = 0;
+        long squares = 0;
+        for (int i = 0; i < read; i++) {
+            int sample = samples[i];
+            peak = Math.max(peak, sample < 0 ? -sample : sample);
+            squares += sample * sample;
+        }
+        int rms = read > 0 ? (int) Math.sqrt(squares / read) : 0;
+
+        if (rms >= mThreshold) {
+            mQuietBlocks = 0;
+            if (!mVoiced) {
+                mVoiced = true;
+                return endGap(block, bytes);
+            }
+            return true;
+        }
+        if (mVoiced && ++mQuietBlocks <= mHangBlocks) {
+            return true;
+        }
+
+        if (mVoiced) {
+            mVoiced = false;
+            mGapPosition = mWriter.dataSize() / 2 * 1000 / mSampleRate;
+            mGapTime = System.currentTimeMillis();
+            mGapBlocks = 0;
+        }
+        mGapBlocks++;
+        if (mPreRoll.length > 0) {
+            System.arraycopy(samples, 0, mPreRoll[mPreRollNext], 0, read);
+            mPreRollLengths[mPreRollNext] = read;
+            mPreRollNext = (mPreRollNext + 1) % mPreRoll.length;
+            mPreRollCount = Math.min(mPreRollCount + 1, mPreRoll.length);
+        }
+
+        // the meter keeps moving while nothing is written
+        AmplitudeSampler sampler = mSampler;
+        if (sampler != null && read > 0) {
+            sampler.add(Math.min(peak, 32767), rms);
+        }
+        return false;
+    }
+
+    /*
+     * Writes the pre-roll and logs what is left of the gap.
+     *
+     * @return false if writing failed
+     */
+    private boolean endGap(float[] block, byte[] bytes) {
+        int first = (mPreRollNext - mPreRollCount + mPreRoll.length) % Math.max(1, mPreRoll.length);
+        for (int i = 0; i < mPreRollCount; i++) {
+            int index = (first + i) % mPreRoll.length;
+            if (!write(mPreRoll[index], mPreRollLengths[index], block, bytes)) {
+                return false;
+            }
+        }
+        logGap(mGapBlocks - mPreRollCount);
+        mPreRollCount = 0;
+        mGapBlocks = 0;
+        return true;
+    }
+
+    private void logGap(long blocks) {
+        if (blocks <= 0) {
+            return;
+        }
+        try {
+            mGaps.add(mGapPosition, mGapTime, blocks * PeakIndex.BUCKET_MILLIS);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to log gap: " + e);
+        }
+    }
+
+    public PcmRecorder(File file, int sampleRate, DspChain chain) {
+        mFile = file;
+        mSampleRate = sampleRate;
+        mBlockSize = sampleRate / BLOCKS_PER_SECOND;
+        mChain = chain;
+    }
+
+    public void setOnErrorListener(OnErrorListener listener) {
+        mOnErrorListener = listener;
+    }
+
+    /**
+     * Records only while the level is above the threshold. Must be called
+     * before start().
+     *
+     * @param gaps log of the silence left out
+     * @param thresholdDb RMS level that opens the recording
+     * @param preRollMillis audio kept from before the level rises
+     * @param hangMillis audio recorded after the level falls
+     */
+    public void setVoiceActivation(RecordingGaps gaps, float thresholdDb, int preRollMillis,
+            int hangMillis) {
+        mGaps = gaps;
+        mThreshold = (int) (32768 * DspChain.dbToLinear(thresholdDb));
+        mHangBlocks = hangMillis / PeakIndex.BUCKET_MILLIS;
+        int preRollBlocks = preRollMillis / PeakIndex.BUCKET_MILLIS;
+        mPreRoll = new short[preRollBlocks][mBlockSize];
+        mPreRollLengths = new int[preRollBlocks];
+        // the recording starts with a gap until the first voice
+        mVoiced = false;
+        mGapPosition = 0;
+        mGapTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Also writes an 8 kHz mu-law copy of limited size. Must be called before
+     * prepare().
+     *
+     * @param maxBytes the maximum size of the copy, or -1 for no limit
+     */
+    public void setCompactCopy(File file, long maxBytes) {
+        mCopyFile = file;
+        mCopyMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the peak and RMS level of every block written to the waveform
+     * index.
+     */
+    public void setPeakIndexWriter(PeakIndexWriter writer) {
+        mPeakWriter = writer;
+    }
+
+    /**
+     * Feeds the peak and RMS level of every block to the sampler.
+     */
+    public void setAmplitudeSampler(AmplitudeSampler sampler) {
+        mSampler = sampler;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Allocates the audio input and creates the file.
+     *
+     * @return false if either is not available
+     */
+    public boolean prepare() {
+        int minSize = AudioRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            Log.w(TAG, mSampleRate + " Hz is not supported");
+            return false;
+        }
+        // room for a few blocks in case the capture thread is delayed
+        int bufferSize = Math.max(minSize, mBlockSize * 2 * 8);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            release();
+            return false;
+        }
+
+        try {
+            mWriter = new WavWriter(mFile, mSampleRate, 1, WavWriter.FORMAT_PCM, true);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to create " + mFile + ": " + e);
+            release();
+            return false;
+        }
+        if (mCopyFile != null) {
+            try {
+                mCopyWriter = new CompactCopyWriter(mCopyFile, mSampleRate, mCopyMaxBytes);
+            } catch (IOException e) {
+                Log.w(TAG, "unable to create " + mCopyFile + ": " + e);
+                release();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts capturing, throws a RuntimeException if the input can't be
+     * started, e.g. during a call.
+     */
+    public void start() {
+        mAudioRecord.startRecording();
+        if (mAudioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            throw new IllegalStateException("audio input could not be started");
+        }
+        mRunning = true;
+        mThread = new Thread(mCapture, TAG);
+        mThread.start();
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+            }
+            mThread = null;
+        }
+        mAudioRecord.stop();
+        if (mGaps != null && !mVoiced) {
+            // the silence at the end, its pre-roll is not written
+            logGap(mGapBlocks);
+        }
+        closeWriter();
+
+        if (mBlocks > 0) {
+            long blockNanos = 1000000000L / BLOCKS_PER_SECOND;
+            long average = mDspNanos / mBlocks;
+            Log.d(TAG, "processed " + mBlocks + " blocks at " + mSampleRate + " Hz, average "
+                    + (average / 1000) + " us (" + (average * 100 / blockNanos)
+                    + "% of real time), max " + (mMaxDspNanos / 1000) + " us");
+            if (mCopyFile != null) {
+                // the cost of the second encoder on top of the first
+                long copyAverage = mCopyNanos / mBlocks;
+                Log.d(TAG, "compact copy took " + (copyAverage / 1000) + " us per block ("
+                        + (copyAverage * 1000 / blockNanos / 10f) + "% of real time, "
+                        + (mWrittenNanos > 0 ? mCopyNanos * 100 / mWrittenNanos : 0)
+                        + "% of the block handling)");
+            }
+        }
+        long total = mBlocks + mIdleBlocks;
+        if (mGaps != null && total > 0) {
+            // compare with recording every block
+            long continuousBytes = (long) mBlockSize * 2 * BLOCKS_PER_SECOND * 3600;
+            long writtenBytes = continuousBytes * mBlocks / total;
+            long continuousNanos = mBlocks > 0 ? mWrittenNanos / mBlocks * total : 0;
+            long busy = continuousNanos > 0 ? (mWrittenNanos + mIdleNanos) * 100
+                    / continuousNanos : 0;
+            Log.d(TAG, "voice activation recorded " + mBlocks + " of " + total + " blocks, "
+                    + (writtenBytes >> 20) + " MB per hour instead of "
+                    + (continuousBytes >> 20) + " MB, processing " + busy
+                    + "% of continuous, idle blocks " + (mIdleBlocks > 0 ? mIdleNanos
+                    / mIdleBlocks / 1000 : 0) + " us");
+        }
+        if (mCaptureMillis > 0) {
+            Log.d(TAG, "capture thread used " + mThreadMillis + " ms of CPU in "
+                    + mCaptureMillis + " ms");
+        }
+    }
+
+    public void release() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        closeWriter();
+        closeGaps();
+    }
+
+    private void closeCopy() {
+        if (mCopyWriter != null) {
+            try {
+                mCopyWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "unable to finish " + mCopyFile + ": " + e);
+            }
+            mCopyWriter = null;
+        }
+    }
+
+    private void closeGaps() {
+        if (mGaps != null) {
+            try {
+                mGaps.close();
+            } catch (IOException e) {
+                Log.w(TAG, "unable to finish gap log: " + e);
+            }
+            mGaps = null;
+        }
+    }
+
+    private void closeWriter() {
+        closeCopy();
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "unable to finish " + mFile + ": " + e);
+            }
+            mWriter = null;
+        }
+    }
+
+    private void failed() {
+        mRunning = false;
+        if (mOnErrorListener != null) {
+            mOnErrorListener.onError(this);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read side of the waveform sidecar of a recording. The sidecar holds the
+ * peak and RMS level of the recording at several resolutions, so that a
+ * waveform of any length can be drawn without decoding audio.
+ *
+ * <pre>
+ * header, big endian:
+ *   int    magic "SRPK"
+ *   short  version
+ *   short  number of levels
+ *   int    bucket duration of level 0 in milliseconds
+ *   int    ratio between the bucket durations of adjacent levels
+ *   per level: int offset, int number of buckets
+ * buckets, two bytes each:
+ *   peak and RMS level, 0 - 255
+ * </pre>
+ *
+ * Level 0 is written while recording and the coarser levels are appended when
+ * the recording is finished. A sidecar whose level 0 count is still 0 was left
+ * behind by an interrupted recording, its coarser levels are rebuilt when it
+ * is opened.
+ */
+public class PeakIndex {
+    private static final String TAG = "PeakIndex";
+
+    static final String PEAKS_SUFFIX = ".peaks";
+
+    static final int MAGIC = 0x5352504b; // "SRPK"
+
+    static final int VERSION = 1;
+
+    static final int LEVELS = 3;
+
+    static final int BUCKET_MILLIS = 20;
+
+    static final int RATIO = 16;
+
+    static final int HEADER_SIZE = 16 + LEVELS * 8;
+
+    static final int BUCKET_SIZE = 2;
+
+    private final ByteBuffer[] mLevels;
+
+    private final int[] mOffsets;
+
+    private final int[] mCounts;
+
+    private final int mBucketMillis;
+
+    private final int mRatio;
+
+    private PeakIndex(int levels, int bucketMillis, int ratio) {
+        mLevels = new ByteBuffer[levels];
+        mOffsets = new int[levels];
+        mCounts = new int[levels];
+        mBucketMillis = bucketMillis;
+        mRatio = ratio;
+    }
+
+    public static File sidecar(File recording) {
+        return RecordingFiles.sidecar(recording, PEAKS_SUFFIX);
+    }
+
+    /**
+     * Maps the sidecar of a recording, or returns null if the recording has
+     * none or it has an unknown version.
+     */
+    public static PeakIndex open(File recording) {
+        File file = sidecar(recording);
+        if (!file.exists()) {
+            return null;
+        }
+
+        ByteBuffer map;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                // the mapping stays valid after the file is closed
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to map " + file + ": " + e);
+            return null;
+        }
+
+        if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getShort(4) != VERSION) {
+            return null;
+        }
+        int levels = map.getShort(6);
+        int bucketMillis = map.getInt(8);
+        int ratio = map.getInt(12);
+        if (levels < 1 || bucketMillis <= 0 || ratio < 2
+                || map.limit() < 16 + levels * 8) {
+            return null;
+        }
+
+        PeakIndex index = new PeakIndex(levels, bucketMillis, ratio);
+        for (int level = 0; level < levels; level++) {
+            index.mLevels[level] = map;
+            index.mOffsets[level] = map.getInt(16 + level * 8);
+            index.mCounts[level] = map.getInt(16 + level * 8 + 4);
+        }
+        if (index.mCounts[0] == 0) {
+            // unfinished, take what level 0 has and rebuild the others
+            index.mCounts[0] = (map.limit() - index.mOffsets[0]) / BUCKET_SIZE;
+            index.rebuildLevels();
+        }
+        for (int level = 0; level < levels; level++) {
+            if (index.mOffsets[level] + (long) index.mCounts[level] * BUCKET_SIZE
+                    > index.mLevels[level].limit()) {
+                return null;
+            }
+        }
+        return index;
+    }
+
+    private void rebuildLevels() {
+        for (int level = 1; level < mLevels.length; level++) {
+            int count = (mCounts[level - 1] + mRatio - 1) / mRatio;
+            ByteBuffer buffer = ByteBuffer.allocate(count * BUCKET_SIZE);
+            for (int i = 0; i < count; i++) {
+                int first = i * mRatio;
+                int last = Math.min(first + mRatio, mCounts[level - 1]);
+                int peak = 0;
+                long squares = 0;
+                for (int j = first; j < last; j++) {
+                    peak = Math.max(peak, peak(level - 1, j));
+                    int rms = rms(level - 1, j);
+                    squares += rms * rms;
+                }
+                buffer.put(i * BUCKET_SIZE, (byte) peak);
+                buffer.put(i * BUCKET_SIZE + 1, (byte) Math.sqrt(squares / (last - first)));
+            }
+            mLevels[level] = buffer;
+            mOffsets[level] = 0;
+            mCounts[level] = count;
+        }
+    }
+
+    public int levelCount() {
+        return mLevels.length;
+    }
+
+    public int count(int level) {
+        return mCounts[level];
+    }
+
+    /**
+     * Returns how many milliseconds one bucket of a level covers.
+     */
+    public long bucketMillis(int level) {
+        long millis = mBucketMillis;
+        for (int i = 0; i < level; i++) {
+            millis *= mRatio;
+        }
+        return millis;
+    }
+
+    public long duration() {
+        return (long) mCounts[0] * mBucketMillis;
+    }
+
+    public int peak(int level, int bucket) {
+        return mLevels[level].get(mOffsets[level] + bucket * BUCKET_SIZE) & 0xff;
+    }
+
+    public int rms(int level, int bucket) {
+        return mLevels[level].get(mOffsets[level] + bucket * BUCKET_SIZE + 1) & 0xff;
+    }
+
+    /**
+     * Returns the coarsest level that still has at least one bucket per pixel
+     * at the given zoom.
+     */
+    public int levelFor(float millisPerPixel) {
+        int level = 0;
+        while (level + 1 < mLevels.length && bucketMillis(level + 1) <= millisPerPixel) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Fills one peak and RMS value per pixel, starting at the given position.
+     *
+     * @return the level the values were taken from
+     */
+    public int fill(long startMillis, float millisPerPixel, int[] peaks, int[] rms) {
+        int level = levelFor(millisPerPixel);
+        double bucketMillis = bucketMillis(level);
+        int count = mCounts[level];
+        for (int x = 0; x < peaks.length; x++) {
+            int first = (int) ((startMillis + x * millisPerPixel) / bucketMillis);
+            int last = (int) ((startMillis + (x + 1) * millisPerPixel) / bucketMillis);
+            last = Math.min(Math.max(last, first + 1), count);
+            int peak = 0;
+            long squares = 0;
+            for (int i = first; i < last; i++) {
+                peak = Math.max(peak, peak(level, i));
+                int r = rms(level, i);
+                squares += r * r;
+            }
+            peaks[x] = peak;
+            rms[x] = last > first ? (int) Math.sqrt(squares / (last - first)) : 0;
+        }
+        return level;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Builds the waveform sidecar of a recording while it is captured, see
+ * PeakIndex for the format. Level 0 is appended to the file in blocks, the
+ * coarser levels are a fraction of its size and are kept in memory until the
+ * recording is finished.
+ */
+public class PeakIndexWriter {
+    private static final int FLUSH_BUCKETS = 1024;
+
+    private final RandomAccessFile mFile;
+
+    private final byte[] mBuffer = new byte[FLUSH_BUCKETS * PeakIndex.BUCKET_SIZE];
+
+    private int mBuffered;
+
+    private int mCount;
+
+    private final ByteArrayOutputStream[] mLevels = new ByteArrayOutputStream[PeakIndex.LEVELS];
+
+    // buckets of the coarser levels that are still being filled
+    private final int[] mPeak = new int[PeakIndex.LEVELS];
+
+    private final long[] mSquares = new long[PeakIndex.LEVELS];
+
+    private final int[] mMerged = new int[PeakIndex.LEVELS];
+
+    public PeakIndexWriter(File recording) throws IOException {
+        mFile = new RandomAccessFile(PeakIndex.sidecar(recording), "rw");
+        mFile.setLength(0);
+        mFile.writeInt(PeakIndex.MAGIC);
+        mFile.writeShort(PeakIndex.VERSION);
+        mFile.writeShort(PeakIndex.LEVELS);
+        mFile.writeInt(PeakIndex.BUCKET_MILLIS);
+        mFile.writeInt(PeakIndex.RATIO);
+        for (int level = 0; level < PeakIndex.LEVELS; level++) {
+            mFile.writeInt(level == 0 ? PeakIndex.HEADER_SIZE : 0);
+            mFile.writeInt(0);
+        }
+        for (int level = 1; level < PeakIndex.LEVELS; level++) {
+            mLevels[level] = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Returns the number of level 0 buckets written so far.
+     */
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * Appends the next bucket.
+     *
+     * @param peak the peak amplitude, 0 - 32767
+     * @param rms the RMS amplitude, 0 - 32767
+     */
+    public void add(int peak, int rms) throws IOException {
+        peak = Math.min(255, peak >> 7);
+        rms = Math.min(255, rms >> 7);
+        mBuffer[mBuffered * PeakIndex.BUCKET_SIZE] = (byte) peak;
+        mBuffer[mBuffered * PeakIndex.BUCKET_SIZE + 1] = (byte) rms;
+        mCount++;
+        if (++mBuffered == FLUSH_BUCKETS) {
+            flush();
+        }
+        merge(1, peak, rms);
+    }
+
+    private void merge(int level, int peak, int rms) {
+        if (level >= PeakIndex.LEVELS) {
+            return;
+        }
+        mPeak[level] = Math.max(mPeak[level], peak);
+        mSquares[level] += rms * rms;
+        if (++mMerged[level] == PeakIndex.RATIO) {
+            mergeDone(level);
+        }
+    }
+
+    private void mergeDone(int level) {
+        int peak = mPeak[level];
+        int rms = (int) Math.sqrt(mSquares[level] / mMerged[level]);
+        mLevels[level].write(peak);
+        mLevels[level].write(rms);
+        mPeak[level] = 0;
+        mSquares[level] = 0;
+        mMerged[level] = 0;
+        merge(level + 1, peak, rms);
+    }
+
+    private void flush() throws IOException {
+        if (mBuffered > 0) {
+            mFile.seek(PeakIndex.HEADER_SIZE + (long) (mCount - mBuffered)
+                    * PeakIndex.BUCKET_SIZE);
+            mFile.write(mBuffer, 0, mBuffered * PeakIndex.BUCKET_SIZE);
+            mBuffered = 0;
+        }
+    }
+
+    /**
+     * Writes the coarser levels and completes the header.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+            for (int level = 1; level < PeakIndex.LEVELS; level++) {
+                if (mMerged[level] > 0) {
+                    mergeDone(level);
+                }
+            }
+
+            long offset = PeakIndex.HEADER_SIZE + (long) mCount * PeakIndex.BUCKET_SIZE;
+            int[] offsets = new int[PeakIndex.LEVELS];
+            int[] counts = new int[PeakIndex.LEVELS];
+            offsets[0] = PeakIndex.HEADER_SIZE;
+            counts[0] = mCount;
+            mFile.seek(offset);
+            for (int level = 1; level < PeakIndex.LEVELS; level++) {
+                byte[] data = mLevels[level].toByteArray();
+                mFile.write(data);
+                offsets[level] = (int) offset;
+                counts[level] = data.length / PeakIndex.BUCKET_SIZE;
+                offset += data.length;
+            }
+
+            // the level 0 count is written last, it marks the index complete
+            for (int level = PeakIndex.LEVELS - 1; level >= 0; level--) {
+                mFile.seek(16 + level * 8);
+                mFile.writeInt(offsets[level]);
+                mFile.writeInt(counts[level]);
+            }
+        } finally {
+            mFile.close();
+        }
+    }
+}
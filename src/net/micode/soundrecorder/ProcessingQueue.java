@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Runs the work derived from finished recordings, such as adding them to the
+ * media database, analyzing them and writing processed copies, on a pool of
+ * background threads, one per core. The queue is journaled to internal
+ * storage, so jobs left by a killed process run when the queue is created
+ * again. While RecorderService captures only the first worker takes jobs,
+ * at the lowest priority, and jobs running on the others wait at their next
+ * progress report, as do all but one of the threads a job splits its work
+ * across, so the capture is never short of CPU.
+ */
+public class ProcessingQueue {
+    private static final String TAG = "ProcessingQueue";
+
+    public static final int PRIORITY_LOW = 0;
+
+    public static final int PRIORITY_NORMAL = 1;
+
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * Adds the recording to the media database unless it is there already.
+     */
+    public static final int KIND_REGISTER = 0;
+
+    /**
+     * Caches the voiced intervals, the seek index of an AMR recording and
+     * the loudness of a WAV recording.
+     */
+    public static final int KIND_ANALYZE = 1;
+
+    /**
+     * Writes a normalized copy of a WAV recording and registers it.
+     */
+    public static final int KIND_NORMALIZE = 2;
+
+    /**
+     * Writes a denoised copy of a WAV recording and registers it.
+     */
+    public static final int KIND_DENOISE = 3;
+
+    private static final String JOURNAL_NAME = "jobs";
+
+    private static final String PROCESSING_SUFFIX = ".processing";
+
+    // idle time after which a worker thread ends
+    private static final long IDLE_TIMEOUT = 30000;
+
+    // silence after which another thread of a job takes over its turn
+    private static final long TURN_TIMEOUT = 1000;
+
+    // power of two buckets, the last one takes everything above
+    private static final int HISTOGRAM_BUCKETS = 24;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when the progress of a job changes.
+         */
+        public void onProgress(Job job, int percent);
+
+        /**
+         * Called on the main thread when a job is done.
+         *
+         * @param result the recording or the written copy, null if the job
+         *            failed or was cancelled
+         */
+        public void onFinished(Job job, File result);
+    }
+
+    /**
+     * A queued job. Its progress listener throws a CancellationException
+     * once the job is cancelled, which stops the processing it is given to.
+     */
+    public static class Job implements ProgressListener {
+        private final ProcessingQueue mQueue;
+
+        private final int mId;
+
+        private final int mKind;
+
+        private final int mPriority;
+
+        private final File mSource;
+
+        private final long mQueuedTime;
+
+        // index of the worker running the job, -1 while it is pending
+        private int mWorker = -1;
+
+        private volatile boolean mCancelled;
+
+        private volatile int mPercent = -1;
+
+        // the one thread of the job that runs while recording, and when it
+        // last reported progress
+        private Thread mTurn;
+
+        private long mTurnTime;
+
+        Job(ProcessingQueue queue, int id, int kind, int priority, File source) {
+            mQueue = queue;
+            mId = id;
+            mKind = kind;
+            mPriority = priority;
+            mSource = source;
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+
+        public int getKind() {
+            return mKind;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public File getSource() {
+            return mSource;
+        }
+
+        /**
+         * Returns the progress in percent, -1 before the first report.
+         */
+        public int getProgress() {
+            return mPercent;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public void onProgress(long done, long total) {
+            // outside the lock of the job, its other threads may take the turn
+            mQueue.awaitTurn(this);
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            int percent = total > 0 ? (int) (done * 100 / total) : 0;
+            synchronized (this) {
+                if (percent != mPercent) {
+                    mPercent = percent;
+                    mQueue.postProgress(this, percent);
+                }
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        private final int mIndex;
+
+        private volatile int mTid;
+
+        Worker(int index) {
+            super("ProcessingQueue-" + index);
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            mTid = Process.myTid();
+            Job job;
+            while ((job = take(this)) != null) {
+                execute(job);
+            }
+        }
+    }
+
+    private static ProcessingQueue sInstance;
+
+    private final Context mContext;
+
+    private final File mJournal;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private final ArrayList<Job> mPending = new ArrayList<Job>();
+
+    private final ArrayList<Job> mRunning = new ArrayList<Job>();
+
+    private final Worker[] mWorkers;
+
+    private int mNextId = 1;
+
+    // counts the starts and stops of capturing, a thread whose priority was
+    // set for an older count sets it again
+    private int mRecordingChanges;
+
+    private final ThreadLocal<Integer> mPriorityChanges = new ThreadLocal<Integer>();
+
+    // jobs pending when a job is queued
+    private final long[] mDepthHistogram = new long[HISTOGRAM_BUCKETS];
+
+    // milliseconds from queuing a job to its end
+    private final long[] mLatencyHistogram = new long[HISTOGRAM_BUCKETS];
+
+    private ProcessingQueue(Context context) {
+        mContext = context;
+        mJournal = new File(context.getFilesDir(), JOURNAL_NAME);
+        mWorkers = new Worker[Runtime.getRuntime().availableProcessors()];
+        restore();
+    }
+
+    /**
+     * Returns the queue, resuming the jobs of a killed process when it is
+     * created.
+     */
+    public static synchronized ProcessingQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProcessingQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Called by RecorderService when capturing starts or stops, to throttle
+     * the workers or let them all run again.
+     */
+    public static void recordingChanged() {
+        ProcessingQueue queue;
+        synchronized (ProcessingQueue.class) {
+            queue = sInstance;
+        }
+        if (queue != null) {
+            queue.updateWorkers();
+        }
+    }
+
+    /**
+     * Listeners are added and removed on the main thread.
+     */
+    public void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Queues a job, or returns the queued job of the same kind for the
+     * recording if there is one.
+     */
+    public synchronized Job enqueue(int kind, File source, int priority) {
+        Job job = find(kind, source);
+        if (job != null) {
+            return job;
+        }
+        mDepthHistogram[bucket(mPending.size())]++;
+        job = new Job(this, mNextId++, kind, priority, source);
+        mPending.add(job);
+        save();
+        updateWorkers();
+        return job;
+    }
+
+    /**
+     * Cancels a job. A pending job is dropped, a running one stops at its
+     * next progress report and leaves nothing behind.
+     */
+    public synchronized void cancel(Job job) {
+        job.mCancelled = true;
+        if (mPending.remove(job)) {
+            save();
+            postFinished(job, null);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Cancels all jobs for a recording, before it is deleted or replaced.
+     */
+    public synchronized void cancel(File source) {
+        ArrayList<Job> jobs = new ArrayList<Job>(mPending);
+        jobs.addAll(mRunning);
+        for (Job job : jobs) {
+            if (job.mSource.equals(source)) {
+                cancel(job);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of jobs that are pending or running.
+     */
+    public synchronized int depth() {
+        return mPending.size() + mRunning.size();
+    }
+
+    /**
+     * Returns how many jobs found a queue of 0, 1, 2-3, 4-7... pending jobs.
+     */
+    public synchronized long[] depthHistogram() {
+        return mDepthHistogram.clone();
+    }
+
+    /**
+     * Returns how many jobs took 0, 1, 2-3, 4-7... milliseconds from being
+     * queued to their end.
+     */
+    public synchronized long[] latencyHistogram() {
+        return mLatencyHistogram.clone();
+    }
+
+    public synchronized String statistics() {
+        return "queue depth " + format(mDepthHistogram) + ", latency ms "
+                + format(mLatencyHistogram);
+    }
+
+    private Job find(int kind, File source) {
+        ArrayList<Job> jobs = new ArrayList<Job>(mPending);
+        jobs.addAll(mRunning);
+        for (Job job : jobs) {
+            if (job.mKind == kind && job.mSource.equals(source) && !job.mCancelled) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Starts as many workers as there are jobs, up to one per core or a
+     * single one while recording, and sets the priority of the running ones.
+     */
+    private synchronized void updateWorkers() {
+        mRecordingChanges++;
+        boolean recording = RecorderService.isRecording();
+        int priority = recording ? Process.THREAD_PRIORITY_LOWEST
+                : Process.THREAD_PRIORITY_BACKGROUND;
+        int needed = recording ? 1 : Math.min(mWorkers.length, mPending.size()
+                + mRunning.size());
+        for (int i = 0; i < mWorkers.length; i++) {
+            if (mWorkers[i] != null) {
+                if (mWorkers[i].mTid != 0) {
+                    Process.setThreadPriority(mWorkers[i].mTid, priority);
+                }
+            } else if (i < needed && !mPending.isEmpty()) {
+                mWorkers[i] = new Worker(i);
+                mWorkers[i].start();
+            }
+        }
+        notifyAll();
+    }
+
+    /*
+     * Returns the next job for a worker, the oldest of the highest priority,
+     * or null once the worker has been idle for a while.
+     */
+    private synchronized Job take(Worker worker) {
+        long idleSince = SystemClock.elapsedRealtime();
+        while (true) {
+            boolean recording = RecorderService.isRecording();
+            if (!recording || worker.mIndex == 0) {
+                Job next = null;
+                for (Job job : mPending) {
+                    if (next == null || job.mPriority > next.mPriority) {
+                        next = job;
+                    }
+                }
+                if (next != null) {
+                    mPending.remove(next);
+                    mRunning.add(next);
+                    next.mWorker = worker.mIndex;
+                    Process.setThreadPriority(recording ? Process.THREAD_PRIORITY_LOWEST
+                            : Process.THREAD_PRIORITY_BACKGROUND);
+                    return next;
+                }
+            }
+            long idle = SystemClock.elapsedRealtime() - idleSince;
+            if (idle >= IDLE_TIMEOUT) {
+                mWorkers[worker.mIndex] = null;
+                return null;
+            }
+            try {
+                wait(IDLE_TIMEOUT - idle);
+            } catch (InterruptedException e) {
+                mWorkers[worker.mIndex] = null;
+                return null;
+            }
+        }
+    }
+
+    /*
+     * Holds a job on any worker but the first while recording, and all
+     * threads of the job on the first but one, which takes the turn until it
+     * stops reporting progress. The priority of the calling thread follows
+     * the recording, as the chunks of a job run on threads of its own.
+     */
+    private synchronized void awaitTurn(Job job) {
+        Thread thread = Thread.currentThread();
+        while (!job.mCancelled && RecorderService.isRecording()) {
+            long now = SystemClock.elapsedRealtime();
+            if (job.mWorker == 0 && (job.mTurn == null || job.mTurn == thread
+                    || now - job.mTurnTime >= TURN_TIMEOUT)) {
+                job.mTurn = thread;
+                job.mTurnTime = now;
+                break;
+            }
+            try {
+                wait(job.mWorker == 0 ? TURN_TIMEOUT : 0);
+            } catch (InterruptedException e) {
+                thread.interrupt();
+                return;
+            }
+        }
+        Integer changes = mPriorityChanges.get();
+        if (changes == null || changes != mRecordingChanges) {
+            mPriorityChanges.set(mRecordingChanges);
+            Process.setThreadPriority(RecorderService.isRecording()
+                    ? Process.THREAD_PRIORITY_LOWEST : Process.THREAD_PRIORITY_BACKGROUND);
+        }
+    }
+
+    /*
+     * Returns the threads a starting job may use itself.
+     */
+    private synchronized int jobThreads() {
+        if (RecorderService.isRecording()) {
+            return 1;
+        }
+        return Math.max(1, mWorkers.length / Math.max(1, mRunning.size()));
+    }
+
+    private void execute(Job job) {
+        File result = null;
+        try {
+            if (!job.mCancelled && job.mSource.exists()) {
+                result = run(job, jobThreads());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "job " + job.mId + " on " + job.mSource + " failed: " + e);
+        } catch (RuntimeException e) {
+            // also thrown for a cancelled job; a failing job is dropped rather
+            // than crash the process, as the journal would run it again
+            if (!job.mCancelled) {
+                Log.e(TAG, "job " + job.mId + " on " + job.mSource + " failed", e);
+            }
+        }
+        if (job.mCancelled) {
+            result = null;
+        }
+
+        synchronized (this) {
+            mRunning.remove(job);
+            mLatencyHistogram[bucket(SystemClock.elapsedRealtime() - job.mQueuedTime)]++;
+            save();
+            if (mPending.isEmpty() && mRunning.isEmpty()) {
+                Log.d(TAG, statistics());
+            }
+        }
+        postFinished(job, result);
+    }
+
+    private File run(Job job, int threads) throws IOException {
+        File source = job.mSource;
+        switch (job.mKind) {
+            case KIND_REGISTER:
+                // the steps report no progress, the job is held before each
+                job.onProgress(0, 1);
+                register(source);
+                return source;
+            case KIND_ANALYZE:
+                job.onProgress(0, 2);
+                VoiceActivity.load(source);
+                job.onProgress(1, 2);
+                if (source.getName().endsWith(".amr")) {
+                    AmrSeekIndex.load(source);
+                } else if (source.getName().endsWith(".wav")) {
+                    LoudnessNormalizer.measure(source, threads, job);
+                }
+                return source;
+            case KIND_NORMALIZE:
+            case KIND_DENOISE:
+                return process(job, threads);
+            default:
+                throw new IOException("unknown job kind " + job.mKind);
+        }
+    }
+
+    private void register(File recording) {
+        if (MediaStoreHelper.isRegistered(mContext, recording)) {
+            return;
+        }
+        long duration;
+        SegmentManifest manifest = SegmentManifest.load(recording);
+        if (manifest != null) {
+            duration = manifest.totalDuration();
+        } else {
+            duration = RecordingMetadata.load(recording).getLong(
+                    RecordingMetadata.KEY_DURATION, -1);
+            if (duration < 0) {
+                try {
+                    duration = AudioInfo.read(recording).getDuration();
+                } catch (IOException e) {
+                    Log.w(TAG, "unable to measure " + recording + ": " + e);
+                    duration = 0;
+                }
+            }
+        }
+        MediaStoreHelper.addRecording(mContext, recording, duration,
+                MediaStoreHelper.mimeType(recording));
+    }
+
+    /*
+     * Writes a processed copy of a WAV recording next to it under a name of
+     * its own and registers it.
+     */
+    private File process(Job job, int threads) throws IOException {
+        File source = job.mSource;
+        File temp = RecordingFiles.sidecar(source, PROCESSING_SUFFIX + job.mId);
+        long duration;
+        try {
+            if (job.mKind == KIND_DENOISE) {
+                SpectralDenoiser denoiser = new SpectralDenoiser(source);
+                denoiser.setProgressListener(job);
+                denoiser.process(temp, threads);
+                duration = denoiser.getDuration();
+            } else {
+                duration = LoudnessNormalizer.normalize(source, temp, threads, job);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+
+        String name = source.getName();
+        String base = name.substring(0, name.lastIndexOf('.'))
+                + (job.mKind == KIND_DENOISE ? "_denoised" : "_normalized");
+        File target;
+        synchronized (this) {
+            target = new File(source.getParentFile(), base + ".wav");
+            for (int i = 2; target.exists(); i++) {
+                target = new File(source.getParentFile(), base + i + ".wav");
+            }
+            if (job.mCancelled || !temp.renameTo(target)) {
+                temp.delete();
+                return null;
+            }
+        }
+        MediaStoreHelper.addRecording(mContext, target, duration, SoundRecorder.AUDIO_WAV);
+        return target;
+    }
+
+    private void postProgress(final Job job, final int percent) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (Listener listener : new ArrayList<Listener>(mListeners)) {
+                    listener.onProgress(job, percent);
+                }
+            }
+        });
+    }
+
+    private void postFinished(final Job job, final File result) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                for (Listener listener : new ArrayList<Listener>(mListeners)) {
+                    listener.onFinished(job, result);
+                }
+            }
+        });
+    }
+
+    /*
+     * Rewrites the journal, a line "id kind priority path" per pending or
+     * running job.
+     */
+    private void save() {
+        File temp = new File(mJournal.getPath() + ".tmp");
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(temp));
+            try {
+                for (Job job : mRunning) {
+                    write(out, job);
+                }
+                for (Job job : mPending) {
+                    write(out, job);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mJournal)) {
+                throw new IOException("unable to replace " + mJournal);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write the journal: " + e);
+            temp.delete();
+        }
+    }
+
+    private static void write(PrintWriter out, Job job) {
+        if (!job.mCancelled) {
+            out.println(job.mId + " " + job.mKind + " " + job.mPriority + " "
+                    + job.mSource.getAbsolutePath());
+        }
+    }
+
+    private synchronized void restore() {
+        if (!mJournal.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(mJournal));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length < 4) {
+                        continue;
+                    }
+                    File source = new File(fields[3]);
+                    int id = Integer.parseInt(fields[0]);
+                    mNextId = Math.max(mNextId, id + 1);
+                    if (source.exists()) {
+                        mPending.add(new Job(this, id, Integer.parseInt(fields[1]),
+                                Integer.parseInt(fields[2]), source));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read the journal: " + e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "bad journal: " + e);
+        }
+        if (!mPending.isEmpty()) {
+            Log.d(TAG, "resuming " + mPending.size() + " jobs");
+            updateWorkers();
+        }
+    }
+
+    private static int bucket(long value) {
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, value));
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    private static String format(long[] histogram) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(i == 0 ? "0" : i == HISTOGRAM_BUCKETS - 1 ? ">=" + (1L << (i - 1))
+                    : "<" + (1L << i)).append(':').append(histogram[i]);
+        }
+        return "[" + builder + "]";
+    }
+}
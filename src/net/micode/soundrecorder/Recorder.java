@@ -23,19 +23,39 @@ import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnSeekCompleteListener;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.Log;
+
+public class Recorder implements OnCompletionListener, OnErrorListener,
+        OnSeekCompleteListener, PcmPlayer.OnCompletionListener, PcmPlayer.OnErrorListener {
+    private static final String TAG = "Recorder";
 
-public class Recorder implements OnCompletionListener, OnErrorListener {
     private static final String SAMPLE_PREFIX = "recording";
 
     private static final String SAMPLE_PATH_KEY = "sample_path";
 
-    private static final String SAMPLE_LENGTH_KEY = "sample_length";
+    private static final String SAMPLE_DURATION_KEY = "sample_duration";
 
     public static final String SAMPLE_DEFAULT_DIR = "/sound_recorder";
 
+    // longest wait between two checks for the end of a voiced interval
+    private static final int SKIP_CHECK_INTERVAL = 200;
+
+    // a gap shorter than this is not worth a seek, seeks may land early
+    private static final int SKIP_TOLERANCE = 100;
+
+    // AMR seeks at least this far from the start of the file being played
+    // play the sample from the position as a new file
+    private static final int TAIL_MIN_DISTANCE = 30000;
+
+    private static final String TAIL_SUFFIX = ".tail";
+
     public static final int IDLE_STATE = 0;
 
     public static final int RECORDING_STATE = 1;
@@ -64,10 +84,10 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
     private OnStateChangedListener mOnStateChangedListener = null;
 
-    private long mSampleStart = 0; // time at which latest record or play
-                                   // operation started
+    private long mSampleStart = 0; // elapsed realtime at which latest record
+                                   // or play operation started
 
-    private int mSampleLength = 0; // length of current sample
+    private long mSampleDuration = 0; // duration of current sample in ms
 
     private File mSampleFile = null;
 
@@ -75,6 +95,43 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
     private MediaPlayer mPlayer = null;
 
+    // plays WAV samples instead of mPlayer, so their speed can be changed
+    private PcmPlayer mPcmPlayer = null;
+
+    private float mSpeed = 1.0f;
+
+    // segments of the sample being played, null if it has only one
+    private SegmentManifest mManifest = null;
+
+    private int mSegmentIndex = 0;
+
+    private long mSegmentStart = 0; // position at which the segment starts
+
+    // frame offsets of an AMR sample, loaded in the background
+    private AmrSeekIndex mSeekIndex = null;
+
+    // the part of the sample after a seek, played instead of it
+    private File mTailFile = null;
+
+    // compact copy of the sample for another app, null if none is written
+    private File mCompactCopy = null;
+
+    private final Handler mHandler = new Handler();
+
+    private boolean mSkipSilence = false;
+
+    // voiced intervals of the sample when silence is skipped
+    private VoiceActivity mVoiceActivity = null;
+
+    // sample the intervals were loaded or are being loaded for
+    private File mVoiceActivityFile = null;
+
+    private final Runnable mSkipSilenceCheck = new Runnable() {
+        public void run() {
+            skipSilence();
+        }
+    };
+
     public Recorder(Context context) {
         mContext = context;
         File sampleDir = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
@@ -83,6 +140,7 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
             sampleDir.mkdirs();
         }
         mSampleDir = sampleDir;
+        mSpeed = SoundRecorderPreferenceActivity.getPlaybackSpeed(context);
 
         syncStateWithService();
     }
@@ -96,7 +154,7 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
         } else if (mState == RECORDING_STATE) {
             // service is idle but local state is recording
             return false;
-        } else if (mSampleFile != null && mSampleLength == 0) {
+        } else if (mSampleFile != null && mSampleDuration == 0) {
             // this state can be reached if there is an incoming call
             // the record service is stopped by incoming call without notifying
             // the UI
@@ -107,7 +165,7 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
     public void saveState(Bundle recorderState) {
         recorderState.putString(SAMPLE_PATH_KEY, mSampleFile.getAbsolutePath());
-        recorderState.putInt(SAMPLE_LENGTH_KEY, mSampleLength);
+        recorderState.putLong(SAMPLE_DURATION_KEY, mSampleDuration);
     }
 
     public String getRecordDir() {
@@ -124,8 +182,8 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
         String samplePath = recorderState.getString(SAMPLE_PATH_KEY);
         if (samplePath == null)
             return;
-        int sampleLength = recorderState.getInt(SAMPLE_LENGTH_KEY, -1);
-        if (sampleLength == -1)
+        long sampleDuration = recorderState.getLong(SAMPLE_DURATION_KEY, -1);
+        if (sampleDuration == -1)
             return;
 
         File file = new File(samplePath);
@@ -137,7 +195,11 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
         delete();
         mSampleFile = file;
-        mSampleLength = sampleLength;
+        mSampleDuration = sampleDuration;
+        if (sampleDuration > 0) {
+            // the file may have been finished after the state was saved
+            measureSample();
+        }
 
         signalStateChanged(IDLE_STATE);
     }
@@ -150,12 +212,15 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
         return mState;
     }
 
-    public int progress() {
+    /**
+     * Returns the time recorded or the playback position in milliseconds.
+     */
+    public long progress() {
         if (mState == RECORDING_STATE) {
-            return (int) ((System.currentTimeMillis() - mSampleStart) / 1000);
+            return SystemClock.elapsedRealtime() - recordingStart();
         } else if (mState == PLAYING_STATE || mState == PLAYING_PAUSED_STATE) {
-            if (mPlayer != null) {
-                return (int) (mPlayer.getCurrentPosition() / 1000);
+            if (isPlayerOpen()) {
+                return shownPosition();
             }
         }
 
@@ -163,14 +228,222 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
     }
 
     public float playProgress() {
-        if (mPlayer != null) {
-            return ((float) mPlayer.getCurrentPosition()) / mPlayer.getDuration();
+        if (isPlayerOpen()) {
+            return ((float) shownPosition()) / shownDuration();
         }
         return 0.0f;
     }
 
-    public int sampleLength() {
-        return mSampleLength;
+    /*
+     * Returns when the recording started as the service saw it, which is
+     * after the intent to start reached it.
+     */
+    private long recordingStart() {
+        long start = RecorderService.getStartTime();
+        return RecorderService.isRecording() && start > 0 ? start : mSampleStart;
+    }
+
+    /**
+     * Returns the duration of the sample in milliseconds as played, without
+     * the skipped silence.
+     */
+    public long playLength() {
+        if (mVoiceActivity != null) {
+            return mVoiceActivity.toPlayback(mSampleDuration);
+        }
+        return mSampleDuration;
+    }
+
+    private long playPosition() {
+        if (mPcmPlayer != null) {
+            return mPcmPlayer.getCurrentPosition();
+        }
+        return mSegmentStart + mPlayer.getCurrentPosition();
+    }
+
+    private long playDuration() {
+        if (mPcmPlayer != null) {
+            return mPcmPlayer.getDuration();
+        }
+        return mManifest != null ? mManifest.totalDuration() : mSegmentStart
+                + mPlayer.getDuration();
+    }
+
+    private boolean isPlayerOpen() {
+        return mPlayer != null || mPcmPlayer != null;
+    }
+
+    /*
+     * Seeks to a position in the sample within the open segment.
+     */
+    private void seekPlayer(long position) {
+        if (mPcmPlayer != null) {
+            mPcmPlayer.seekTo(position);
+        } else {
+            mPlayer.seekTo((int) (position - mSegmentStart));
+        }
+    }
+
+    private void startPlayer() {
+        if (mPcmPlayer != null) {
+            mPcmPlayer.setSpeed(mSpeed);
+            mPcmPlayer.start();
+        } else {
+            mPlayer.start();
+        }
+    }
+
+    private void releasePlayer() {
+        if (mPcmPlayer != null) {
+            mPcmPlayer.release();
+            mPcmPlayer = null;
+        }
+        if (mPlayer != null) {
+            mPlayer.release();
+            mPlayer = null;
+        }
+        if (mTailFile != null) {
+            mTailFile.delete();
+            mTailFile = null;
+        }
+    }
+
+    /**
+     * Returns the playback speed of WAV samples, other samples always play
+     * at 1.
+     */
+    public float playbackSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Changes the playback speed of WAV samples and keeps it for the next
+     * ones, also while playing.
+     */
+    public void setPlaybackSpeed(float speed) {
+        mSpeed = speed;
+        SoundRecorderPreferenceActivity.setPlaybackSpeed(mContext, speed);
+        if (mPcmPlayer != null) {
+            mPcmPlayer.setSpeed(speed);
+            // the end of the voiced interval comes sooner or later now
+            skipSilence();
+        }
+    }
+
+    // position and duration as shown, without the skipped silence
+    private long shownPosition() {
+        long position = playPosition();
+        return mVoiceActivity != null ? mVoiceActivity.toPlayback(position) : position;
+    }
+
+    private long shownDuration() {
+        long duration = playDuration();
+        return mVoiceActivity != null ? mVoiceActivity.toPlayback(duration) : duration;
+    }
+
+    /*
+     * Returns the position in the sample shown at the given fraction of the
+     * seek bar.
+     */
+    private long playPositionAt(float percentage) {
+        long shown = (long) (percentage * shownDuration());
+        return mVoiceActivity != null ? mVoiceActivity.toRecording(shown) : shown;
+    }
+
+    /**
+     * Returns the duration of the sample in milliseconds, 0 if there is none.
+     * It is measured while recording and replaced by the duration of the
+     * encoded audio once the file is finished.
+     */
+    public long sampleDuration() {
+        return mSampleDuration;
+    }
+
+    /*
+     * Takes the duration of the sample from its finished file, where the
+     * frames or samples are counted, and keeps it in the metadata of the
+     * sample. A segmented sample has the durations of its segments in the
+     * manifest. An AMR file may be scanned frame by frame, so it is measured
+     * in the background and the duration taken so far is shown until then.
+     */
+    private void measureSample() {
+        final File file = mSampleFile;
+        final long provisional = mSampleDuration;
+        new AsyncTask<Void, Void, Long>() {
+            @Override
+            protected Long doInBackground(Void... params) {
+                return measure(file);
+            }
+
+            @Override
+            protected void onPostExecute(Long duration) {
+                // unless the sample was replaced or recorded again meanwhile
+                if (duration > 0 && file.equals(mSampleFile) && mSampleDuration == provisional
+                        && mState != RECORDING_STATE) {
+                    mSampleDuration = duration;
+                    signalStateChanged(mState);
+                }
+            }
+        }.execute();
+    }
+
+    private static long measure(File file) {
+        SegmentManifest manifest = SegmentManifest.load(file);
+        if (manifest != null) {
+            return manifest.totalDuration();
+        }
+        RecordingMetadata metadata = RecordingMetadata.load(file);
+        long duration = metadata.getLong(RecordingMetadata.KEY_DURATION, -1);
+        if (duration < 0) {
+            try {
+                duration = AudioInfo.read(file).getDuration();
+            } catch (IOException e) {
+                Log.w(TAG, "unable to measure " + file + ": " + e);
+                return -1;
+            }
+            storeDuration(metadata, duration);
+        }
+        return duration;
+    }
+
+    private static void storeDuration(RecordingMetadata metadata, long duration) {
+        metadata.putLong(RecordingMetadata.KEY_DURATION, duration);
+        try {
+            metadata.save();
+        } catch (IOException e) {
+            Log.w(TAG, "unable to save metadata: " + e);
+        }
+    }
+
+    /**
+     * Returns the playback position in the sample in milliseconds, 0 if
+     * nothing is playing.
+     */
+    public long playPositionMillis() {
+        return isPlayerOpen() ? playPosition() : 0;
+    }
+
+    /**
+     * Returns whether parts of the sample can be cut out without
+     * re-encoding it, which needs a single AMR file.
+     */
+    public boolean canCutSample() {
+        return mSampleFile != null && mSampleDuration > 0 && mState != RECORDING_STATE
+                && mSampleFile.getName().endsWith(".amr")
+                && SegmentManifest.load(mSampleFile) == null;
+    }
+
+    /**
+     * Takes up the sample file again after it was replaced, e.g. by joining
+     * it with other recordings.
+     */
+    public void sampleReplaced(long durationMillis) {
+        stop();
+        forgetVoiceActivity();
+        mSeekIndex = null;
+        mSampleDuration = Math.max(1, durationMillis);
+        storeDuration(RecordingMetadata.load(mSampleFile), durationMillis);
+        signalStateChanged(IDLE_STATE);
     }
 
     public File sampleFile() {
@@ -184,8 +457,14 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
                 String extension = oldName.substring(oldName.lastIndexOf('.'));
                 File newFile = new File(mSampleFile.getParent() + "/" + name + extension);
                 if (!TextUtils.equals(oldName, newFile.getAbsolutePath())) {
-                    if (mSampleFile.renameTo(newFile)) {
+                    if (RecordingFiles.rename(mSampleFile, newFile)) {
                         mSampleFile = newFile;
+                        if (mCompactCopy != null) {
+                            File copy = compactCopyFile(newFile);
+                            if (mCompactCopy.renameTo(copy)) {
+                                mCompactCopy = copy;
+                            }
+                        }
                     }
                 }
             }
@@ -198,11 +477,19 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
     public void delete() {
         stop();
 
-        if (mSampleFile != null)
-            mSampleFile.delete();
+        if (mSampleFile != null) {
+            ProcessingQueue.getInstance(mContext).cancel(mSampleFile);
+            RecordingFiles.delete(mSampleFile);
+        }
+        if (mCompactCopy != null) {
+            mCompactCopy.delete();
+            mCompactCopy = null;
+        }
 
         mSampleFile = null;
-        mSampleLength = 0;
+        mSampleDuration = 0;
+        forgetVoiceActivity();
+        mSeekIndex = null;
 
         signalStateChanged(IDLE_STATE);
     }
@@ -213,15 +500,17 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
      */
     public void clear() {
         stop();
-        mSampleLength = 0;
+        mSampleDuration = 0;
         signalStateChanged(IDLE_STATE);
     }
 
     public void reset() {
         stop();
 
-        mSampleLength = 0;
+        mSampleDuration = 0;
         mSampleFile = null;
+        mSeekIndex = null;
+        mCompactCopy = null;
         mState = IDLE_STATE;
 
         File sampleDir = new File(Environment.getExternalStorageDirectory().getAbsolutePath()
@@ -244,6 +533,23 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
 
     public void startRecording(int outputfileformat, String name, String extension,
             boolean highQuality, long maxFileSize) {
+        startRecording(outputfileformat, name, extension, highQuality, maxFileSize, -1, false,
+                false, null);
+    }
+
+    /**
+     * @param expectedDuration the length in milliseconds the size limit has
+     *            to last for, or -1 if it is open ended
+     * @param compactCopy whether a WAV recording is written together with a
+     *            compact copy, which the size limit then applies to
+     * @param singleFile whether the recording has to stay in one file at one
+     *            quality, as one returned to another app does
+     * @param profile the name of the recording profile the format and
+     *            quality were taken from, or null
+     */
+    public void startRecording(int outputfileformat, String name, String extension,
+            boolean highQuality, long maxFileSize, long expectedDuration, boolean compactCopy,
+            boolean singleFile, String profile) {
         stop();
 
         if (mSampleFile == null) {
@@ -256,70 +562,231 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
             }
         }
 
+        forgetVoiceActivity();
+        mSeekIndex = null;
+        mSampleDuration = 0;
+        mCompactCopy = compactCopy ? compactCopyFile(mSampleFile) : null;
         RecorderService.startRecording(mContext, outputfileformat, mSampleFile.getAbsolutePath(),
-                highQuality, maxFileSize);
-        mSampleStart = System.currentTimeMillis();
+                highQuality, maxFileSize, expectedDuration, mCompactCopy != null ? mCompactCopy
+                        .getAbsolutePath() : null, singleFile, profile);
+        mSampleStart = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the compact copy written with the sample, or null.
+     */
+    public File compactCopy() {
+        return mCompactCopy != null && mCompactCopy.exists() ? mCompactCopy : null;
+    }
+
+    private static File compactCopyFile(File sample) {
+        String name = sample.getName();
+        return new File(sample.getParentFile(), name.substring(0, name.lastIndexOf('.'))
+                + "_compact.wav");
     }
 
     public void stopRecording() {
         if (RecorderService.isRecording()) {
+            long start = recordingStart();
             RecorderService.stopRecording(mContext);
-            mSampleLength = (int) ((System.currentTimeMillis() - mSampleStart) / 1000);
-            if (mSampleLength == 0) {
-                // round up to 1 second if it's too short
-                mSampleLength = 1;
-            }
+            // until the service has finished the file and it can be measured
+            mSampleDuration = Math.max(1, SystemClock.elapsedRealtime() - start);
         }
     }
 
     public void startPlayback(float percentage) {
         if (state() == PLAYING_PAUSED_STATE) {
-            mSampleStart = System.currentTimeMillis() - mPlayer.getCurrentPosition();
-            mPlayer.seekTo((int) (percentage * mPlayer.getDuration()));
-            mPlayer.start();
-            setState(PLAYING_STATE);
-        } else {
-            stop();
-
-            mPlayer = new MediaPlayer();
-            try {
-                mPlayer.setDataSource(mSampleFile.getAbsolutePath());
-                mPlayer.setOnCompletionListener(this);
-                mPlayer.setOnErrorListener(this);
-                mPlayer.prepare();
-                mPlayer.seekTo((int) (percentage * mPlayer.getDuration()));
-                mPlayer.start();
-            } catch (IllegalArgumentException e) {
-                setError(INTERNAL_ERROR);
-                mPlayer = null;
-                return;
-            } catch (IOException e) {
-                setError(STORAGE_ACCESS_ERROR);
-                mPlayer = null;
+            long position = playPositionAt(percentage);
+            if ((mManifest == null || mManifest.segmentAt(position) == mSegmentIndex)
+                    && !seeksByTail(position)) {
+                mSampleStart = SystemClock.elapsedRealtime() - (playPosition() - mSegmentStart);
+                seekPlayer(position);
+                startPlayer();
+                setState(PLAYING_STATE);
+                skipSilence();
                 return;
             }
+        }
+
+        stop();
+        loadVoiceActivity();
+        mSpeed = SoundRecorderPreferenceActivity.getPlaybackSpeed(mContext);
+
+        mManifest = SegmentManifest.load(mSampleFile);
+        loadSeekIndex();
+        long position = playPositionAt(percentage);
+        int index = 0;
+        if (mManifest != null) {
+            index = mManifest.segmentAt(position);
+        }
+        if (!(seeksByTail(position) ? openTail(position) : openSegment(index))) {
+            setState(IDLE_STATE);
+            return;
+        }
+        seekPlayer(position);
+        startPlayer();
+
+        mSampleStart = SystemClock.elapsedRealtime();
+        setState(PLAYING_STATE);
+        skipSilence();
+    }
 
-            mSampleStart = System.currentTimeMillis();
-            setState(PLAYING_STATE);
+    /*
+     * Creates the player for the given segment of the sample.
+     */
+    private boolean openSegment(int index) {
+        File file = mManifest != null ? mManifest.segment(index) : mSampleFile;
+        if (mManifest == null && file.getName().endsWith(".wav")) {
+            return openPcmPlayer(file);
         }
+        if (!openMediaPlayer(file)) {
+            return false;
+        }
+        mSegmentIndex = index;
+        mSegmentStart = mManifest != null ? mManifest.startOf(index) : 0;
+        return true;
+    }
+
+    /*
+     * Creates the player for the AMR sample from the frame at a position on,
+     * written to a file of its own by the channel. This takes the same time
+     * wherever the position is, where MediaPlayer may scan the frames up to
+     * it.
+     */
+    private boolean openTail(long position) {
+        if (position < TAIL_MIN_DISTANCE) {
+            return openSegment(0);
+        }
+        long start = SystemClock.elapsedRealtime();
+        File tail = RecordingFiles.sidecar(mSampleFile, TAIL_SUFFIX);
+        long tailStart;
+        try {
+            tailStart = mSeekIndex.writeTail(position, tail);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to seek by the index: " + e);
+            tail.delete();
+            mSeekIndex = null;
+            return openSegment(0);
+        }
+        if (!openMediaPlayer(tail)) {
+            tail.delete();
+            return false;
+        }
+        mTailFile = tail;
+        mSegmentIndex = 0;
+        mSegmentStart = tailStart;
+        Log.d(TAG, "opened " + mSampleFile.getName() + " (" + (mSampleFile.length() / 1024)
+                + " KB) at " + position + " ms in " + (SystemClock.elapsedRealtime() - start)
+                + " ms");
+        return true;
+    }
+
+    /*
+     * Returns whether a seek of the AMR sample to a position opens it anew
+     * with openTail(), because the position is before the part being played
+     * or a seek of the player would scan far.
+     */
+    private boolean seeksByTail(long position) {
+        return mSeekIndex != null && mManifest == null && mPcmPlayer == null
+                && (position < mSegmentStart || position >= TAIL_MIN_DISTANCE
+                        && position - mSegmentStart >= TAIL_MIN_DISTANCE);
+    }
+
+    /*
+     * Loads the frame index of an AMR sample in the background, building it
+     * if the sample has none. Until it is loaded seeks go to the player.
+     */
+    private void loadSeekIndex() {
+        if (mSeekIndex != null && mSeekIndex.recording().equals(mSampleFile)) {
+            return;
+        }
+        mSeekIndex = null;
+        final File file = mSampleFile;
+        if (file == null || !file.getName().endsWith(".amr")
+                || SegmentManifest.load(file) != null) {
+            return;
+        }
+        new AsyncTask<Void, Void, AmrSeekIndex>() {
+            @Override
+            protected AmrSeekIndex doInBackground(Void... params) {
+                return AmrSeekIndex.load(file);
+            }
+
+            @Override
+            protected void onPostExecute(AmrSeekIndex index) {
+                if (file.equals(mSampleFile) && mState != RECORDING_STATE) {
+                    mSeekIndex = index;
+                }
+            }
+        }.execute();
+    }
+
+    private boolean openMediaPlayer(File file) {
+        mPlayer = new MediaPlayer();
+        try {
+            mPlayer.setDataSource(file.getAbsolutePath());
+            mPlayer.setOnCompletionListener(this);
+            mPlayer.setOnErrorListener(this);
+            mPlayer.setOnSeekCompleteListener(this);
+            mPlayer.prepare();
+        } catch (IllegalArgumentException e) {
+            setError(INTERNAL_ERROR);
+            mPlayer.release();
+            mPlayer = null;
+            return false;
+        } catch (IOException e) {
+            setError(STORAGE_ACCESS_ERROR);
+            mPlayer.release();
+            mPlayer = null;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean openPcmPlayer(File file) {
+        try {
+            mPcmPlayer = new PcmPlayer(file);
+        } catch (IOException e) {
+            setError(STORAGE_ACCESS_ERROR);
+            return false;
+        }
+        if (!mPcmPlayer.prepare()) {
+            setError(INTERNAL_ERROR);
+            mPcmPlayer.release();
+            mPcmPlayer = null;
+            return false;
+        }
+        mPcmPlayer.setOnCompletionListener(this);
+        mPcmPlayer.setOnErrorListener(this);
+        mSegmentIndex = 0;
+        mSegmentStart = 0;
+        return true;
     }
 
     public void pausePlayback() {
-        if (mPlayer == null) {
+        if (!isPlayerOpen()) {
             return;
         }
 
-        mPlayer.pause();
+        mHandler.removeCallbacks(mSkipSilenceCheck);
+        if (mPcmPlayer != null) {
+            mPcmPlayer.pause();
+        } else {
+            mPlayer.pause();
+        }
         setState(PLAYING_PAUSED_STATE);
     }
 
     public void stopPlayback() {
-        if (mPlayer == null) // we were not in playback
+        if (!isPlayerOpen()) // we were not in playback
             return;
 
-        mPlayer.stop();
-        mPlayer.release();
-        mPlayer = null;
+        mHandler.removeCallbacks(mSkipSilenceCheck);
+        if (mPlayer != null) {
+            mPlayer.stop();
+        }
+        releasePlayer();
+        mSegmentStart = 0;
         setState(IDLE_STATE);
     }
 
@@ -335,13 +802,157 @@ public class Recorder implements OnCompletionListener, OnErrorListener {
     }
 
     public void onCompletion(MediaPlayer mp) {
+        if (mManifest != null && mSegmentIndex + 1 < mManifest.count()) {
+            // continue with the next segment of the sample
+            mPlayer.release();
+            mPlayer = null;
+            if (openSegment(mSegmentIndex + 1)) {
+                mPlayer.start();
+                skipSilence();
+            } else {
+                setState(IDLE_STATE);
+            }
+            return;
+        }
         stop();
     }
 
+    public void onError(PcmPlayer player) {
+        stop();
+        setError(STORAGE_ACCESS_ERROR);
+    }
+
+    public void onCompletion(PcmPlayer player) {
+        stop();
+    }
+
+    public void onSeekComplete(MediaPlayer mp) {
+        // the player was muted for a jump over silence
+        mp.setVolume(1.0f, 1.0f);
+    }
+
+    /*
+     * Loads the voiced intervals of the sample in the background if silence
+     * is to be skipped. Until they are loaded the sample plays in full.
+     */
+    private void loadVoiceActivity() {
+        mSkipSilence = SoundRecorderPreferenceActivity.isSkipSilenceEnabled(mContext);
+        if (!mSkipSilence) {
+            forgetVoiceActivity();
+            return;
+        }
+        if (mSampleFile.equals(mVoiceActivityFile)) {
+            return;
+        }
+
+        final File file = mSampleFile;
+        mVoiceActivity = null;
+        mVoiceActivityFile = file;
+        new AsyncTask<Void, Void, VoiceActivity>() {
+            @Override
+            protected VoiceActivity doInBackground(Void... params) {
+                return VoiceActivity.load(file);
+            }
+
+            @Override
+            protected void onPostExecute(VoiceActivity voice) {
+                if (mSkipSilence && file.equals(mVoiceActivityFile)) {
+                    mVoiceActivity = voice;
+                    skipSilence();
+                }
+            }
+        }.execute();
+    }
+
+    private void forgetVoiceActivity() {
+        mVoiceActivity = null;
+        mVoiceActivityFile = null;
+    }
+
+    /*
+     * Jumps over the silence at the playback position, if any, and checks
+     * again when the voiced interval being played ends.
+     */
+    private void skipSilence() {
+        mHandler.removeCallbacks(mSkipSilenceCheck);
+        if (mVoiceActivity == null || mVoiceActivity.count() == 0 || !isPlayerOpen()
+                || mState != PLAYING_STATE) {
+            return;
+        }
+
+        long position = playPosition();
+        int interval = mVoiceActivity.intervalAt(position);
+        if (interval == mVoiceActivity.count()) {
+            // nothing but silence is left
+            stop();
+            return;
+        }
+        long start = mVoiceActivity.start(interval);
+        if (start - position > SKIP_TOLERANCE) {
+            if (!jumpTo(start)) {
+                return;
+            }
+            position = start;
+        }
+        // the interval plays faster or slower than real time
+        long remaining = (long) ((mVoiceActivity.end(interval) - position)
+                / (mPcmPlayer != null ? mSpeed : 1.0f));
+        mHandler.postDelayed(mSkipSilenceCheck,
+                Math.max(10, Math.min(remaining, SKIP_CHECK_INTERVAL)));
+    }
+
+    /*
+     * Seeks to a position in the sample while playing. The player is muted
+     * until the seek completes so the jump can't be heard.
+     */
+    private boolean jumpTo(long position) {
+        if (mPcmPlayer != null) {
+            // seeks are exact and fade in
+            mPcmPlayer.seekTo(position);
+            return true;
+        }
+        if (seeksByTail(position)) {
+            releasePlayer();
+            if (!openTail(position)) {
+                setState(IDLE_STATE);
+                return false;
+            }
+            mPlayer.setVolume(0.0f, 0.0f);
+            mPlayer.seekTo((int) (position - mSegmentStart));
+            mPlayer.start();
+            return true;
+        }
+        if (mManifest != null && mManifest.segmentAt(position) != mSegmentIndex) {
+            mPlayer.release();
+            mPlayer = null;
+            if (!openSegment(mManifest.segmentAt(position))) {
+                setState(IDLE_STATE);
+                return false;
+            }
+            mPlayer.setVolume(0.0f, 0.0f);
+            mPlayer.seekTo((int) (position - mSegmentStart));
+            mPlayer.start();
+            return true;
+        }
+        mPlayer.setVolume(0.0f, 0.0f);
+        mPlayer.seekTo((int) (position - mSegmentStart));
+        return true;
+    }
+
     public void setState(int state) {
         if (state == mState)
             return;
 
+        if (mState == RECORDING_STATE && mSampleFile != null) {
+            // the service has finished the file
+            if (mSampleDuration == 0) {
+                mSampleDuration = Math.max(1, SystemClock.elapsedRealtime() - recordingStart());
+            }
+            measureSample();
+            // built while the file is still in the page cache
+            loadSeekIndex();
+        }
+
         mState = state;
         signalStateChanged(mState);
     }
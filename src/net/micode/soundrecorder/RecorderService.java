@@ -31,13 +31,18 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 
-public class RecorderService extends Service implements MediaRecorder.OnErrorListener {
+public class RecorderService extends Service implements MediaRecorder.OnErrorListener,
+        PcmRecorder.OnErrorListener, StorageMonitor.OnRemainingTimeChangedListener {
+
+    private final static String TAG = "RecorderService";
 
     public final static String ACTION_NAME = "action_type";
 
@@ -59,6 +64,14 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
 
     public final static String ACTION_PARAM_MAX_FILE_SIZE = "max_file_size";
 
+    public final static String ACTION_PARAM_COPY_PATH = "copy_path";
+
+    public final static String ACTION_PARAM_EXPECTED_DURATION = "expected_duration";
+
+    public final static String ACTION_PARAM_PROFILE = "profile";
+
+    public final static String ACTION_PARAM_SINGLE_FILE = "single_file";
+
     public final static String RECORDER_SERVICE_BROADCAST_NAME = "com.android.soundrecorder.broadcast";
 
     public final static String RECORDER_SERVICE_BROADCAST_STATE = "is_recording";
@@ -67,13 +80,112 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
 
     public final static int NOTIFICATION_ID = 62343234;
 
+    // output format that records PCM through the DSP chain into a WAV file
+    public final static int OUTPUT_FORMAT_WAV = -1;
+
+    // minutes of recording the storage is reserved for in reservation mode
+    private final static int RESERVE_MINUTES = 5;
+
+    // remaining seconds below which recording continues at lower quality
+    private final static int ADAPTIVE_QUALITY_THRESHOLD = 1800;
+
+    private final static long MIN_SEGMENT_CHECK_INTERVAL = 1000;
+
+    // shorter recordings say more about starting than about encoding
+    private final static long MIN_CPU_METER_MILLIS = 10000;
+
+    // about ten seconds of amplitude samples
+    private final static int AMPLITUDE_RING_SIZE = 512;
+
+    private final static int AMPLITUDE_READ_SIZE = 64;
+
+    private final static long WAVEFORM_INDEX_INTERVAL = 1000;
+
+    // the VU meter shows the peak of this many milliseconds
+    private final static long METER_WINDOW = 100;
+
     private static MediaRecorder mRecorder = null;
 
+    // used instead of mRecorder for WAV recordings
+    private static PcmRecorder mPcmRecorder = null;
+
     private static String mFilePath = null;
 
     private static long mStartTime = 0;
 
-    private RemainingTimeCalculator mRemainingTimeCalculator;
+    private static AmplitudeSampler mAmplitudeSampler = null;
+
+    private int mOutputFormat;
+
+    private boolean mHighQuality;
+
+    // lowering the quality was tried in this recording
+    private boolean mQualityLowered;
+
+    private long mMaxFileSize;
+
+    // neither split into segments nor lowered in quality
+    private boolean mSingleFile;
+
+    private CodecProfile mCodecs;
+
+    // the named profile recorded with, or null
+    private RecordingProfile mProfile;
+
+    private CpuMeter mCpuMeter;
+
+    // settings fitting a size limited recording into its limit, or null
+    private EncoderSettings mSizeTarget;
+
+    private long mExpectedDuration;
+
+    // manifest of the segments, null as long as there is only one
+    private SegmentManifest mManifest;
+
+    private long mSegmentStartTime;
+
+    private File mSegmentFile;
+
+    // rotate to a new segment after this long or this many bytes, 0 for never
+    private long mSegmentMillis;
+
+    private long mSegmentBytes;
+
+    // statistics of the gaps between segments
+    private int mRotationCount;
+
+    private long mTotalRotationGap;
+
+    private long mMaxRotationGap;
+
+    // threshold that opens a voice-activated recording
+    private static final float VOICE_THRESHOLD_DB = -45;
+
+    private PeakIndexWriter mPeakWriter;
+
+    // the PCM path writes the index itself, one bucket per block written
+    private boolean mIndexFromSampler;
+
+    private long mPeakStartTime;
+
+    private AmplitudeSampler.Reader mIndexReader;
+
+    private final int[] mPeaks = new int[AMPLITUDE_READ_SIZE];
+
+    private final int[] mRms = new int[AMPLITUDE_READ_SIZE];
+
+    private final boolean[] mClipped = new boolean[AMPLITUDE_READ_SIZE];
+
+    private final long[] mSampleTimes = new long[AMPLITUDE_READ_SIZE];
+
+    // statistics of the waveform index reader
+    private long mIndexReads;
+
+    private long mIndexReadNanos;
+
+    private long mClippedSamples;
+
+    private StorageMonitor mStorageMonitor;
 
     private NotificationManager mNotifiManager;
 
@@ -94,24 +206,36 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
         }
     };
 
+    private boolean mNeedUpdateRemainingTime;
+
     private final Handler mHandler = new Handler();
 
-    private Runnable mUpdateRemainingTime = new Runnable() {
+    private final Runnable mCheckSegment = new Runnable() {
         public void run() {
-            if (mRecorder != null && mNeedUpdateRemainingTime) {
-                updateRemainingTime();
+            if (mRecorder != null) {
+                checkSegment();
             }
         }
     };
 
-    private boolean mNeedUpdateRemainingTime;
+    private final Runnable mUpdateWaveformIndex = new Runnable() {
+        public void run() {
+            if (isCapturing()) {
+                updateWaveformIndex();
+                mHandler.postDelayed(this, WAVEFORM_INDEX_INTERVAL);
+            }
+        }
+    };
 
     @Override
     public void onCreate() {
         super.onCreate();
         mRecorder = null;
+        mPcmRecorder = null;
         mLowStorageNotification = null;
-        mRemainingTimeCalculator = new RemainingTimeCalculator();
+        mStorageMonitor = StorageMonitor.getInstance();
+        mStorageMonitor.addListener(this);
+        mCodecs = CodecProfile.getInstance(this);
         mNeedUpdateRemainingTime = false;
         mNotifiManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         mTeleManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
@@ -123,6 +247,12 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // restarted after the process was killed, the recording is lost
+            // and will be recovered by the activity
+            stopSelf();
+            return START_NOT_STICKY;
+        }
         Bundle bundle = intent.getExtras();
         if (bundle != null && bundle.containsKey(ACTION_NAME)) {
             switch (bundle.getInt(ACTION_NAME, ACTION_INVALID)) {
@@ -130,20 +260,24 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
                     localStartRecording(bundle.getInt(ACTION_PARAM_FORMAT),
                             bundle.getString(ACTION_PARAM_PATH),
                             bundle.getBoolean(ACTION_PARAM_HIGH_QUALITY),
-                            bundle.getLong(ACTION_PARAM_MAX_FILE_SIZE));
+                            bundle.getLong(ACTION_PARAM_MAX_FILE_SIZE),
+                            bundle.getLong(ACTION_PARAM_EXPECTED_DURATION, -1),
+                            bundle.getString(ACTION_PARAM_COPY_PATH),
+                            bundle.getBoolean(ACTION_PARAM_SINGLE_FILE),
+                            bundle.getString(ACTION_PARAM_PROFILE));
                     break;
                 case ACTION_STOP_RECORDING:
                     localStopRecording();
                     break;
                 case ACTION_ENABLE_MONITOR_REMAIN_TIME:
-                    if (mRecorder != null) {
+                    if (isCapturing()) {
                         mNeedUpdateRemainingTime = true;
-                        mHandler.post(mUpdateRemainingTime);
+                        mStorageMonitor.requestUpdate();
                     }
                     break;
                 case ACTION_DISABLE_MONITOR_REMAIN_TIME:
                     mNeedUpdateRemainingTime = false;
-                    if (mRecorder != null) {
+                    if (isCapturing()) {
                         showRecordingNotification();
                     }
                     break;
@@ -157,6 +291,7 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
 
     @Override
     public void onDestroy() {
+        mStorageMonitor.removeListener(this);
         mTeleManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
         if (mWakeLock.isHeld()) {
             mWakeLock.release();
@@ -175,82 +310,517 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
         super.onLowMemory();
     }
 
+    /*
+     * A WAV recording can be written together with a compact copy, which the
+     * size limit then applies to. A size limited AMR or 3GPP recording is
+     * encoded at the bit rate that fits the expected duration into the limit.
+     * Otherwise the named recording profile, if any, sets the parameters.
+     */
     private void localStartRecording(int outputfileformat, String path, boolean highQuality,
-            long maxFileSize) {
-        if (mRecorder == null) {
-            mRemainingTimeCalculator.reset();
-            if (maxFileSize != -1) {
-                mRemainingTimeCalculator.setFileSizeLimit(new File(path), maxFileSize);
+            long maxFileSize, long expectedDuration, String copyPath, boolean singleFile,
+            String profileName) {
+        if (!isCapturing()) {
+            mCodecs.stopProbe();
+            // jobs, segments and sidecars of an earlier recording into the
+            // same file
+            ProcessingQueue.getInstance(this).cancel(new File(path));
+            RecordingFiles.deleteCompanions(new File(path));
+
+            File copy = copyPath != null && outputfileformat == OUTPUT_FORMAT_WAV ? new File(
+                    copyPath) : null;
+            EncoderSettings settings = null;
+            if (maxFileSize != -1 && outputfileformat != OUTPUT_FORMAT_WAV) {
+                settings = EncoderSettings.forSize(outputfileformat, highQuality, maxFileSize,
+                        expectedDuration, mCodecs);
+                Log.d(TAG, "encoding " + settings + " for " + maxFileSize + " bytes, about "
+                        + (settings.millisFor(maxFileSize) / 1000) + " s");
             }
-
-            mRecorder = new MediaRecorder();
-            mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            if (outputfileformat == MediaRecorder.OutputFormat.THREE_GPP) {
-                mRemainingTimeCalculator.setBitRate(SoundRecorder.BITRATE_3GPP);
-                mRecorder.setAudioSamplingRate(highQuality ? 44100 : 22050);
-                mRecorder.setOutputFormat(outputfileformat);
-                mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            } else {
-                mRemainingTimeCalculator.setBitRate(SoundRecorder.BITRATE_AMR);
-                mRecorder.setAudioSamplingRate(highQuality ? 16000 : 8000);
-                mRecorder.setOutputFormat(outputfileformat);
-                mRecorder.setAudioEncoder(highQuality ? MediaRecorder.AudioEncoder.AMR_WB
-                        : MediaRecorder.AudioEncoder.AMR_NB);
+            mProfile = settings == null && copy == null ? RecordingProfile.get(profileName)
+                    : null;
+            if (mProfile != null
+                    && !mCodecs.isSupported(mProfile.outputFormat, mProfile.audioEncoder,
+                            mProfile.sampleRate, mProfile.channels)) {
+                Log.w(TAG, "profile " + mProfile + " is not supported, using the defaults");
+                mProfile = null;
             }
-            mRecorder.setOutputFile(path);
-            mRecorder.setOnErrorListener(this);
-
-            // Handle IOException
-            try {
-                mRecorder.prepare();
-            } catch (IOException exception) {
-                sendErrorBroadcast(Recorder.INTERNAL_ERROR);
-                mRecorder.reset();
-                mRecorder.release();
-                mRecorder = null;
-                return;
-            }
-            // Handle RuntimeException if the recording couldn't start
-            try {
-                mRecorder.start();
-            } catch (RuntimeException exception) {
-                AudioManager audioMngr = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-                boolean isInCall = (audioMngr.getMode() == AudioManager.MODE_IN_CALL);
-                if (isInCall) {
-                    sendErrorBroadcast(Recorder.IN_CALL_RECORD_ERROR);
-                } else {
-                    sendErrorBroadcast(Recorder.INTERNAL_ERROR);
-                }
-                mRecorder.reset();
-                mRecorder.release();
-                mRecorder = null;
+            boolean started = outputfileformat == OUTPUT_FORMAT_WAV ? startPcmRecorder(path,
+                    highQuality, copy, maxFileSize) : startMediaRecorder(outputfileformat,
+                    highQuality, path, settings);
+            if (!started) {
+                mProfile = null;
                 return;
             }
+            mCpuMeter = mProfile != null ? new CpuMeter() : null;
+            mSizeTarget = settings;
+            mExpectedDuration = expectedDuration;
             mFilePath = path;
-            mStartTime = System.currentTimeMillis();
+            mStartTime = SystemClock.elapsedRealtime();
+            mSegmentStartTime = mStartTime;
+            mOutputFormat = outputfileformat;
+            mHighQuality = highQuality;
+            mQualityLowered = false;
+            mMaxFileSize = maxFileSize;
+            mManifest = null;
+            mSegmentFile = new File(path);
+            mRotationCount = 0;
+            mTotalRotationGap = 0;
+            mMaxRotationGap = 0;
+            mSingleFile = singleFile || maxFileSize != -1;
+            if (!mSingleFile && mRecorder != null) {
+                // a size limited recording or one returned to another app has
+                // to stay in a single file, WAV recordings are not split
+                mSegmentMillis = SoundRecorderPreferenceActivity.getSegmentMinutes(this) * 60000L;
+                mSegmentBytes = SoundRecorderPreferenceActivity.getSegmentMegabytes(this) * 1048576L;
+            } else {
+                mSegmentMillis = 0;
+                mSegmentBytes = 0;
+            }
+            RecordingRecovery.begin(new File(path), mimeType(outputfileformat));
             mWakeLock.acquire();
             mNeedUpdateRemainingTime = false;
+            mStorageMonitor.start(new File(path), settings != null ? settings.fileBitRate()
+                    : estimatedBitRate(outputfileformat, highQuality),
+                    copy != null ? -1 : maxFileSize,
+                    SoundRecorderPreferenceActivity.isStorageReservationEnabled(this)
+                            ? RESERVE_MINUTES : 0);
+            if (copy != null && maxFileSize != -1) {
+                mStorageMonitor.limitCopy(copy, CompactCopyWriter.BIT_RATE, maxFileSize);
+            }
             sendStateBroadcast();
             showRecordingNotification();
+            scheduleSegmentCheck();
+            startSampling(new File(path));
+        }
+    }
+
+    private boolean startMediaRecorder(int outputfileformat, boolean highQuality, String path,
+            EncoderSettings settings) {
+        mRecorder = settings != null ? prepareRecorder(settings, path) : prepareRecorder(
+                outputfileformat, highQuality, path);
+        if (mRecorder == null) {
+            sendErrorBroadcast(Recorder.INTERNAL_ERROR);
+            return false;
+        }
+        // Handle RuntimeException if the recording couldn't start
+        try {
+            mRecorder.start();
+        } catch (RuntimeException exception) {
+            sendStartErrorBroadcast();
+            mRecorder.reset();
+            mRecorder.release();
+            mRecorder = null;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean startPcmRecorder(String path, boolean highQuality, File copy,
+            long maxFileSize) {
+        int sampleRate = pcmSampleRate(highQuality);
+        mPcmRecorder = new PcmRecorder(new File(path), sampleRate, mProfile != null ? mProfile
+                .createDspChain() : DspChain.create(this, sampleRate));
+        mPcmRecorder.setOnErrorListener(this);
+        if (copy != null) {
+            mPcmRecorder.setCompactCopy(copy, maxFileSize);
+        }
+        if (SoundRecorderPreferenceActivity.isVoiceActivationEnabled(this)) {
+            try {
+                mPcmRecorder.setVoiceActivation(RecordingGaps.create(new File(path)),
+                        VOICE_THRESHOLD_DB,
+                        SoundRecorderPreferenceActivity.getVoicePreRollMillis(this),
+                        SoundRecorderPreferenceActivity.getVoiceHangMillis(this));
+            } catch (IOException e) {
+                Log.w(TAG, "unable to create gap log, recording continuously: " + e);
+            }
+        }
+        if (!mPcmRecorder.prepare()) {
+            sendErrorBroadcast(Recorder.INTERNAL_ERROR);
+            mPcmRecorder = null;
+            return false;
+        }
+        try {
+            mPcmRecorder.start();
+        } catch (RuntimeException exception) {
+            sendStartErrorBroadcast();
+            mPcmRecorder.release();
+            mPcmRecorder = null;
+            return false;
+        }
+        return true;
+    }
+
+    private void sendStartErrorBroadcast() {
+        AudioManager audioMngr = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        boolean isInCall = (audioMngr.getMode() == AudioManager.MODE_IN_CALL);
+        if (isInCall) {
+            sendErrorBroadcast(Recorder.IN_CALL_RECORD_ERROR);
+        } else {
+            sendErrorBroadcast(Recorder.INTERNAL_ERROR);
+        }
+    }
+
+    private static boolean isCapturing() {
+        return mRecorder != null || mPcmRecorder != null;
+    }
+
+    private int pcmSampleRate(boolean highQuality) {
+        if (mProfile != null && mProfile.matches(OUTPUT_FORMAT_WAV, highQuality)) {
+            return mProfile.sampleRate;
+        }
+        return highQuality ? mCodecs.sampleRate(OUTPUT_FORMAT_WAV, 0, 44100, 22050) : mCodecs
+                .sampleRate(OUTPUT_FORMAT_WAV, 0, 16000, 8000);
+    }
+
+    private static String mimeType(int outputfileformat) {
+        if (outputfileformat == OUTPUT_FORMAT_WAV) {
+            return SoundRecorder.AUDIO_WAV;
+        } else if (outputfileformat == MediaRecorder.OutputFormat.THREE_GPP) {
+            return SoundRecorder.AUDIO_3GPP;
+        }
+        return SoundRecorder.AUDIO_AMR;
+    }
+
+    private void startSampling(File recording) {
+        try {
+            mPeakWriter = new PeakIndexWriter(recording);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to create waveform index: " + e);
+            mPeakWriter = null;
+        }
+        mPeakStartTime = SystemClock.elapsedRealtime();
+        mAmplitudeSampler = new AmplitudeSampler(PeakIndex.BUCKET_MILLIS, AMPLITUDE_RING_SIZE);
+        mIndexReader = mAmplitudeSampler.newReader();
+        mIndexReads = 0;
+        mIndexReadNanos = 0;
+        mClippedSamples = 0;
+        mIndexFromSampler = mRecorder != null;
+        if (mRecorder != null) {
+            mAmplitudeSampler.start(mRecorder);
+        } else {
+            // the PCM path measures every block itself
+            mPcmRecorder.setPeakIndexWriter(mPeakWriter);
+            mPcmRecorder.setAmplitudeSampler(mAmplitudeSampler);
+        }
+        mHandler.postDelayed(mUpdateWaveformIndex, WAVEFORM_INDEX_INTERVAL);
+    }
+
+    private void stopSampling() {
+        mHandler.removeCallbacks(mUpdateWaveformIndex);
+        if (mAmplitudeSampler != null) {
+            mAmplitudeSampler.stop();
+            updateWaveformIndex();
+            if (mIndexReads > 0) {
+                Log.d(TAG, "waveform index read " + mIndexReads + " times, average "
+                        + (mIndexReadNanos / mIndexReads / 1000) + " us, "
+                        + mIndexReader.lost() + " samples lost, " + mClippedSamples
+                        + " clipped");
+            }
+            mAmplitudeSampler = null;
+        }
+        closePeakIndex();
+    }
+
+    /*
+     * Moves the new amplitude samples into the waveform index. A sample covers
+     * the bucket it was taken in and any bucket missed before it.
+     */
+    private void updateWaveformIndex() {
+        long start = System.nanoTime();
+        int count;
+        try {
+            while ((count = mIndexReader.read(mPeaks, mRms, mClipped, mSampleTimes)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    if (mClipped[i]) {
+                        mClippedSamples++;
+                    }
+                    if (mPeakWriter == null || !mIndexFromSampler) {
+                        continue;
+                    }
+                    long bucket = (mSampleTimes[i] - mPeakStartTime) / PeakIndex.BUCKET_MILLIS;
+                    while (mPeakWriter.count() <= bucket) {
+                        mPeakWriter.add(mPeaks[i], mRms[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write waveform index: " + e);
+            closePeakIndex();
+        }
+        mIndexReads++;
+        mIndexReadNanos += System.nanoTime() - start;
+    }
+
+    private void closePeakIndex() {
+        if (mPeakWriter != null) {
+            try {
+                mPeakWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "unable to finish waveform index: " + e);
+            }
+            mPeakWriter = null;
+        }
+    }
+
+    private MediaRecorder prepareRecorder(int outputfileformat, boolean highQuality, String path) {
+        if (mProfile != null && mProfile.matches(outputfileformat, highQuality)) {
+            MediaRecorder recorder = new MediaRecorder();
+            recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            recorder.setOutputFormat(mProfile.outputFormat);
+            recorder.setAudioEncoder(mProfile.audioEncoder);
+            recorder.setAudioSamplingRate(mProfile.sampleRate);
+            recorder.setAudioChannels(mProfile.channels);
+            recorder.setAudioEncodingBitRate(mProfile.bitRate);
+            return prepareRecorder(recorder, path);
+        }
+        MediaRecorder recorder = new MediaRecorder();
+        recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        if (outputfileformat == MediaRecorder.OutputFormat.THREE_GPP) {
+            int aac = MediaRecorder.AudioEncoder.AAC;
+            recorder.setAudioSamplingRate(highQuality ? mCodecs.sampleRate(outputfileformat, aac,
+                    44100, 32000, 22050) : mCodecs.sampleRate(outputfileformat, aac, 22050, 16000));
+            recorder.setOutputFormat(outputfileformat);
+            recorder.setAudioEncoder(aac);
+        } else {
+            recorder.setAudioSamplingRate(highQuality ? 16000 : 8000);
+            recorder.setOutputFormat(outputfileformat);
+            recorder.setAudioEncoder(highQuality ? MediaRecorder.AudioEncoder.AMR_WB
+                    : MediaRecorder.AudioEncoder.AMR_NB);
+        }
+        return prepareRecorder(recorder, path);
+    }
+
+    private MediaRecorder prepareRecorder(EncoderSettings settings, String path) {
+        MediaRecorder recorder = new MediaRecorder();
+        recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        recorder.setOutputFormat(settings.outputFormat);
+        recorder.setAudioEncoder(settings.audioEncoder);
+        recorder.setAudioSamplingRate(settings.sampleRate);
+        recorder.setAudioEncodingBitRate(settings.bitRate);
+        return prepareRecorder(recorder, path);
+    }
+
+    private MediaRecorder prepareRecorder(MediaRecorder recorder, String path) {
+        recorder.setOutputFile(path);
+        recorder.setOnErrorListener(this);
+
+        // Handle IOException
+        try {
+            recorder.prepare();
+        } catch (IOException exception) {
+            recorder.reset();
+            recorder.release();
+            return null;
+        }
+        return recorder;
+    }
+
+    private int estimatedBitRate(int outputfileformat, boolean highQuality) {
+        if (mProfile != null && mProfile.matches(outputfileformat, highQuality)) {
+            return mProfile.bitRate;
+        } else if (outputfileformat == OUTPUT_FORMAT_WAV) {
+            return pcmSampleRate(highQuality) * 16;
+        } else if (outputfileformat == MediaRecorder.OutputFormat.THREE_GPP) {
+            // the AAC bit rate roughly follows the sampling rate
+            return highQuality ? SoundRecorder.BITRATE_3GPP : SoundRecorder.BITRATE_3GPP / 2;
+        }
+        // AMR-NB at 12.2 kbit/s
+        return highQuality ? SoundRecorder.BITRATE_AMR : SoundRecorder.BITRATE_AMR * 3 / 4;
+    }
+
+    /**
+     * Finishes the current segment and continues recording into a new one with
+     * the given parameters. The next recorder is prepared before the current
+     * one is stopped to keep the gap between the segments short.
+     */
+    private boolean rotateSegment(int outputfileformat, boolean highQuality) {
+        File recording = new File(mFilePath);
+        if (mManifest == null) {
+            mManifest = new SegmentManifest(recording);
+            mManifest.addSegment();
+        }
+        int index = mManifest.count();
+        File next = RecordingFiles.segment(recording, index);
+        MediaRecorder recorder = prepareRecorder(outputfileformat, highQuality,
+                next.getAbsolutePath());
+        if (recorder == null) {
+            Log.w(TAG, "unable to prepare segment " + index);
+            next.delete();
+            return false;
+        }
+
+        long gapStart = SystemClock.elapsedRealtime();
+        mAmplitudeSampler.setRecorder(null);
+        try {
+            mRecorder.stop();
+        } catch (RuntimeException e) {
+        }
+        mRecorder.release();
+        long measured = gapStart - mSegmentStartTime;
+
+        try {
+            recorder.start();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "unable to start segment " + index);
+            recorder.release();
+            next.delete();
+            mRecorder = null;
+            // the stopped segment is complete, recovery leaves it alone
+            mManifest.setDuration(index - 1, encodedDuration(mManifest.segment(index - 1),
+                    measured));
+            saveManifest();
+            sendErrorBroadcast(Recorder.INTERNAL_ERROR);
+            recordingStopped();
+            stopSelf();
+            return false;
+        }
+        mRecorder = recorder;
+        mAmplitudeSampler.setRecorder(recorder);
+        mSegmentStartTime = SystemClock.elapsedRealtime();
+        mSegmentFile = next;
+        // read once the next segment runs, so the gap doesn't grow
+        mManifest.setDuration(index - 1, encodedDuration(mManifest.segment(index - 1), measured));
+        mManifest.addSegment();
+        saveManifest();
+
+        long gap = mSegmentStartTime - gapStart;
+        mRotationCount++;
+        mTotalRotationGap += gap;
+        mMaxRotationGap = Math.max(mMaxRotationGap, gap);
+        Log.d(TAG, "started segment " + index + " after a gap of " + gap + " ms");
+
+        mOutputFormat = outputfileformat;
+        mHighQuality = highQuality;
+        mStorageMonitor.startSegment(next, estimatedBitRate(outputfileformat, highQuality));
+        scheduleSegmentCheck();
+        return true;
+    }
+
+    /*
+     * Schedules the next check of the segment limits. The time limit is hit
+     * exactly, the size limit is estimated from the bit rate and checked
+     * against the real file size when the estimate is reached.
+     */
+    private void scheduleSegmentCheck() {
+        mHandler.removeCallbacks(mCheckSegment);
+        if (mSegmentMillis <= 0 && mSegmentBytes <= 0) {
+            return;
+        }
+
+        long delay = Long.MAX_VALUE;
+        if (mSegmentMillis > 0) {
+            delay = mSegmentMillis - (SystemClock.elapsedRealtime() - mSegmentStartTime);
+        }
+        if (mSegmentBytes > 0) {
+            long bytesPerSecond = estimatedBitRate(mOutputFormat, mHighQuality) / 8;
+            delay = Math.min(delay, (mSegmentBytes - mSegmentFile.length()) * 1000
+                    / bytesPerSecond);
+        }
+        mHandler.postDelayed(mCheckSegment, Math.max(delay, MIN_SEGMENT_CHECK_INTERVAL));
+    }
+
+    private void checkSegment() {
+        boolean timeReached = mSegmentMillis > 0
+                && SystemClock.elapsedRealtime() - mSegmentStartTime >= mSegmentMillis;
+        boolean sizeReached = mSegmentBytes > 0 && mSegmentFile.length() >= mSegmentBytes;
+        if ((timeReached || sizeReached) && rotateSegment(mOutputFormat, mHighQuality)) {
+            return;
+        }
+        if (mRecorder != null) {
+            scheduleSegmentCheck();
+        }
+    }
+
+    private void saveManifest() {
+        try {
+            mManifest.save();
+        } catch (IOException e) {
+            Log.w(TAG, "unable to save segment manifest: " + e);
+        }
+    }
+
+    /**
+     * Continues the recording in a new segment at lower quality, which
+     * stretches the remaining storage.
+     */
+    private void lowerQuality(long remaining) {
+        int oldBitRate = estimatedBitRate(mOutputFormat, true);
+        // not tried again if the next segment fails to start
+        mQualityLowered = true;
+        int outputfileformat = mOutputFormat == MediaRecorder.OutputFormat.THREE_GPP
+                ? MediaRecorder.OutputFormat.THREE_GPP
+                : MediaRecorder.OutputFormat.AMR_NB;
+        if (rotateSegment(outputfileformat, false)) {
+            // the rest isn't recorded with the profile
+            mProfile = null;
+            mCpuMeter = null;
+            long stretched = remaining * oldBitRate / estimatedBitRate(outputfileformat, false);
+            Log.i(TAG, "lowered recording quality with " + (remaining / 60)
+                    + " minutes left, now about " + (stretched / 60) + " minutes (+"
+                    + ((stretched - remaining) / 60) + ")");
         }
     }
 
     private void localStopRecording() {
         if (mRecorder != null) {
-            mNeedUpdateRemainingTime = false;
+            mAmplitudeSampler.setRecorder(null);
             try {
                 mRecorder.stop();
             } catch (RuntimeException e) {
             }
             mRecorder.release();
             mRecorder = null;
-
-            sendStateBroadcast();
-            showStoppedNotification();
+            recordingStopped();
+        } else if (mPcmRecorder != null) {
+            mPcmRecorder.stop();
+            mPcmRecorder.release();
+            mPcmRecorder = null;
+            recordingStopped();
         }
         stopSelf();
     }
 
+    private void recordingStopped() {
+        mNeedUpdateRemainingTime = false;
+        mStorageMonitor.stop();
+        mHandler.removeCallbacks(mCheckSegment);
+        stopSampling();
+        if (mRotationCount > 0) {
+            Log.d(TAG, mRotationCount + " segment rotations, average gap "
+                    + (mTotalRotationGap / mRotationCount) + " ms, longest " + mMaxRotationGap
+                    + " ms");
+        }
+        if (mCpuMeter != null && mCpuMeter.elapsed() >= MIN_CPU_METER_MILLIS) {
+            float cpu = mCpuMeter.percent();
+            Log.d(TAG, "recording with " + mProfile + " used " + cpu + "% CPU");
+            mProfile.addCpuCost(this, cpu);
+        }
+        mProfile = null;
+        mCpuMeter = null;
+        if (mSizeTarget != null) {
+            long size = new File(mFilePath).length();
+            long planned = mExpectedDuration > 0 ? mExpectedDuration
+                    : EncoderSettings.OPEN_ENDED_MILLIS;
+            Log.d(TAG, "size limited recording of " + size + " bytes, "
+                    + (size * 100 / mMaxFileSize) + "% of " + mMaxFileSize + ", "
+                    + ((SystemClock.elapsedRealtime() - mStartTime) / 1000) + " s of "
+                    + (planned / 1000) + " s planned at " + mSizeTarget);
+            mSizeTarget = null;
+        }
+        if (mManifest != null) {
+            int last = mManifest.count() - 1;
+            if (mManifest.duration(last) < 0) {
+                mManifest.setDuration(last, encodedDuration(mManifest.segment(last),
+                        SystemClock.elapsedRealtime() - mSegmentStartTime));
+            }
+            saveManifest();
+            mManifest = null;
+        }
+        RecordingRecovery.end(new File(mFilePath));
+
+        sendStateBroadcast();
+        showStoppedNotification();
+    }
+
     private void showRecordingNotification() {
         Notification notification = new Notification(R.drawable.stat_sys_call_record,
                 getString(R.string.notification_recording), System.currentTimeMillis());
@@ -307,10 +877,24 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
         mNotifiManager.notify(NOTIFICATION_ID, notification);
     }
 
+    /*
+     * Returns the duration of the audio encoded into a finished file, or the
+     * given measured duration if the file can't tell.
+     */
+    private static long encodedDuration(File file, long measured) {
+        try {
+            long duration = AudioInfo.read(file).getDuration();
+            return duration > 0 ? duration : measured;
+        } catch (IOException e) {
+            return measured;
+        }
+    }
+
     private void sendStateBroadcast() {
         Intent intent = new Intent(RECORDER_SERVICE_BROADCAST_NAME);
-        intent.putExtra(RECORDER_SERVICE_BROADCAST_STATE, mRecorder != null);
+        intent.putExtra(RECORDER_SERVICE_BROADCAST_STATE, isCapturing());
         sendBroadcast(intent);
+        ProcessingQueue.recordingChanged();
     }
 
     private void sendErrorBroadcast(int error) {
@@ -319,24 +903,30 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
         sendBroadcast(intent);
     }
 
-    private void updateRemainingTime() {
-        long t = mRemainingTimeCalculator.timeRemaining();
+    public void onRemainingTimeChanged(long t, int lowerLimit) {
+        if (mRecorder != null && t > 0 && t <= ADAPTIVE_QUALITY_THRESHOLD && mHighQuality
+                && !mQualityLowered && !mSingleFile
+                && lowerLimit == RemainingTimeCalculator.DISK_SPACE_LIMIT
+                && SoundRecorderPreferenceActivity.isAdaptiveQualityEnabled(this)) {
+            lowerQuality(t);
+            return;
+        }
+
+        if (!isCapturing() || !mNeedUpdateRemainingTime) {
+            // the activity is in the foreground and handles the limits
+            return;
+        }
+
         if (t <= 0) {
             localStopRecording();
-            return;
-        } else if (t <= 1800
-                && mRemainingTimeCalculator.currentLowerLimit() != RemainingTimeCalculator.FILE_SIZE_LIMIT) {
+        } else if (t <= 1800 && lowerLimit != RemainingTimeCalculator.FILE_SIZE_LIMIT) {
             // less than half one hour
             showLowStorageNotification((int) Math.ceil(t / 60.0));
         }
-
-        if (mRecorder != null && mNeedUpdateRemainingTime) {
-            mHandler.postDelayed(mUpdateRemainingTime, 500);
-        }
     }
 
     public static boolean isRecording() {
-        return mRecorder != null;
+        return isCapturing();
     }
 
     public static String getFilePath() {
@@ -347,14 +937,25 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
         return mStartTime;
     }
 
+    /**
+     * @param expectedDuration the length in milliseconds the size limit has
+     *            to last for, or -1
+     * @param copyPath file for a compact copy of a WAV recording, or null
+     * @param profile the name of the recording profile, or null
+     */
     public static void startRecording(Context context, int outputfileformat, String path,
-            boolean highQuality, long maxFileSize) {
+            boolean highQuality, long maxFileSize, long expectedDuration, String copyPath,
+            boolean singleFile, String profile) {
         Intent intent = new Intent(context, RecorderService.class);
         intent.putExtra(ACTION_NAME, ACTION_START_RECORDING);
         intent.putExtra(ACTION_PARAM_FORMAT, outputfileformat);
         intent.putExtra(ACTION_PARAM_PATH, path);
         intent.putExtra(ACTION_PARAM_HIGH_QUALITY, highQuality);
         intent.putExtra(ACTION_PARAM_MAX_FILE_SIZE, maxFileSize);
+        intent.putExtra(ACTION_PARAM_EXPECTED_DURATION, expectedDuration);
+        intent.putExtra(ACTION_PARAM_COPY_PATH, copyPath);
+        intent.putExtra(ACTION_PARAM_SINGLE_FILE, singleFile);
+        intent.putExtra(ACTION_PARAM_PROFILE, profile);
         context.startService(intent);
     }
 
@@ -365,7 +966,9 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
     }
 
     public static int getMaxAmplitude() {
-        return mRecorder == null ? 0 : mRecorder.getMaxAmplitude();
+        AmplitudeSampler sampler = mAmplitudeSampler;
+        return !isCapturing() || sampler == null ? 0 : sampler.peakSince(SystemClock
+                .elapsedRealtime() - METER_WINDOW);
     }
 
     @Override
@@ -373,4 +976,16 @@ public class RecorderService extends Service implements MediaRecorder.OnErrorLis
         sendErrorBroadcast(Recorder.INTERNAL_ERROR);
         localStopRecording();
     }
+
+    public void onError(final PcmRecorder recorder) {
+        // called on the capture thread
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (recorder == mPcmRecorder) {
+                    sendErrorBroadcast(Recorder.INTERNAL_ERROR);
+                    localStopRecording();
+                }
+            }
+        });
+    }
 }
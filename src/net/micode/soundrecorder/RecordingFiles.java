@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * Naming of the hidden files that belong to a recording: additional segments
+ * and sidecars such as the segment manifest. All of them are named
+ * ".<recording name>.<suffix>" in the directory of the recording, so they stay
+ * out of the media scanner and can be renamed or deleted together with it.
+ */
+public class RecordingFiles {
+
+    private RecordingFiles() {
+    }
+
+    /**
+     * Returns the hidden sidecar file of a recording with the given suffix.
+     */
+    public static File sidecar(File recording, String suffix) {
+        return new File(recording.getParentFile(), companionPrefix(recording)
+                + suffix.substring(1));
+    }
+
+    /**
+     * Returns the file of the given segment of a recording. The first segment
+     * is the recording itself.
+     */
+    public static File segment(File recording, int index) {
+        if (index == 0) {
+            return recording;
+        }
+        String name = recording.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot);
+        return new File(recording.getParentFile(), companionPrefix(recording) + index
+                + extension);
+    }
+
+    /**
+     * Deletes the segments and sidecars of a recording, but not the recording.
+     */
+    public static void deleteCompanions(File recording) {
+        File[] files = listCompanions(recording);
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes a recording together with its segments and sidecars.
+     */
+    public static boolean delete(File recording) {
+        deleteCompanions(recording);
+        return recording.delete();
+    }
+
+    /**
+     * Renames a recording together with its segments and sidecars.
+     */
+    public static boolean rename(File from, File to) {
+        if (!from.renameTo(to)) {
+            return false;
+        }
+
+        String fromPrefix = companionPrefix(from);
+        String toPrefix = companionPrefix(to);
+        File[] files = listCompanions(from);
+        if (files != null) {
+            for (File file : files) {
+                String suffix = file.getName().substring(fromPrefix.length());
+                file.renameTo(new File(to.getParentFile(), toPrefix + suffix));
+            }
+        }
+        return true;
+    }
+
+    private static String companionPrefix(File recording) {
+        return "." + recording.getName() + ".";
+    }
+
+    private static File[] listCompanions(File recording) {
+        File dir = recording.getParentFile();
+        if (dir == null) {
+            return null;
+        }
+        final String prefix = companionPrefix(recording);
+        return dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith(prefix);
+            }
+        });
+    }
+}
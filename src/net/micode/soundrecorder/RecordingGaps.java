@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * The periods a voice-activated recording left out. The log is a small text
+ * file next to the recording with one line per gap, holding the position in
+ * the recording where the gap was cut out and the wall clock time at which
+ * it started, both in milliseconds, and its duration in milliseconds. Lines
+ * are appended as the gaps end, so a crash loses at most the last one.
+ */
+public class RecordingGaps {
+    private static final String GAPS_SUFFIX = ".gaps";
+
+    private static final String HEADER = "gaps 1";
+
+    public static class Gap {
+        public final long position;
+
+        public final long time;
+
+        public final long duration;
+
+        Gap(long position, long time, long duration) {
+            this.position = position;
+            this.time = time;
+            this.duration = duration;
+        }
+    }
+
+    private final Writer mWriter;
+
+    private RecordingGaps(Writer writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Starts a new log for a recording.
+     */
+    public static RecordingGaps create(File recording) throws IOException {
+        Writer writer = new FileWriter(RecordingFiles.sidecar(recording, GAPS_SUFFIX));
+        try {
+            writer.write(HEADER + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        return new RecordingGaps(writer);
+    }
+
+    public void add(long position, long time, long duration) throws IOException {
+        mWriter.write(position + " " + time + " " + duration + "\n");
+        mWriter.flush();
+    }
+
+    public void close() throws IOException {
+        mWriter.close();
+    }
+
+    /**
+     * Reads the gaps of a recording, an empty list if it has none or the log
+     * can't be read.
+     */
+    public static ArrayList<Gap> load(File recording) {
+        ArrayList<Gap> gaps = new ArrayList<Gap>();
+        File file = RecordingFiles.sidecar(recording, GAPS_SUFFIX);
+        if (!file.exists()) {
+            return gaps;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            if (!HEADER.equals(reader.readLine())) {
+                return gaps;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 3) {
+                    // the last line may be cut short by a crash
+                    break;
+                }
+                gaps.add(new Gap(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2])));
+            }
+        } catch (IOException e) {
+        } catch (NumberFormatException e) {
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return gaps;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Joins recordings of the same format without decoding them. AMR files are
+ * joined frame by frame. MP4 files keep the movie box of the first file,
+ * with the sample tables of all files written one after another into it,
+ * and their media data copied by the channel. The tables are streamed, so
+ * memory use does not depend on the length of the recordings.
+ */
+public class RecordingMerger {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private RecordingMerger() {
+    }
+
+    /**
+     * Returns the recordings next to the given one that could be joined with
+     * it, the oldest first.
+     */
+    public static ArrayList<File> candidates(final File recording) {
+        String name = recording.getName();
+        final String extension = name.substring(name.lastIndexOf('.'));
+        File[] files = recording.getParentFile().listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && !file.getName().startsWith(".")
+                        && file.getName().endsWith(extension) && !file.equals(recording)
+                        && SegmentManifest.load(file) == null;
+            }
+        });
+        ArrayList<File> candidates = new ArrayList<File>();
+        if (files != null) {
+            candidates.addAll(Arrays.asList(files));
+            sortByAge(candidates);
+        }
+        return candidates;
+    }
+
+    public static void sortByAge(ArrayList<File> files) {
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * Joins the recordings in the given order into the target.
+     *
+     * @return the duration of the target in milliseconds
+     * @throws IOException if the recordings can't be read or don't share
+     *             their codec parameters
+     */
+    public static long merge(File[] sources, File target) throws IOException {
+        if (sources[0].getName().endsWith(".amr")) {
+            return AmrFile.concatenate(sources, target);
+        }
+
+        Mp4File[] files = new Mp4File[sources.length];
+        try {
+            for (int i = 0; i < sources.length; i++) {
+                files[i] = new Mp4File(sources[i]);
+            }
+            return new Mp4Merge(files).write(target);
+        } finally {
+            for (Mp4File file : files) {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes the file type box of the first file, one media data box with the
+     * media data of all files and the movie box.
+     */
+    private static class Mp4Merge {
+        private final Mp4File[] mFiles;
+
+        private long mMediaDuration;
+
+        private long mPayloadStart;
+
+        private long mTimeEntries;
+
+        private long mChunkEntries;
+
+        private long mSamples;
+
+        private long mChunks;
+
+        // size of all samples, 0 if they have a size each
+        private long mSampleSize;
+
+        private boolean mLargeOffsets;
+
+        private FileChannel mChannel;
+
+        private DataOutputStream mOut;
+
+        Mp4Merge(Mp4File[] files) throws IOException {
+            mFiles = files;
+            byte[] description = read(files[0], files[0].stsd());
+            mSampleSize = files[0].sampleSize();
+            for (Mp4File file : files) {
+                if (file.hasSyncTable() || file.mediaTimescale() != files[0].mediaTimescale()
+                        || !Arrays.equals(read(file, file.stsd()), description)) {
+                    throw new IOException("the recordings have different codec parameters");
+                }
+                mMediaDuration += file.mediaDuration();
+                mTimeEntries += file.timeEntries();
+                mChunkEntries += file.chunkEntries();
+                mSamples += file.sampleCount();
+                mChunks += file.chunkCount();
+                if (file.sampleSize() != mSampleSize) {
+                    mSampleSize = 0;
+                }
+            }
+        }
+
+        long write(File target) throws IOException {
+            long payload = 0;
+            for (Mp4File file : mFiles) {
+                payload += file.mdat().dataSize();
+            }
+            Mp4File first = mFiles[0];
+            long mdatSize = payload + 8;
+            boolean largeMdat = mdatSize > 0xffffffffL;
+            if (largeMdat) {
+                mdatSize += 8;
+            }
+            mPayloadStart = first.ftyp().size + mdatSize - payload;
+            mLargeOffsets = mPayloadStart + payload > 0xffffffffL;
+
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                mChannel = out.getChannel();
+                mOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+                copy(first, first.ftyp().offset, first.ftyp().size);
+                if (largeMdat) {
+                    mOut.writeInt(1);
+                    mOut.writeInt(Mp4File.MDAT);
+                    mOut.writeLong(mdatSize);
+                } else {
+                    mOut.writeInt((int) mdatSize);
+                    mOut.writeInt(Mp4File.MDAT);
+                }
+                for (Mp4File file : mFiles) {
+                    copy(file, file.mdat().dataOffset(), file.mdat().dataSize());
+                }
+                writeBox(first.moov());
+                mOut.flush();
+            } finally {
+                out.close();
+            }
+            return mMediaDuration * 1000 / first.mediaTimescale();
+        }
+
+        private static boolean isContainer(int type) {
+            return type == Mp4File.MOOV || type == Mp4File.TRAK || type == Mp4File.MDIA
+                    || type == Mp4File.MINF || type == Mp4File.STBL;
+        }
+
+        /*
+         * Returns the size of a box of the first file as it is written.
+         */
+        private long sizeOf(Mp4File.Box box) throws IOException {
+            if (isContainer(box.type)) {
+                long size = 8;
+                for (Mp4File.Box child : mFiles[0].children(box)) {
+                    size += sizeOf(child);
+                }
+                return size;
+            }
+            switch (box.type) {
+                case Mp4File.EDTS:
+                    // an edit list of the first file would cut the others
+                    return 0;
+                case Mp4File.STTS:
+                    return 16 + mTimeEntries * 8;
+                case Mp4File.STSC:
+                    return 16 + mChunkEntries * 12;
+                case Mp4File.STSZ:
+                    return 20 + (mSampleSize == 0 ? mSamples * 4 : 0);
+                case Mp4File.STCO:
+                case Mp4File.CO64:
+                    return 16 + mChunks * (mLargeOffsets ? 8 : 4);
+                default:
+                    return box.size;
+            }
+        }
+
+        private void writeBox(Mp4File.Box box) throws IOException {
+            Mp4File first = mFiles[0];
+            if (isContainer(box.type)) {
+                mOut.writeInt((int) sizeOf(box));
+                mOut.writeInt(box.type);
+                for (Mp4File.Box child : first.children(box)) {
+                    writeBox(child);
+                }
+                return;
+            }
+            switch (box.type) {
+                case Mp4File.EDTS:
+                    break;
+                case Mp4File.MVHD:
+                    writeHeader(box, 16, 24, mMediaDuration * first.movieTimescale()
+                            / first.mediaTimescale());
+                    break;
+                case Mp4File.TKHD:
+                    writeHeader(box, 20, 28, mMediaDuration * first.movieTimescale()
+                            / first.mediaTimescale());
+                    break;
+                case Mp4File.MDHD:
+                    writeHeader(box, 16, 24, mMediaDuration);
+                    break;
+                case Mp4File.STTS:
+                    writeTableHeader(Mp4File.STTS, sizeOf(box), mTimeEntries);
+                    for (Mp4File file : mFiles) {
+                        copy(file, file.stts().dataOffset() + 8, file.timeEntries() * 8);
+                    }
+                    break;
+                case Mp4File.STSC:
+                    writeTableHeader(Mp4File.STSC, sizeOf(box), mChunkEntries);
+                    writeChunkEntries();
+                    break;
+                case Mp4File.STSZ:
+                    writeTableHeader(Mp4File.STSZ, sizeOf(box), mSampleSize);
+                    mOut.writeInt((int) mSamples);
+                    if (mSampleSize == 0) {
+                        writeSampleSizes();
+                    }
+                    break;
+                case Mp4File.STCO:
+                case Mp4File.CO64:
+                    writeTableHeader(mLargeOffsets ? Mp4File.CO64 : Mp4File.STCO, sizeOf(box),
+                            mChunks);
+                    writeChunkOffsets();
+                    break;
+                default:
+                    copy(first, box.offset, box.size);
+                    break;
+            }
+        }
+
+        /*
+         * Writes a movie, track or media header with the joined duration. The
+         * duration is at the given offset for version 0 and version 1.
+         */
+        private void writeHeader(Mp4File.Box box, int offset0, int offset1, long duration)
+                throws IOException {
+            byte[] header = read(mFiles[0], box);
+            int data = box.headerSize;
+            if (header[data] == 1) {
+                for (int i = 0; i < 8; i++) {
+                    header[data + offset1 + i] = (byte) (duration >> (56 - i * 8));
+                }
+            } else {
+                long value = Math.min(duration, 0xffffffffL);
+                for (int i = 0; i < 4; i++) {
+                    header[data + offset0 + i] = (byte) (value >> (24 - i * 8));
+                }
+            }
+            mOut.write(header);
+        }
+
+        private void writeTableHeader(int type, long size, long count) throws IOException {
+            mOut.writeInt((int) size);
+            mOut.writeInt(type);
+            mOut.writeInt(0); // version and flags
+            mOut.writeInt((int) count);
+        }
+
+        private void writeChunkEntries() throws IOException {
+            long chunkBase = 0;
+            for (Mp4File file : mFiles) {
+                DataInputStream in = open(file, file.stsc().dataOffset() + 8);
+                for (long i = 0; i < file.chunkEntries(); i++) {
+                    mOut.writeInt((int) (chunkBase + (in.readInt() & 0xffffffffL)));
+                    mOut.writeInt(in.readInt());
+                    mOut.writeInt(in.readInt());
+                }
+                chunkBase += file.chunkCount();
+            }
+        }
+
+        private void writeSampleSizes() throws IOException {
+            for (Mp4File file : mFiles) {
+                if (file.sampleSize() == 0) {
+                    copy(file, file.stsz().dataOffset() + 12, file.sampleCount() * 4);
+                } else {
+                    for (long i = 0; i < file.sampleCount(); i++) {
+                        mOut.writeInt((int) file.sampleSize());
+                    }
+                }
+            }
+        }
+
+        private void writeChunkOffsets() throws IOException {
+            long payloadBase = mPayloadStart;
+            for (Mp4File file : mFiles) {
+                DataInputStream in = open(file, file.chunkOffsets().dataOffset() + 8);
+                long shift = payloadBase - file.mdat().dataOffset();
+                boolean large = file.chunkOffsetSize() == 8;
+                for (long i = 0; i < file.chunkCount(); i++) {
+                    long offset = (large ? in.readLong() : in.readInt() & 0xffffffffL) + shift;
+                    if (mLargeOffsets) {
+                        mOut.writeLong(offset);
+                    } else {
+                        mOut.writeInt((int) offset);
+                    }
+                }
+                payloadBase += file.mdat().dataSize();
+            }
+        }
+
+        /*
+         * Reads a small box completely.
+         */
+        private byte[] read(Mp4File file, Mp4File.Box box) throws IOException {
+            if (box.size > BUFFER_SIZE) {
+                throw new IOException("box too large");
+            }
+            byte[] data = new byte[(int) box.size];
+            file.file().seek(box.offset);
+            file.file().readFully(data);
+            return data;
+        }
+
+        /*
+         * Streams a file from a position. The stream shares the position of
+         * the file and must not be closed.
+         */
+        private DataInputStream open(Mp4File file, long position) throws IOException {
+            file.file().seek(position);
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(file.file()
+                    .getFD()), BUFFER_SIZE));
+        }
+
+        /*
+         * Appends a range of a file through the channel.
+         */
+        private void copy(Mp4File file, long position, long count) throws IOException {
+            mOut.flush();
+            AmrFile.transfer(file.file().getChannel(), position, count, mChannel);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Values computed from a recording, such as its loudness, kept in a sidecar
+ * so they are computed only once. The sidecar remembers the size and the
+ * modification time of the recording and is ignored once either changes.
+ */
+public class RecordingMetadata {
+    private static final String META_SUFFIX = ".meta";
+
+    private static final String KEY_LENGTH = "length";
+
+    private static final String KEY_MODIFIED = "modified";
+
+    public static final String KEY_LOUDNESS = "loudness";
+
+    public static final String KEY_TRUE_PEAK = "true_peak";
+
+    public static final String KEY_DURATION = "duration";
+
+    private final File mRecording;
+
+    private final Properties mProperties = new Properties();
+
+    private RecordingMetadata(File recording) {
+        mRecording = recording;
+    }
+
+    /**
+     * Loads the metadata of a recording. Returns empty metadata if there is
+     * none, it can't be read or it belongs to an older version of the file.
+     */
+    public static RecordingMetadata load(File recording) {
+        RecordingMetadata metadata = new RecordingMetadata(recording);
+        File file = RecordingFiles.sidecar(recording, META_SUFFIX);
+        if (!file.exists()) {
+            return metadata;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            metadata.mProperties.load(in);
+        } catch (IOException e) {
+            metadata.mProperties.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        if (metadata.getLong(KEY_LENGTH, -1) != recording.length()
+                || metadata.getLong(KEY_MODIFIED, -1) != recording.lastModified()) {
+            metadata.mProperties.clear();
+        }
+        return metadata;
+    }
+
+    /**
+     * Writes the metadata, stamped with the current size and modification
+     * time of the recording.
+     */
+    public void save() throws IOException {
+        putLong(KEY_LENGTH, mRecording.length());
+        putLong(KEY_MODIFIED, mRecording.lastModified());
+
+        File file = RecordingFiles.sidecar(mRecording, META_SUFFIX);
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            mProperties.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("unable to write " + file);
+        }
+    }
+
+    public boolean contains(String key) {
+        return mProperties.containsKey(key);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = mProperties.getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return defaultValue;
+    }
+
+    public void putLong(String key, long value) {
+        mProperties.setProperty(key, Long.toString(value));
+    }
+
+    public float getFloat(String key, float defaultValue) {
+        String value = mProperties.getProperty(key);
+        if (value != null) {
+            try {
+                return Float.parseFloat(value);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return defaultValue;
+    }
+
+    public void putFloat(String key, float value) {
+        mProperties.setProperty(key, Float.toString(value));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaRecorder;
+
+/**
+ * A named set of recording parameters: container, encoder, sample rate,
+ * channels, bit rate and, for WAV, the processing chain. The custom profile
+ * stands for the record type and quality preferences and leaves the rest to
+ * the defaults of RecorderService. The CPU time a profile costs is measured
+ * while recording with it and kept as a running average.
+ */
+public class RecordingProfile {
+    public static final String CUSTOM = "custom";
+
+    public static final int DSP_HIGH_PASS = 1;
+
+    public static final int DSP_NOISE_GATE = 2;
+
+    public static final int DSP_AUTOMATIC_GAIN = 4;
+
+    public static final int DSP_LIMITER = 8;
+
+    private static final String COSTS = "recording_profiles";
+
+    private static final long MILLIS_PER_HOUR = 3600 * 1000;
+
+    private static final int WAV = RecorderService.OUTPUT_FORMAT_WAV;
+
+    private static final RecordingProfile[] PROFILES = {
+            new RecordingProfile("voice", MediaRecorder.OutputFormat.AMR_NB,
+                    MediaRecorder.AudioEncoder.AMR_NB, 8000, 1, 12200, false, 0),
+            new RecordingProfile("voice_hd", MediaRecorder.OutputFormat.AMR_WB,
+                    MediaRecorder.AudioEncoder.AMR_WB, 16000, 1, 23850, true, 0),
+            new RecordingProfile("standard", MediaRecorder.OutputFormat.THREE_GPP,
+                    MediaRecorder.AudioEncoder.AAC, 22050, 1, 32000, false, 0),
+            new RecordingProfile("high", MediaRecorder.OutputFormat.THREE_GPP,
+                    MediaRecorder.AudioEncoder.AAC, 44100, 1, 96000, true, 0),
+            new RecordingProfile("music", MediaRecorder.OutputFormat.THREE_GPP,
+                    MediaRecorder.AudioEncoder.AAC, 44100, 2, 128000, true, 0),
+            new RecordingProfile("dictation", WAV, 0, 16000, 1, 16000 * 16, false,
+                    DSP_HIGH_PASS | DSP_NOISE_GATE | DSP_AUTOMATIC_GAIN | DSP_LIMITER),
+            new RecordingProfile("lossless", WAV, 0, 44100, 1, 44100 * 16, true,
+                    DSP_HIGH_PASS | DSP_LIMITER)
+    };
+
+    public final String name;
+
+    public final int outputFormat;
+
+    public final int audioEncoder;
+
+    // 0 for the defaults of the custom profile
+    public final int sampleRate;
+
+    public final int channels;
+
+    public final int bitRate;
+
+    public final boolean highQuality;
+
+    public final int dsp;
+
+    private RecordingProfile(String name, int outputFormat, int audioEncoder, int sampleRate,
+            int channels, int bitRate, boolean highQuality, int dsp) {
+        this.name = name;
+        this.outputFormat = outputFormat;
+        this.audioEncoder = audioEncoder;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitRate = bitRate;
+        this.highQuality = highQuality;
+        this.dsp = dsp;
+    }
+
+    /**
+     * Returns the profile chosen in the preferences.
+     */
+    public static RecordingProfile current(Context context) {
+        return SoundRecorderPreferenceActivity.getSnapshot(context).profile;
+    }
+
+    static RecordingProfile resolve(String name, String recordType, boolean highQuality) {
+        RecordingProfile profile = get(name);
+        return profile != null ? profile : custom(recordType, highQuality);
+    }
+
+    /**
+     * Returns the named profile, or null for the custom profile or an
+     * unknown name.
+     */
+    public static RecordingProfile get(String name) {
+        for (RecordingProfile profile : PROFILES) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    private static RecordingProfile custom(String mimeType, boolean highQuality) {
+        int outputFormat;
+        if (SoundRecorder.AUDIO_WAV.equals(mimeType)) {
+            outputFormat = WAV;
+        } else if (SoundRecorder.AUDIO_AMR.equals(mimeType)) {
+            outputFormat = highQuality ? MediaRecorder.OutputFormat.AMR_WB
+                    : MediaRecorder.OutputFormat.AMR_NB;
+        } else {
+            outputFormat = MediaRecorder.OutputFormat.THREE_GPP;
+        }
+        return new RecordingProfile(CUSTOM, outputFormat, 0, 0, 1, 0, highQuality, 0);
+    }
+
+    public boolean isCustom() {
+        return CUSTOM.equals(name);
+    }
+
+    public String mimeType() {
+        if (outputFormat == WAV) {
+            return SoundRecorder.AUDIO_WAV;
+        } else if (outputFormat == MediaRecorder.OutputFormat.THREE_GPP) {
+            return SoundRecorder.AUDIO_3GPP;
+        }
+        return SoundRecorder.AUDIO_AMR;
+    }
+
+    /**
+     * Returns whether RecorderService records with this profile when asked
+     * for the format and quality.
+     */
+    public boolean matches(int outputFormat, boolean highQuality) {
+        return !isCustom() && this.outputFormat == outputFormat
+                && this.highQuality == highQuality;
+    }
+
+    /**
+     * Returns the storage an hour of recording takes, or -1 if it depends on
+     * the defaults.
+     */
+    public long bytesPerHour() {
+        if (isCustom()) {
+            return -1;
+        } else if (outputFormat == WAV) {
+            return WavWriter.LARGE_HEADER_SIZE + (long) sampleRate * 2 * channels * 3600;
+        }
+        return EncoderSettings.of(outputFormat, audioEncoder, sampleRate, bitRate).bytesFor(
+                MILLIS_PER_HOUR);
+    }
+
+    public DspChain createDspChain() {
+        return DspChain.create(sampleRate, (dsp & DSP_HIGH_PASS) != 0,
+                (dsp & DSP_NOISE_GATE) != 0, (dsp & DSP_AUTOMATIC_GAIN) != 0,
+                (dsp & DSP_LIMITER) != 0);
+    }
+
+    /**
+     * Returns the CPU time recording with the profile costs, in percent of
+     * one core, or -1 if it hasn't been measured.
+     */
+    public float cpuCost(Context context) {
+        return context.getSharedPreferences(COSTS, Context.MODE_PRIVATE).getFloat(name, -1);
+    }
+
+    /**
+     * Adds a measurement to the running average of the CPU cost.
+     */
+    public void addCpuCost(Context context, float percent) {
+        SharedPreferences costs = context.getSharedPreferences(COSTS, Context.MODE_PRIVATE);
+        float average = costs.getFloat(name, -1);
+        average = average < 0 ? percent : (average * 3 + percent) / 4;
+        costs.edit().putFloat(name, average).commit();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + sampleRate + " Hz, " + channels + " ch, " + bitRate + " bit/s)";
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Finds recordings that were never finished because the process died and
+ * turns them into playable files. RecorderService keeps a journal next to the
+ * recording while it is written and removes it when the recording is stopped,
+ * so a journal found while nothing is recorded marks an unfinished recording.
+ */
+public class RecordingRecovery {
+    private static final String TAG = "RecordingRecovery";
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * An unfinished recording that was found.
+     */
+    public static class Recovered {
+        public final File file;
+
+        // -1 if the recording could not be recovered and was left as it was
+        public final long durationMillis;
+
+        public final String mimeType;
+
+        Recovered(File file, long durationMillis, String mimeType) {
+            this.file = file;
+            this.durationMillis = durationMillis;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private RecordingRecovery() {
+    }
+
+    /**
+     * Marks a recording as being written.
+     */
+    public static void begin(File recording, String mimeType) {
+        File journal = RecordingFiles.sidecar(recording, JOURNAL_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new FileWriter(journal);
+            writer.write(mimeType + "\n");
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write journal: " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a recording as finished.
+     */
+    public static void end(File recording) {
+        RecordingFiles.sidecar(recording, JOURNAL_SUFFIX).delete();
+    }
+
+    /**
+     * Returns the recordings in a directory that have not been finished.
+     */
+    private static ArrayList<File> findUnfinished(File dir) {
+        ArrayList<File> recordings = new ArrayList<File>();
+        File[] journals = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                return name.startsWith(".") && name.endsWith(JOURNAL_SUFFIX);
+            }
+        });
+        if (journals != null) {
+            for (File journal : journals) {
+                String name = journal.getName();
+                recordings.add(new File(dir, name.substring(1, name.length()
+                        - JOURNAL_SUFFIX.length())));
+            }
+        }
+        return recordings;
+    }
+
+    /**
+     * Recovers all unfinished recordings in a directory. Recordings that
+     * can't be recovered are left as they are and returned with a duration
+     * of -1, but are not tried again. The
+     * recording RecorderService is writing, which may have started since
+     * the recovery did, is left alone.
+     */
+    public static ArrayList<Recovered> recoverAll(File dir) {
+        ArrayList<Recovered> recovered = new ArrayList<Recovered>();
+        for (File recording : findUnfinished(dir)) {
+            if (isBeingRecorded(recording)) {
+                continue;
+            }
+            String mimeType = mimeType(recording);
+            long duration = recover(recording);
+            end(recording);
+            if (duration > 0 && mimeType != null) {
+                recovered.add(new Recovered(recording, duration, mimeType));
+            } else if (recording.exists()) {
+                recovered.add(new Recovered(recording, -1, mimeType));
+            }
+        }
+        return recovered;
+    }
+
+    /*
+     * The journal of a recording is written once it has started, so a
+     * recording whose journal was found is either still running or dead.
+     */
+    private static boolean isBeingRecorded(File recording) {
+        String path = RecorderService.getFilePath();
+        return RecorderService.isRecording() && path != null
+                && new File(path).getAbsoluteFile().equals(recording.getAbsoluteFile());
+    }
+
+    /**
+     * Returns the mime type the unfinished recording was started with, or
+     * null if it is unknown.
+     */
+    private static String mimeType(File recording) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(RecordingFiles.sidecar(recording,
+                    JOURNAL_SUFFIX)));
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Repairs an unfinished recording and its segments. The files are
+     * streamed, memory use does not depend on their size.
+     *
+     * @return the duration of the recovered recording in milliseconds, or -1
+     *         if nothing could be recovered
+     */
+    public static long recover(File recording) {
+        SpaceReservation.discard(recording);
+        if (!recording.exists()) {
+            return -1;
+        }
+
+        SegmentManifest manifest = SegmentManifest.load(recording);
+        if (manifest == null) {
+            return recoverSegment(recording);
+        }
+
+        int count = manifest.count();
+        for (int i = 0; i < count; i++) {
+            if (manifest.duration(i) >= 0) {
+                continue;
+            }
+            long duration = recoverSegment(manifest.segment(i));
+            if (duration <= 0 && i > 0) {
+                // drop the broken segment and everything after it
+                for (int j = i; j < count; j++) {
+                    manifest.segment(j).delete();
+                }
+                manifest.truncate(i);
+                break;
+            }
+            manifest.setDuration(i, Math.max(0, duration));
+        }
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            Log.w(TAG, "unable to save segment manifest: " + e);
+        }
+        long total = manifest.totalDuration();
+        return total > 0 ? total : -1;
+    }
+
+    private static long recoverSegment(File file) {
+        long start = System.currentTimeMillis();
+        long duration = -1;
+        try {
+            long frames = AmrFile.reframe(file);
+            long wavDuration = frames < 0 ? WavWriter.repair(file) : -1;
+            if (frames >= 0) {
+                duration = frames * AmrFile.FRAME_DURATION;
+            } else if (wavDuration >= 0) {
+                duration = wavDuration;
+            } else if (hasMovieBox(file)) {
+                duration = finishedDuration(file);
+            } else if ((duration = Mp4Repair.repair(file)) < 0) {
+                // AAC frames carry no sync word, the sample table can't be
+                // rebuilt from the media data alone
+                Log.w(TAG, file + " has no index and can't be recovered");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "unable to recover " + file + ": " + e);
+        }
+        Log.d(TAG, "recovered " + (file.length() / 1024) + " KB of " + file.getName() + " in "
+                + (System.currentTimeMillis() - start) + " ms, duration " + duration + " ms");
+        return duration;
+    }
+
+    /*
+     * Walks the top level boxes of an MP4 file, reading only their headers.
+     * A file with a complete movie box was finalized before the process died.
+     */
+    private static boolean hasMovieBox(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            long offset = 0;
+            while (offset + 8 <= length) {
+                raf.seek(offset);
+                long size = raf.readInt() & 0xffffffffL;
+                int type = raf.readInt();
+                if (size == 1 && offset + 16 <= length) {
+                    size = raf.readLong();
+                } else if (size == 0) {
+                    // the box runs to the end of the file, the media data box
+                    // is left this way until the recording is finished
+                    size = length - offset;
+                }
+                if (size < 8 || offset + size > length) {
+                    return false;
+                }
+                if (type == 0x6d6f6f76) { // 'moov'
+                    return true;
+                }
+                offset += size;
+            }
+            return false;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long finishedDuration(File file) {
+        try {
+            return AudioInfo.read(file).getDuration();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
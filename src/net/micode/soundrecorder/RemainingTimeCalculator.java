@@ -48,6 +48,9 @@ public class RemainingTimeCalculator {
     // Rate at which the file grows
     private int mBytesPerSecond;
 
+    // bit rate of the size limited file if it differs, in bytes/sec
+    private int mFileBytesPerSecond;
+
     // time at which number of free blocks last changed
     private long mBlocksChangedTime;
 
@@ -60,6 +63,18 @@ public class RemainingTimeCalculator {
     // size of the file at that time
     private long mLastFileSize;
 
+    // StatFs of the external storage, refreshed with restat() instead of
+    // being constructed on every query
+    private StatFs mStatFs;
+
+    private String mStoragePath;
+
+    // bytes held by a space reservation on behalf of the recording
+    private long mReservedBytes;
+
+    // number of statfs/stat calls issued so far
+    private long mSyscallCount;
+
     public RemainingTimeCalculator() {
     }
 
@@ -73,8 +88,19 @@ public class RemainingTimeCalculator {
      */
 
     public void setFileSizeLimit(File file, long maxBytes) {
+        setFileSizeLimit(file, maxBytes, 0);
+    }
+
+    /**
+     * Limits the size of a file written at another bit rate than the
+     * recording, such as a copy written along with it.
+     *
+     * @param bitRate the bit rate of the file, 0 for the one of the recording
+     */
+    public void setFileSizeLimit(File file, long maxBytes, int bitRate) {
         mRecordingFile = file;
         mMaxBytes = maxBytes;
+        mFileBytesPerSecond = bitRate / 8;
     }
 
     /**
@@ -84,6 +110,7 @@ public class RemainingTimeCalculator {
         mCurrentLowerLimit = UNKNOWN_LIMIT;
         mBlocksChangedTime = -1;
         mFileSizeChangedTime = -1;
+        mReservedBytes = 0;
     }
 
     /**
@@ -96,9 +123,10 @@ public class RemainingTimeCalculator {
         long blockSize = -1;
         long now = System.currentTimeMillis();
 
-        fs = new StatFs(Environment.getExternalStorageDirectory().getAbsolutePath());
-        blocks = fs.getAvailableBlocks() - EXTERNAL_STORAGE_BLOCK_THREADHOLD;
+        fs = statFs();
         blockSize = fs.getBlockSize();
+        blocks = fs.getAvailableBlocks() + mReservedBytes / blockSize
+                - EXTERNAL_STORAGE_BLOCK_THREADHOLD;
         if (blocks < 0) {
             blocks = 0;
         }
@@ -128,14 +156,15 @@ public class RemainingTimeCalculator {
         // If we have a recording file set, we calculate a second estimate
         // based on how long it will take us to reach mMaxBytes.
 
-        mRecordingFile = new File(mRecordingFile.getAbsolutePath());
         long fileSize = mRecordingFile.length();
+        mSyscallCount++;
         if (mFileSizeChangedTime == -1 || fileSize != mLastFileSize) {
             mFileSizeChangedTime = now;
             mLastFileSize = fileSize;
         }
 
-        long result2 = (mMaxBytes - fileSize) / mBytesPerSecond;
+        long result2 = (mMaxBytes - fileSize)
+                / (mFileBytesPerSecond > 0 ? mFileBytesPerSecond : mBytesPerSecond);
         result2 -= (now - mFileSizeChangedTime) / 1000;
         result2 -= 1; // just for safety
 
@@ -157,7 +186,7 @@ public class RemainingTimeCalculator {
      * Is there any point of trying to start recording?
      */
     public boolean diskSpaceAvailable() {
-        StatFs fs = new StatFs(Environment.getExternalStorageDirectory().getAbsolutePath());
+        StatFs fs = statFs();
         // keep one free block
         return fs.getAvailableBlocks() > EXTERNAL_STORAGE_BLOCK_THREADHOLD;
     }
@@ -170,4 +199,31 @@ public class RemainingTimeCalculator {
     public void setBitRate(int bitRate) {
         mBytesPerSecond = bitRate / 8;
     }
+
+    /**
+     * Sets the number of bytes reserved for the recording, which count as
+     * available although the file system reports them as used.
+     */
+    public void setReservedBytes(long reservedBytes) {
+        mReservedBytes = reservedBytes;
+    }
+
+    /**
+     * Returns the number of statfs/stat calls issued so far.
+     */
+    public long syscallCount() {
+        return mSyscallCount;
+    }
+
+    private StatFs statFs() {
+        String path = Environment.getExternalStorageDirectory().getAbsolutePath();
+        if (mStatFs == null || !path.equals(mStoragePath)) {
+            mStatFs = new StatFs(path);
+            mStoragePath = path;
+        } else {
+            mStatFs.restat(path);
+        }
+        mSyscallCount++;
+        return mStatFs;
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Ties the segments of one logical recording together. The manifest is a
+ * small text file next to the recording, with one line per segment holding
+ * the segment index and its duration in milliseconds, -1 while the segment is
+ * still being written. A recording without a manifest has a single segment.
+ */
+public class SegmentManifest {
+    private static final String MANIFEST_SUFFIX = ".segments";
+
+    private static final String HEADER = "segments 1";
+
+    private final File mRecording;
+
+    private final ArrayList<Long> mDurations = new ArrayList<Long>();
+
+    public SegmentManifest(File recording) {
+        mRecording = recording;
+    }
+
+    /**
+     * Loads the manifest of a recording, or returns null if the recording has
+     * no manifest or it can't be read.
+     */
+    public static SegmentManifest load(File recording) {
+        File file = RecordingFiles.sidecar(recording, MANIFEST_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+
+        SegmentManifest manifest = new SegmentManifest(recording);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 2
+                        || Integer.parseInt(fields[0]) != manifest.mDurations.size()) {
+                    return null;
+                }
+                manifest.mDurations.add(Long.parseLong(fields[1]));
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return manifest.mDurations.isEmpty() ? null : manifest;
+    }
+
+    /**
+     * Writes the manifest. A temporary file is renamed over the old manifest so
+     * that a crash never leaves a half-written one behind.
+     */
+    public void save() throws IOException {
+        File file = RecordingFiles.sidecar(mRecording, MANIFEST_SUFFIX);
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new FileWriter(temp);
+        try {
+            writer.write(HEADER + "\n");
+            for (int i = 0; i < mDurations.size(); i++) {
+                writer.write(i + " " + mDurations.get(i) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("unable to write " + file);
+        }
+    }
+
+    /**
+     * Appends a segment that is still being written and returns its file.
+     */
+    public File addSegment() {
+        mDurations.add(-1L);
+        return segment(mDurations.size() - 1);
+    }
+
+    public void setDuration(int index, long durationMillis) {
+        mDurations.set(index, durationMillis);
+    }
+
+    /**
+     * Drops the segments from the given index on.
+     */
+    public void truncate(int count) {
+        while (mDurations.size() > count) {
+            mDurations.remove(mDurations.size() - 1);
+        }
+    }
+
+    public int count() {
+        return mDurations.size();
+    }
+
+    public File segment(int index) {
+        return RecordingFiles.segment(mRecording, index);
+    }
+
+    /**
+     * Returns the duration of a segment in milliseconds, or -1 if unknown.
+     */
+    public long duration(int index) {
+        return mDurations.get(index);
+    }
+
+    /**
+     * Returns the position at which a segment starts in milliseconds.
+     */
+    public long startOf(int index) {
+        long start = 0;
+        for (int i = 0; i < index; i++) {
+            start += Math.max(0, mDurations.get(i));
+        }
+        return start;
+    }
+
+    public long totalDuration() {
+        return startOf(mDurations.size());
+    }
+
+    /**
+     * Returns the segment that contains the given position in milliseconds.
+     */
+    public int segmentAt(long position) {
+        long start = 0;
+        for (int i = 0; i < mDurations.size() - 1; i++) {
+            start += Math.max(0, mDurations.get(i));
+            if (position < start) {
+                return i;
+            }
+        }
+        return mDurations.size() - 1;
+    }
+}
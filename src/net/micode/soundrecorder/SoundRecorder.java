@@ -19,8 +19,8 @@ package net.micode.soundrecorder;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.NotificationManager;
+import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -28,15 +28,15 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.media.AudioManager;
 import android.media.MediaRecorder;
 import android.media.SoundPool;
 import android.net.Uri;
-import android.os.Build;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
@@ -54,12 +54,13 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 
 public class SoundRecorder extends Activity implements Button.OnClickListener,
-        Recorder.OnStateChangedListener {
+        Recorder.OnStateChangedListener, StorageMonitor.OnRemainingTimeChangedListener,
+        ProcessingQueue.Listener, SoundRecorderPreferenceActivity.OnSnapshotChangedListener {
     private static final String TAG = "SoundRecorder";
 
     private static final String RECORDER_STATE_KEY = "recorder_state";
@@ -68,9 +69,13 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     private static final String MAX_FILE_SIZE_KEY = "max_file_size";
 
-    private static final String AUDIO_3GPP = "audio/3gpp";
+    private static final String EXPECTED_DURATION_KEY = "expected_duration";
 
-    private static final String AUDIO_AMR = "audio/amr";
+    public static final String AUDIO_3GPP = "audio/3gpp";
+
+    public static final String AUDIO_AMR = "audio/amr";
+
+    public static final String AUDIO_WAV = "audio/x-wav";
 
     private static final String AUDIO_ANY = "audio/*";
 
@@ -80,12 +85,19 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     private static final String FILE_EXTENSION_3GPP = ".3gpp";
 
+    private static final String FILE_EXTENSION_WAV = ".wav";
+
     public static final int BITRATE_AMR = 2 * 1024 * 8; // bits/sec
 
     public static final int BITRATE_3GPP = 20 * 1024 * 8; // bits/sec
 
     private static final int SEEK_BAR_MAX = 10000;
 
+    // playback speeds of WAV samples, as listed in R.array.speedEntries
+    private static final float[] SPEEDS = {
+            0.5f, 0.75f, 1.0f, 1.25f, 1.5f, 2.0f, 2.5f, 3.0f
+    };
+
     private static final long WHEEL_SPEED_NORMAL = 1800;
 
     private static final long WHEEL_SPEED_FAST = 300;
@@ -100,14 +112,15 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     private String mRequestedType = AUDIO_ANY;
 
-    private boolean mCanRequestChanged = false;
-
     private Recorder mRecorder;
 
     private RecorderReceiver mReceiver;
 
     private boolean mSampleInterrupted = false;
 
+    // whether the requesting app gets a compact copy of the recording
+    private boolean mCompactCopy = false;
+
     private boolean mShowFinishButton = false;
 
     private String mErrorUiMessage = null; // Some error messages are displayed
@@ -117,7 +130,9 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     private long mMaxFileSize = -1; // can be specified in the intent
 
-    private RemainingTimeCalculator mRemainingTimeCalculator;
+    private long mExpectedDuration = -1; // milliseconds, with mMaxFileSize
+
+    private StorageMonitor mStorageMonitor;
 
     private String mTimerFormat;
 
@@ -191,6 +206,8 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     private LinearLayout mSeekBarLayout;
 
+    private WaveformView mWaveformView;
+
     private TextView mStartTime;
 
     private TextView mTotalTime;
@@ -203,6 +220,13 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     private boolean mStopUiUpdate;
 
+    private ProcessingQueue mProcessingQueue;
+
+    // job shown by the processing dialog
+    private ProcessingQueue.Job mProcessingJob;
+
+    private ProgressDialog mProcessingDialog;
+
     @Override
     public void onCreate(Bundle icycle) {
         super.onCreate(icycle);
@@ -212,8 +236,14 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         mRecorder = new Recorder(this);
         mRecorder.setOnStateChangedListener(this);
         mReceiver = new RecorderReceiver();
-        mRemainingTimeCalculator = new RemainingTimeCalculator();
+        mStorageMonitor = StorageMonitor.getInstance();
         mSavedRecord = new HashSet<String>();
+        // resumes the jobs of a killed process
+        mProcessingQueue = ProcessingQueue.getInstance(this);
+        mProcessingQueue.addListener(this);
+        // once per build of the system, to be known by the first recording
+        CodecProfile.getInstance(this).probe();
+        SoundRecorderPreferenceActivity.addSnapshotListener(this);
 
         initResourceRefs();
 
@@ -225,6 +255,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
                 mRecorder.restoreState(recorderState);
                 mSampleInterrupted = recorderState.getBoolean(SAMPLE_INTERRUPTED_KEY, false);
                 mMaxFileSize = recorderState.getLong(MAX_FILE_SIZE_KEY, -1);
+                mExpectedDuration = recorderState.getLong(EXPECTED_DURATION_KEY, -1);
             }
         }
 
@@ -235,6 +266,10 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
             mRecorder.reset();
             resetFileNameEditText();
         }
+
+        if (!RecorderService.isRecording()) {
+            new RecoveryTask().execute(new File(mRecorder.getRecordDir()));
+        }
     }
 
     @Override
@@ -269,10 +304,20 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
             final String EXTRA_MAX_BYTES = android.provider.MediaStore.Audio.Media.EXTRA_MAX_BYTES;
             mMaxFileSize = i.getLongExtra(EXTRA_MAX_BYTES, -1);
+            // the bit rate is chosen to fit this long a recording in the size
+            int limit = i.getIntExtra(android.provider.MediaStore.EXTRA_DURATION_LIMIT, -1);
+            mExpectedDuration = limit > 0 ? limit * 1000L : -1;
         }
 
-        if (AUDIO_ANY.equals(mRequestedType)) {
-            mRequestedType = SoundRecorderPreferenceActivity.getRecordType(this);
+        // an app that takes any audio gets a compact copy of a recording kept
+        // in full quality, if the user wants one
+        mCompactCopy = mShowFinishButton
+                && (AUDIO_ANY.equals(mRequestedType) || ANY_ANY.equals(mRequestedType))
+                && SoundRecorderPreferenceActivity.isCompactCopyEnabled(this);
+        if (mCompactCopy) {
+            mRequestedType = AUDIO_WAV;
+        } else if (AUDIO_ANY.equals(mRequestedType)) {
+            mRequestedType = RecordingProfile.current(this).mimeType();
         } else if (ANY_ANY.equals(mRequestedType)) {
             mRequestedType = AUDIO_3GPP;
         }
@@ -291,7 +336,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        if (mRecorder.sampleLength() == 0)
+        if (mRecorder.sampleDuration() == 0)
             return;
 
         Bundle recorderState = new Bundle();
@@ -301,6 +346,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         }
         recorderState.putBoolean(SAMPLE_INTERRUPTED_KEY, mSampleInterrupted);
         recorderState.putLong(MAX_FILE_SIZE_KEY, mMaxFileSize);
+        recorderState.putLong(EXPECTED_DURATION_KEY, mExpectedDuration);
 
         outState.putBundle(RECORDER_STATE_KEY, recorderState);
     }
@@ -349,6 +395,12 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         mPlaySeekBar = (SeekBar) findViewById(R.id.play_seek_bar);
         mPlaySeekBar.setMax(SEEK_BAR_MAX);
         mPlaySeekBar.setOnSeekBarChangeListener(mSeekBarChangeListener);
+        mWaveformView = (WaveformView) findViewById(R.id.waveform);
+        mWaveformView.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                mWaveformView.zoomIn();
+            }
+        });
 
         mTimerFormat = getResources().getString(R.string.timer_format);
 
@@ -367,13 +419,19 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         mLastButtonId = 0;
     }
 
-    private void resetFileNameEditText() {
-        String extension = "";
+    private String fileExtension() {
         if (AUDIO_AMR.equals(mRequestedType)) {
-            extension = FILE_EXTENSION_AMR;
+            return FILE_EXTENSION_AMR;
         } else if (AUDIO_3GPP.equals(mRequestedType)) {
-            extension = FILE_EXTENSION_3GPP;
+            return FILE_EXTENSION_3GPP;
+        } else if (AUDIO_WAV.equals(mRequestedType)) {
+            return FILE_EXTENSION_WAV;
         }
+        return "";
+    }
+
+    private void resetFileNameEditText() {
+        String extension = fileExtension();
 
         // for audio which is used for mms, we can only use english file name
         // mShowFinishButon indicates whether this is an audio for mms
@@ -485,48 +543,59 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
                 finish();
                 break;
             case R.id.deleteButton:
-                showDeleteConfirmDialog();
+                if (mRecorder.state() == Recorder.PLAYING_PAUSED_STATE
+                        && mRecorder.canCutSample()) {
+                    showDeleteOrCutDialog(mRecorder.playPositionMillis());
+                } else {
+                    showDeleteConfirmDialog();
+                }
                 break;
         }
     }
 
     private void startRecording() {
-        mRemainingTimeCalculator.reset();
         if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
             mSampleInterrupted = true;
             mErrorUiMessage = getResources().getString(R.string.insert_sd_card);
             updateUi(false);
-        } else if (!mRemainingTimeCalculator.diskSpaceAvailable()) {
+        } else if (!mStorageMonitor.diskSpaceAvailable()) {
             mSampleInterrupted = true;
             mErrorUiMessage = getResources().getString(R.string.storage_is_full);
             updateUi(false);
         } else {
             stopAudioPlayback();
 
-            boolean isHighQuality = SoundRecorderPreferenceActivity.isHighQuality(this);
+            // a named profile applies unless an app asked for a particular
+            // recording
+            RecordingProfile profile = RecordingProfile.current(this);
+            boolean isHighQuality = profile.highQuality;
+            String profileName = null;
+            if (!profile.isCustom() && profile.mimeType().equals(mRequestedType)
+                    && mMaxFileSize == -1 && !mCompactCopy) {
+                profileName = profile.name;
+            }
             if (AUDIO_AMR.equals(mRequestedType)) {
-                mRemainingTimeCalculator.setBitRate(BITRATE_AMR);
+                isHighQuality = isHighQuality
+                        && CodecProfile.getInstance(this).isSupported(
+                                MediaRecorder.OutputFormat.AMR_WB,
+                                MediaRecorder.AudioEncoder.AMR_WB, 16000, 1);
                 int outputfileformat = isHighQuality ? MediaRecorder.OutputFormat.AMR_WB
                         : MediaRecorder.OutputFormat.AMR_NB;
                 mRecorder.startRecording(outputfileformat, mFileNameEditText.getText().toString(),
-                        FILE_EXTENSION_AMR, isHighQuality, mMaxFileSize);
+                        FILE_EXTENSION_AMR, isHighQuality, mMaxFileSize, mExpectedDuration,
+                        false, mShowFinishButton, profileName);
             } else if (AUDIO_3GPP.equals(mRequestedType)) {
-                // HACKME: for HD2, there is an issue with high quality 3gpp
-                // use low quality instead
-                if (Build.MODEL.equals("HTC HD2")) {
-                    isHighQuality = false;
-                }
-
-                mRemainingTimeCalculator.setBitRate(BITRATE_3GPP);
                 mRecorder.startRecording(MediaRecorder.OutputFormat.THREE_GPP, mFileNameEditText
-                        .getText().toString(), FILE_EXTENSION_3GPP, isHighQuality, mMaxFileSize);
+                        .getText().toString(), FILE_EXTENSION_3GPP, isHighQuality, mMaxFileSize,
+                        mExpectedDuration, false, mShowFinishButton, profileName);
+            } else if (AUDIO_WAV.equals(mRequestedType)) {
+                mRecorder.startRecording(RecorderService.OUTPUT_FORMAT_WAV, mFileNameEditText
+                        .getText().toString(), FILE_EXTENSION_WAV, isHighQuality || mCompactCopy,
+                        mMaxFileSize, mExpectedDuration, mCompactCopy, mShowFinishButton,
+                        profileName);
             } else {
                 throw new IllegalArgumentException("Invalid output file type requested");
             }
-
-            if (mMaxFileSize != -1) {
-                mRemainingTimeCalculator.setFileSizeLimit(mRecorder.sampleFile(), mMaxFileSize);
-            }
         }
     }
 
@@ -539,7 +608,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
             switch (mRecorder.state()) {
                 case Recorder.IDLE_STATE:
                 case Recorder.PLAYING_PAUSED_STATE:
-                    if (mRecorder.sampleLength() > 0)
+                    if (mRecorder.sampleDuration() > 0)
                         saveSample();
                     finish();
                     break;
@@ -564,23 +633,13 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
     @Override
     protected void onResume() {
         super.onResume();
-        String type = SoundRecorderPreferenceActivity.getRecordType(this);
-        if (mCanRequestChanged && !TextUtils.equals(type, mRequestedType)) {
-            saveSample();
-            mRecorder.reset();
-            mRequestedType = type;
-            resetFileNameEditText();
-        }
-        mCanRequestChanged = false;
-
         if (!mRecorder.syncStateWithService()) {
             mRecorder.reset();
             resetFileNameEditText();
         }
 
         if (mRecorder.state() == Recorder.RECORDING_STATE) {
-            String preExtension = AUDIO_AMR.equals(mRequestedType) ? FILE_EXTENSION_AMR
-                    : FILE_EXTENSION_3GPP;
+            String preExtension = fileExtension();
             if (!mRecorder.sampleFile().getName().endsWith(preExtension)) {
                 // the extension is changed need to stop current recording
                 mRecorder.reset();
@@ -591,12 +650,6 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
                     String fileName = mRecorder.sampleFile().getName().replace(preExtension, "");
                     mFileNameEditText.setText(fileName);
                 }
-
-                if (AUDIO_AMR.equals(mRequestedType)) {
-                    mRemainingTimeCalculator.setBitRate(BITRATE_AMR);
-                } else if (AUDIO_3GPP.equals(mRequestedType)) {
-                    mRemainingTimeCalculator.setBitRate(BITRATE_3GPP);
-                }
             }
         } else {
             File file = mRecorder.sampleFile();
@@ -609,6 +662,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         IntentFilter filter = new IntentFilter();
         filter.addAction(RecorderService.RECORDER_SERVICE_BROADCAST_NAME);
         registerReceiver(mReceiver, filter);
+        mStorageMonitor.addListener(this);
 
         mStopUiUpdate = false;
         updateUi(true);
@@ -635,8 +689,8 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         if (mReceiver != null) {
             unregisterReceiver(mReceiver);
         }
+        mStorageMonitor.removeListener(this);
 
-        mCanRequestChanged = true;
         mStopUiUpdate = true;
         stopAnimation();
 
@@ -660,15 +714,32 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
     /*
      * If we have just recorded a sample, this adds it to the media data base
-     * and sets the result to the sample's URI.
+     * and sets the result to the sample's URI. Only a recording request of
+     * another app waits for the media data base, which it needs the URI of,
+     * otherwise the sample is registered and analyzed in the background.
      */
     private void saveSample() {
-        if (mRecorder.sampleLength() == 0)
+        if (mRecorder.sampleDuration() == 0)
             return;
-        if (!mSavedRecord.contains(mRecorder.sampleFile().getAbsolutePath())) {
+        File sample = mRecorder.sampleFile();
+        if (!mSavedRecord.contains(sample.getAbsolutePath())) {
+            if (!mShowFinishButton) {
+                mProcessingQueue.enqueue(ProcessingQueue.KIND_REGISTER, sample,
+                        ProcessingQueue.PRIORITY_NORMAL);
+                mProcessingQueue.enqueue(ProcessingQueue.KIND_ANALYZE, sample,
+                        ProcessingQueue.PRIORITY_LOW);
+                mSavedRecord.add(sample.getAbsolutePath());
+                return;
+            }
+            long start = SystemClock.elapsedRealtime();
+            File result = mRecorder.compactCopy();
+            if (result == null) {
+                result = sample;
+            }
             Uri uri = null;
             try {
-                uri = this.addToMediaDB(mRecorder.sampleFile());
+                uri = MediaStoreHelper.addRecording(this, result, mRecorder.sampleDuration(),
+                        mRequestedType);
             } catch (UnsupportedOperationException ex) { // Database
                 // manipulation
                 // failure
@@ -677,8 +748,18 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
             if (uri == null) {
                 return;
             }
-            mSavedRecord.add(mRecorder.sampleFile().getAbsolutePath());
+            if (result != sample) {
+                // the app gets the copy, the sample is kept for the user; queued
+                // only once the copy is registered, a failed save is tried again
+                mProcessingQueue.enqueue(ProcessingQueue.KIND_REGISTER, sample,
+                        ProcessingQueue.PRIORITY_NORMAL);
+                mProcessingQueue.enqueue(ProcessingQueue.KIND_ANALYZE, sample,
+                        ProcessingQueue.PRIORITY_LOW);
+            }
+            mSavedRecord.add(sample.getAbsolutePath());
             setResult(RESULT_OK, new Intent().setData(uri));
+            Log.d(TAG, "returned " + uri + " in " + (SystemClock.elapsedRealtime() - start)
+                    + " ms");
         }
     }
 
@@ -702,9 +783,47 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         dialogBuilder.show();
     }
 
+    /*
+     * Offers to cut the sample at the paused position besides deleting it.
+     */
+    private void showDeleteOrCutDialog(final long position) {
+        int seconds = (int) (position / 1000);
+        String time = String.format(mTimerFormat, seconds / 60, seconds % 60);
+        String[] items = {
+                getString(R.string.delete_recording), getString(R.string.cut_before, time),
+                getString(R.string.cut_after, time)
+        };
+        AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+        dialogBuilder.setItems(items, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (which == 0) {
+                    showDeleteConfirmDialog();
+                } else if (which == 1) {
+                    cutSample(0, position);
+                } else {
+                    cutSample(position, Long.MAX_VALUE);
+                }
+            }
+        });
+        dialogBuilder.setNegativeButton(android.R.string.cancel,
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mLastButtonId = 0;
+                    }
+                });
+        dialogBuilder.show();
+    }
+
+    private void cutSample(long startMillis, long endMillis) {
+        mRecorder.stop();
+        new CutTask(mRecorder.sampleFile(), startMillis, endMillis).execute();
+    }
+
     private void showOverwriteConfirmDialogIfConflicts() {
         String fileName = mFileNameEditText.getText().toString()
-                + (AUDIO_AMR.equals(mRequestedType) ? FILE_EXTENSION_AMR : FILE_EXTENSION_3GPP);
+                + fileExtension();
 
         if (mRecorder.isRecordExisted(fileName) && !mShowFinishButton) {
             // file already existed and it's not a recording request from other
@@ -742,6 +861,12 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
             mSDCardMountEventReceiver = null;
         }
         mSoundPool.release();
+        mProcessingQueue.removeListener(this);
+        SoundRecorderPreferenceActivity.removeSnapshotListener(this);
+        if (mProcessingDialog != null) {
+            mProcessingDialog.dismiss();
+            mProcessingDialog = null;
+        }
 
         super.onDestroy();
     }
@@ -771,132 +896,6 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         }
     }
 
-    /*
-     * A simple utility to do a query into the databases.
-     */
-    private Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
-            String sortOrder) {
-        try {
-            ContentResolver resolver = getContentResolver();
-            if (resolver == null) {
-                return null;
-            }
-            return resolver.query(uri, projection, selection, selectionArgs, sortOrder);
-        } catch (UnsupportedOperationException ex) {
-            return null;
-        }
-    }
-
-    /*
-     * Add the given audioId to the playlist with the given playlistId; and
-     * maintain the play_order in the playlist.
-     */
-    private void addToPlaylist(ContentResolver resolver, int audioId, long playlistId) {
-        String[] cols = new String[] {
-            "count(*)"
-        };
-        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId);
-        Cursor cur = resolver.query(uri, cols, null, null, null);
-        cur.moveToFirst();
-        final int base = cur.getInt(0);
-        cur.close();
-        ContentValues values = new ContentValues();
-        values.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, Integer.valueOf(base + audioId));
-        values.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, audioId);
-        resolver.insert(uri, values);
-    }
-
-    /*
-     * Obtain the id for the default play list from the audio_playlists table.
-     */
-    private int getPlaylistId(Resources res) {
-        Uri uri = MediaStore.Audio.Playlists.getContentUri("external");
-        final String[] ids = new String[] {
-            MediaStore.Audio.Playlists._ID
-        };
-        final String where = MediaStore.Audio.Playlists.NAME + "=?";
-        final String[] args = new String[] {
-            res.getString(R.string.audio_db_playlist_name)
-        };
-        Cursor cursor = query(uri, ids, where, args, null);
-        if (cursor == null) {
-            Log.v(TAG, "query returns null");
-        }
-        int id = -1;
-        if (cursor != null) {
-            cursor.moveToFirst();
-            if (!cursor.isAfterLast()) {
-                id = cursor.getInt(0);
-            }
-            cursor.close();
-        }
-        return id;
-    }
-
-    /*
-     * Create a playlist with the given default playlist name, if no such
-     * playlist exists.
-     */
-    private Uri createPlaylist(Resources res, ContentResolver resolver) {
-        ContentValues cv = new ContentValues();
-        cv.put(MediaStore.Audio.Playlists.NAME, res.getString(R.string.audio_db_playlist_name));
-        Uri uri = resolver.insert(MediaStore.Audio.Playlists.getContentUri("external"), cv);
-        if (uri == null) {
-            new AlertDialog.Builder(this).setTitle(R.string.app_name)
-                    .setMessage(R.string.error_mediadb_new_record)
-                    .setPositiveButton(R.string.button_ok, null).setCancelable(false).show();
-        }
-        return uri;
-    }
-
-    /*
-     * Adds file and returns content uri.
-     */
-    private Uri addToMediaDB(File file) {
-        Resources res = getResources();
-        ContentValues cv = new ContentValues();
-        long current = System.currentTimeMillis();
-        long modDate = file.lastModified();
-        Date date = new Date(current);
-        SimpleDateFormat formatter = new SimpleDateFormat(
-                res.getString(R.string.audio_db_title_format));
-        String title = formatter.format(date);
-        long sampleLengthMillis = mRecorder.sampleLength() * 1000L;
-
-        // Lets label the recorded audio file as NON-MUSIC so that the file
-        // won't be displayed automatically, except for in the playlist.
-        cv.put(MediaStore.Audio.Media.IS_MUSIC, "0");
-
-        cv.put(MediaStore.Audio.Media.TITLE, title);
-        cv.put(MediaStore.Audio.Media.DATA, file.getAbsolutePath());
-        cv.put(MediaStore.Audio.Media.DATE_ADDED, (int) (current / 1000));
-        cv.put(MediaStore.Audio.Media.DATE_MODIFIED, (int) (modDate / 1000));
-        cv.put(MediaStore.Audio.Media.DURATION, sampleLengthMillis);
-        cv.put(MediaStore.Audio.Media.MIME_TYPE, mRequestedType);
-        cv.put(MediaStore.Audio.Media.ARTIST, res.getString(R.string.audio_db_artist_name));
-        cv.put(MediaStore.Audio.Media.ALBUM, res.getString(R.string.audio_db_album_name));
-        Log.d(TAG, "Inserting audio record: " + cv.toString());
-        ContentResolver resolver = getContentResolver();
-        Uri base = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        Log.d(TAG, "ContentURI: " + base);
-        Uri result = resolver.insert(base, cv);
-        if (result == null) {
-            Log.w(TAG, getString(R.string.error_mediadb_new_record));
-            return null;
-        }
-
-        if (getPlaylistId(res) == -1) {
-            createPlaylist(res, resolver);
-        }
-        int audioId = Integer.valueOf(result.getLastPathSegment());
-        addToPlaylist(resolver, audioId, getPlaylistId(res));
-
-        // Notify those applications such as Music listening to the
-        // scanner events that a recorded audio file just created.
-        sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, result));
-        return result;
-    }
-
     private ImageView getTimerImage(char number) {
         ImageView image = new ImageView(this);
         LayoutParams lp = new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
@@ -951,15 +950,17 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
 
         boolean ongoing = state == Recorder.RECORDING_STATE || state == Recorder.PLAYING_STATE;
 
-        long time = mRecorder.progress();
+        long time = mRecorder.progress() / 1000;
         String timeStr = String.format(mTimerFormat, time / 60, time % 60);
         mTimerLayout.removeAllViews();
         for (int i = 0; i < timeStr.length(); i++) {
             mTimerLayout.addView(getTimerImage(timeStr.charAt(i)));
         }
 
-        if (state == Recorder.RECORDING_STATE) {
-            updateTimeRemaining();
+        if (state == Recorder.PLAYING_STATE || state == Recorder.PLAYING_PAUSED_STATE) {
+            // shorter than the sample while silence is skipped
+            long length = mRecorder.playLength() / 1000;
+            mTotalTime.setText(String.format(mTimerFormat, length / 60, length % 60));
         }
 
         if (ongoing) {
@@ -968,7 +969,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
     }
 
     private void setTimerView(float progress) {
-        long time = (long) (progress * mRecorder.sampleLength());
+        long time = (long) (progress * mRecorder.playLength()) / 1000;
         String timeStr = String.format(mTimerFormat, time / 60, time % 60);
         mTimerLayout.removeAllViews();
         for (int i = 0; i < timeStr.length(); i++) {
@@ -979,22 +980,23 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
     private void updateSeekBar() {
         if (mRecorder.state() == Recorder.PLAYING_STATE) {
             mPlaySeekBar.setProgress((int) (SEEK_BAR_MAX * mRecorder.playProgress()));
+            mWaveformView.setProgress(mRecorder.playProgress());
             mHandler.postDelayed(mUpdateSeekBar, 10);
         }
     }
 
     /*
-     * Called when we're in recording state. Find out how much longer we can go
-     * on recording. If it's under 5 minutes, we display a count-down in the UI.
-     * If we've run out of time, stop the recording.
+     * Called by the storage monitor while we're in recording state. If we've
+     * run out of time, stop the recording.
      */
-    private void updateTimeRemaining() {
-        long t = mRemainingTimeCalculator.timeRemaining();
+    public void onRemainingTimeChanged(long t, int limit) {
+        if (mRecorder.state() != Recorder.RECORDING_STATE) {
+            return;
+        }
 
         if (t <= 0) {
             mSampleInterrupted = true;
 
-            int limit = mRemainingTimeCalculator.currentLowerLimit();
             switch (limit) {
                 case RemainingTimeCalculator.DISK_SPACE_LIMIT:
                     mErrorUiMessage = getResources().getString(R.string.storage_is_full);
@@ -1070,7 +1072,7 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
             case Recorder.IDLE_STATE:
                 mLastButtonId = 0;
             case Recorder.PLAYING_PAUSED_STATE:
-                if (mRecorder.sampleLength() == 0) {
+                if (mRecorder.sampleDuration() == 0) {
                     mNewButton.setEnabled(true);
                     mNewButton.setVisibility(View.VISIBLE);
                     mRecordButton.setVisibility(View.VISIBLE);
@@ -1095,13 +1097,13 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
                     mVUMeterLayout.setVisibility(View.GONE);
                     mSeekBarLayout.setVisibility(View.VISIBLE);
                     mStartTime.setText(String.format(mTimerFormat, 0, 0));
-                    mTotalTime.setText(String.format(mTimerFormat, mRecorder.sampleLength() / 60,
-                            mRecorder.sampleLength() % 60));
+                    long length = mRecorder.sampleDuration() / 1000;
+                    mTotalTime.setText(String.format(mTimerFormat, length / 60, length % 60));
                 }
                 mFileNameEditText.setEnabled(true);
                 mFileNameEditText.clearFocus();
 
-                if (mRecorder.sampleLength() > 0) {
+                if (mRecorder.sampleDuration() > 0) {
                     if (mRecorder.state() == Recorder.PLAYING_PAUSED_STATE) {
                         stopAnimation();
                         if (SoundRecorderPreferenceActivity.isEnabledSoundEffect(this)) {
@@ -1173,7 +1175,17 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
         updateTimerView();
         updateSeekBar();
         updateVUMeterView();
+        updateWaveformView();
+    }
 
+    private void updateWaveformView() {
+        mWaveformView.setVisibility(mSeekBarLayout.getVisibility());
+        if (mSeekBarLayout.getVisibility() == View.VISIBLE
+                && mRecorder.state() == Recorder.IDLE_STATE) {
+            File file = mRecorder.sampleFile();
+            mWaveformView.setIndex(file != null ? PeakIndex.open(file) : null);
+            mWaveformView.setProgress(mRecorder.playProgress());
+        }
     }
 
     /*
@@ -1216,11 +1228,29 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         menu.clear();
-        if (mRecorder.state() == Recorder.RECORDING_STATE
-                || mRecorder.state() == Recorder.PLAYING_STATE) {
+        File sample = mRecorder.sampleFile();
+        boolean wav = sample != null && mRecorder.sampleDuration() > 0
+                && sample.getName().endsWith(FILE_EXTENSION_WAV);
+        if (mRecorder.state() == Recorder.RECORDING_STATE) {
             return false;
+        } else if (mRecorder.state() == Recorder.PLAYING_STATE) {
+            if (!wav) {
+                return false;
+            }
+            // only the speed can be changed while playing
+            getMenuInflater().inflate(R.layout.view_list_menu, menu);
+            menu.findItem(R.id.menu_fm).setVisible(false);
+            menu.findItem(R.id.menu_setting).setVisible(false);
+            menu.findItem(R.id.menu_speed).setVisible(true);
+            return true;
         } else {
             getMenuInflater().inflate(R.layout.view_list_menu, menu);
+            menu.findItem(R.id.menu_speed).setVisible(wav);
+            menu.findItem(R.id.menu_merge).setVisible(sample != null
+                    && mRecorder.sampleDuration() > 0 && !wav
+                    && SegmentManifest.load(sample) == null);
+            menu.findItem(R.id.menu_denoise).setVisible(wav);
+            menu.findItem(R.id.menu_normalize).setVisible(wav);
             return true;
         }
     }
@@ -1240,12 +1270,162 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
                 intent = new Intent(this, SoundRecorderPreferenceActivity.class);
                 startActivity(intent);
                 break;
+            case R.id.menu_speed:
+                showSpeedDialog();
+                break;
+            case R.id.menu_merge:
+                showMergeDialog();
+                break;
+            case R.id.menu_denoise:
+                startProcessing(ProcessingQueue.KIND_DENOISE, R.string.denoise_progress);
+                break;
+            case R.id.menu_normalize:
+                startProcessing(ProcessingQueue.KIND_NORMALIZE, R.string.normalize_progress);
+                break;
             default:
                 break;
         }
         return true;
     }
 
+    /*
+     * Queues a processed copy of the sample and shows its progress. The
+     * dialog can be hidden with the back key while the job goes on.
+     */
+    private void startProcessing(int kind, int messageId) {
+        saveSample();
+        final ProcessingQueue.Job job = mProcessingQueue.enqueue(kind, mRecorder.sampleFile(),
+                ProcessingQueue.PRIORITY_HIGH);
+        if (mProcessingDialog != null) {
+            mProcessingDialog.dismiss();
+        }
+        mProcessingJob = job;
+        mProcessingDialog = new ProgressDialog(this);
+        mProcessingDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProcessingDialog.setMessage(getString(messageId));
+        mProcessingDialog.setMax(100);
+        mProcessingDialog.setProgress(Math.max(0, job.getProgress()));
+        mProcessingDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mProcessingQueue.cancel(job);
+                    }
+                });
+        mProcessingDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                Toast.makeText(SoundRecorder.this, R.string.processing_in_background,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+        mProcessingDialog.show();
+    }
+
+    public void onProgress(ProcessingQueue.Job job, int percent) {
+        if (job == mProcessingJob && mProcessingDialog != null) {
+            mProcessingDialog.setProgress(percent);
+        }
+    }
+
+    public void onFinished(ProcessingQueue.Job job, File result) {
+        if (job == mProcessingJob) {
+            if (mProcessingDialog != null) {
+                mProcessingDialog.dismiss();
+                mProcessingDialog = null;
+            }
+            mProcessingJob = null;
+        }
+        if (job.getKind() != ProcessingQueue.KIND_NORMALIZE
+                && job.getKind() != ProcessingQueue.KIND_DENOISE || job.isCancelled()) {
+            return;
+        }
+        if (result == null) {
+            Toast.makeText(this, R.string.error_processing, Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, getString(R.string.processing_done, result.getName()),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    public void onSnapshotChanged(SoundRecorderPreferenceActivity.Snapshot previous,
+            SoundRecorderPreferenceActivity.Snapshot snapshot) {
+        final String type = snapshot.profile.mimeType();
+        if (previous != null && TextUtils.equals(previous.profile.mimeType(), type)) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            public void run() {
+                // the record type was changed in the settings
+                if (!TextUtils.equals(type, mRequestedType)) {
+                    saveSample();
+                    mRecorder.reset();
+                    mRequestedType = type;
+                    resetFileNameEditText();
+                }
+            }
+        });
+    }
+
+    private void showSpeedDialog() {
+        int checked = 0;
+        for (int i = 0; i < SPEEDS.length; i++) {
+            if (Math.abs(SPEEDS[i] - mRecorder.playbackSpeed()) < 0.01f) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this).setTitle(R.string.menu_speed).setSingleChoiceItems(
+                getResources().getStringArray(R.array.speedEntries), checked,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        mRecorder.setPlaybackSpeed(SPEEDS[which]);
+                        dialog.dismiss();
+                    }
+                }).show();
+    }
+
+    /*
+     * Lets the user pick the recordings to join with the current one.
+     */
+    private void showMergeDialog() {
+        final File sample = mRecorder.sampleFile();
+        final ArrayList<File> candidates = RecordingMerger.candidates(sample);
+        if (candidates.isEmpty()) {
+            Toast.makeText(this, R.string.no_recordings_to_merge, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] names = new String[candidates.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = candidates.get(i).getName();
+        }
+        final boolean[] checked = new boolean[names.length];
+        new AlertDialog.Builder(this).setTitle(R.string.merge_dialog_title)
+                .setMultiChoiceItems(names, checked,
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            public void onClick(DialogInterface dialog, int which,
+                                    boolean isChecked) {
+                                checked[which] = isChecked;
+                            }
+                        })
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        ArrayList<File> sources = new ArrayList<File>();
+                        sources.add(sample);
+                        for (int i = 0; i < checked.length; i++) {
+                            if (checked[i]) {
+                                sources.add(candidates.get(i));
+                            }
+                        }
+                        if (sources.size() > 1) {
+                            mRecorder.stop();
+                            RecordingMerger.sortByAge(sources);
+                            new MergeTask(sample).execute(sources.toArray(new File[sources
+                                    .size()]));
+                        }
+                    }
+                }).setNegativeButton(android.R.string.cancel, null).show();
+    }
+
     private SeekBar.OnSeekBarChangeListener mSeekBarChangeListener = new SeekBar.OnSeekBarChangeListener() {
         private final int DELTA = SEEK_BAR_MAX / 20;
 
@@ -1294,11 +1474,210 @@ public class SoundRecorder extends Activity implements Button.OnClickListener,
                 }
 
                 setTimerView(((float) progress) / SEEK_BAR_MAX);
+                mWaveformView.setProgress(((float) progress) / SEEK_BAR_MAX);
                 mLastButtonId = 0;
             }
         }
     };
 
+    /*
+     * Repairs recordings left unfinished by a killed process and adds them to
+     * the media data base.
+     */
+    private class RecoveryTask extends
+            AsyncTask<File, Void, ArrayList<RecordingRecovery.Recovered>> {
+
+        @Override
+        protected ArrayList<RecordingRecovery.Recovered> doInBackground(File... dirs) {
+            return RecordingRecovery.recoverAll(dirs[0]);
+        }
+
+        @Override
+        protected void onPostExecute(ArrayList<RecordingRecovery.Recovered> recovered) {
+            if (recovered.isEmpty() || isFinishing()) {
+                return;
+            }
+            int failed = 0;
+            for (RecordingRecovery.Recovered recording : recovered) {
+                if (recording.durationMillis < 0) {
+                    failed++;
+                } else {
+                    mProcessingQueue.enqueue(ProcessingQueue.KIND_REGISTER, recording.file,
+                            ProcessingQueue.PRIORITY_NORMAL);
+                }
+            }
+            if (failed < recovered.size()) {
+                Toast.makeText(SoundRecorder.this,
+                        getString(R.string.recordings_recovered, recovered.size() - failed),
+                        Toast.LENGTH_SHORT).show();
+            }
+            if (failed > 0) {
+                Toast.makeText(SoundRecorder.this,
+                        getString(R.string.recordings_unrecoverable, failed),
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /*
+     * Joins recordings, oldest first, into the file of the current sample and
+     * registers the result in the media database in place of them.
+     */
+    private class MergeTask extends AsyncTask<File, Void, Long> {
+        private final File mTarget;
+
+        private File[] mSources;
+
+        private ProgressDialog mProgressDialog;
+
+        MergeTask(File target) {
+            mTarget = target;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = new ProgressDialog(SoundRecorder.this);
+            mProgressDialog.setMessage(getString(R.string.merge_progress));
+            mProgressDialog.setCancelable(false);
+            mProgressDialog.show();
+        }
+
+        @Override
+        protected Long doInBackground(File... sources) {
+            mSources = sources;
+            for (File source : sources) {
+                mProcessingQueue.cancel(source);
+            }
+            File temp = null;
+            try {
+                temp = File.createTempFile("recording", ".tmp", mTarget.getParentFile());
+                long duration = RecordingMerger.merge(sources, temp);
+                RecordingFiles.deleteCompanions(mTarget);
+                if (!temp.renameTo(mTarget)) {
+                    throw new IOException("unable to replace " + mTarget);
+                }
+                for (File source : sources) {
+                    if (!source.equals(mTarget)) {
+                        RecordingFiles.delete(source);
+                    }
+                    MediaStoreHelper.removeRecording(SoundRecorder.this, source);
+                }
+                return duration;
+            } catch (IOException e) {
+                Log.e(TAG, "unable to join recordings: " + e);
+                if (temp != null) {
+                    temp.delete();
+                }
+                return -1L;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Long duration) {
+            if (isFinishing()) {
+                return;
+            }
+            mProgressDialog.dismiss();
+            if (duration < 0) {
+                Toast.makeText(SoundRecorder.this, R.string.error_processing,
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            for (File source : mSources) {
+                mSavedRecord.remove(source.getAbsolutePath());
+            }
+            mRecorder.sampleReplaced(duration);
+            mProcessingQueue.enqueue(ProcessingQueue.KIND_REGISTER, mTarget,
+                    ProcessingQueue.PRIORITY_NORMAL);
+            mProcessingQueue.enqueue(ProcessingQueue.KIND_ANALYZE, mTarget,
+                    ProcessingQueue.PRIORITY_LOW);
+            mSavedRecord.add(mTarget.getAbsolutePath());
+        }
+    }
+
+    /*
+     * Removes the part of the sample between two positions, in milliseconds,
+     * by copying the frames around it; the sample is left as it was if that
+     * fails.
+     */
+    private class CutTask extends AsyncTask<Void, Void, Long> {
+        private final File mSample;
+
+        private final long mStart;
+
+        private final long mEnd;
+
+        private ProgressDialog mProgressDialog;
+
+        CutTask(File sample, long startMillis, long endMillis) {
+            mSample = sample;
+            mStart = startMillis;
+            mEnd = endMillis;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = new ProgressDialog(SoundRecorder.this);
+            mProgressDialog.setMessage(getString(R.string.cut_progress));
+            mProgressDialog.setCancelable(false);
+            mProgressDialog.show();
+        }
+
+        @Override
+        protected Long doInBackground(Void... params) {
+            File temp = null;
+            try {
+                temp = File.createTempFile("recording", ".tmp", mSample.getParentFile());
+                long duration = AmrFile.cut(mSample, temp, mStart, mEnd);
+                // the waveform index and other sidecars describe the old
+                // sample, so do the jobs still reading it
+                mProcessingQueue.cancel(mSample);
+                RecordingFiles.deleteCompanions(mSample);
+                if (!temp.renameTo(mSample)) {
+                    throw new IOException("unable to replace " + mSample);
+                }
+                mProcessingQueue.enqueue(ProcessingQueue.KIND_ANALYZE, mSample,
+                        ProcessingQueue.PRIORITY_LOW);
+                return duration;
+            } catch (IOException e) {
+                Log.e(TAG, "unable to cut " + mSample + ": " + e);
+                if (temp != null) {
+                    temp.delete();
+                }
+                return -1L;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Long duration) {
+            if (isFinishing()) {
+                return;
+            }
+            mProgressDialog.dismiss();
+            if (duration < 0) {
+                mRecorder.setError(Recorder.STORAGE_ACCESS_ERROR);
+                return;
+            }
+
+            if (mSample.equals(mRecorder.sampleFile())) {
+                mRecorder.sampleReplaced(duration);
+            }
+            if (mSavedRecord.contains(mSample.getAbsolutePath())) {
+                // the media database still has the old length
+                ContentValues cv = new ContentValues();
+                cv.put(MediaStore.Audio.Media.DURATION, duration);
+                cv.put(MediaStore.Audio.Media.SIZE, mSample.length());
+                cv.put(MediaStore.Audio.Media.DATE_MODIFIED,
+                        (int) (mSample.lastModified() / 1000));
+                getContentResolver().update(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, cv,
+                        MediaStore.Audio.Media.DATA + "=?", new String[] {
+                            mSample.getAbsolutePath()
+                        });
+            }
+        }
+    }
+
     private class RecorderReceiver extends BroadcastReceiver {
 
         @Override
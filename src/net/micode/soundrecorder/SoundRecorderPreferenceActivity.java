@@ -19,34 +19,296 @@ package net.micode.soundrecorder;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.ListPreference;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 
-public class SoundRecorderPreferenceActivity extends PreferenceActivity {
+import java.util.ArrayList;
+
+public class SoundRecorderPreferenceActivity extends PreferenceActivity implements
+        Preference.OnPreferenceChangeListener {
+    private static final String RECORDING_PROFILE = "pref_key_recording_profile";
+
     private static final String RECORD_TYPE = "pref_key_record_type";
 
     private static final String ENABLE_HIGH_QUALITY = "pref_key_enable_high_quality";
 
     private static final String ENABLE_SOUND_EFFECT = "pref_key_enable_sound_effect";
 
+    private static final String ENABLE_ADAPTIVE_QUALITY = "pref_key_enable_adaptive_quality";
+
+    private static final String SEGMENT_MINUTES = "pref_key_segment_minutes";
+
+    private static final String SEGMENT_MEGABYTES = "pref_key_segment_megabytes";
+
+    private static final String ENABLE_STORAGE_RESERVATION = "pref_key_enable_storage_reservation";
+
+    private static final String ENABLE_COMPACT_COPY = "pref_key_enable_compact_copy";
+
+    private static final String ENABLE_HIGH_PASS = "pref_key_enable_high_pass";
+
+    private static final String ENABLE_NOISE_GATE = "pref_key_enable_noise_gate";
+
+    private static final String ENABLE_AUTOMATIC_GAIN = "pref_key_enable_automatic_gain";
+
+    private static final String ENABLE_LIMITER = "pref_key_enable_limiter";
+
+    private static final String ENABLE_SKIP_SILENCE = "pref_key_enable_skip_silence";
+
+    private static final String ENABLE_VOICE_ACTIVATION = "pref_key_enable_voice_activation";
+
+    private static final String VOICE_PRE_ROLL = "pref_key_voice_pre_roll";
+
+    private static final String VOICE_HANG_TIME = "pref_key_voice_hang_time";
+
+    private static final String PLAYBACK_SPEED = "pref_key_playback_speed";
+
+    // the preferences as last read, replaced whenever one of them changes
+    private static volatile Snapshot sSnapshot;
+
+    private static Context sContext;
+
+    private static final ArrayList<OnSnapshotChangedListener> sListeners =
+            new ArrayList<OnSnapshotChangedListener>();
+
+    // held here as SharedPreferences only keeps a weak reference
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
+                    Snapshot previous;
+                    Snapshot snapshot;
+                    ArrayList<OnSnapshotChangedListener> listeners;
+                    synchronized (SoundRecorderPreferenceActivity.class) {
+                        previous = sSnapshot;
+                        snapshot = new Snapshot(sContext, settings);
+                        sSnapshot = snapshot;
+                        listeners = new ArrayList<OnSnapshotChangedListener>(sListeners);
+                    }
+                    for (OnSnapshotChangedListener listener : listeners) {
+                        listener.onSnapshotChanged(previous, snapshot);
+                    }
+                }
+            };
+
+    /**
+     * All preferences at one point in time.
+     */
+    public static final class Snapshot {
+        public final String recordingProfile;
+
+        public final String recordType;
+
+        public final boolean highQuality;
+
+        public final boolean soundEffect;
+
+        public final boolean adaptiveQuality;
+
+        public final int segmentMinutes;
+
+        public final int segmentMegabytes;
+
+        public final boolean storageReservation;
+
+        public final boolean compactCopy;
+
+        public final boolean highPass;
+
+        public final boolean noiseGate;
+
+        public final boolean automaticGain;
+
+        public final boolean limiter;
+
+        public final boolean skipSilence;
+
+        public final boolean voiceActivation;
+
+        public final int voicePreRollMillis;
+
+        public final int voiceHangMillis;
+
+        public final float playbackSpeed;
+
+        // resolved from recordingProfile, recordType and highQuality
+        public final RecordingProfile profile;
+
+        private Snapshot(Context context, SharedPreferences settings) {
+            recordingProfile = settings.getString(RECORDING_PROFILE, RecordingProfile.CUSTOM);
+            recordType = settings.getString(RECORD_TYPE,
+                    context.getString(R.string.prefDefault_recordType));
+            highQuality = settings.getBoolean(ENABLE_HIGH_QUALITY, true);
+            soundEffect = settings.getBoolean(ENABLE_SOUND_EFFECT, true);
+            adaptiveQuality = settings.getBoolean(ENABLE_ADAPTIVE_QUALITY, true);
+            segmentMinutes = Integer.parseInt(settings.getString(SEGMENT_MINUTES, "0"));
+            segmentMegabytes = Integer.parseInt(settings.getString(SEGMENT_MEGABYTES, "0"));
+            storageReservation = settings.getBoolean(ENABLE_STORAGE_RESERVATION, false);
+            compactCopy = settings.getBoolean(ENABLE_COMPACT_COPY, false);
+            highPass = settings.getBoolean(ENABLE_HIGH_PASS, true);
+            noiseGate = settings.getBoolean(ENABLE_NOISE_GATE, false);
+            automaticGain = settings.getBoolean(ENABLE_AUTOMATIC_GAIN, false);
+            limiter = settings.getBoolean(ENABLE_LIMITER, true);
+            skipSilence = settings.getBoolean(ENABLE_SKIP_SILENCE, false);
+            voiceActivation = settings.getBoolean(ENABLE_VOICE_ACTIVATION, false);
+            voicePreRollMillis = Integer.parseInt(settings.getString(VOICE_PRE_ROLL, "1000"));
+            voiceHangMillis = Integer.parseInt(settings.getString(VOICE_HANG_TIME, "2000"));
+            playbackSpeed = settings.getFloat(PLAYBACK_SPEED, 1.0f);
+            profile = RecordingProfile.resolve(recordingProfile, recordType, highQuality);
+        }
+    }
+
+    /**
+     * Called on the thread that changed a preference, with the snapshots
+     * before and after the change.
+     */
+    public interface OnSnapshotChangedListener {
+        public void onSnapshotChanged(Snapshot previous, Snapshot snapshot);
+    }
+
     @Override
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         addPreferencesFromResource(R.xml.preferences);
+
+        // the storage and CPU each profile costs
+        ListPreference profiles = (ListPreference) findPreference(RECORDING_PROFILE);
+        CharSequence[] entries = profiles.getEntries();
+        CharSequence[] values = profiles.getEntryValues();
+        for (int i = 0; i < entries.length; i++) {
+            RecordingProfile profile = RecordingProfile.get(values[i].toString());
+            if (profile == null) {
+                continue;
+            }
+            float megabytes = profile.bytesPerHour() / 1048576f;
+            float cpu = profile.cpuCost(this);
+            entries[i] = cpu < 0 ? getString(R.string.recording_profile_cost_unmeasured,
+                    entries[i], megabytes) : getString(R.string.recording_profile_cost,
+                    entries[i], megabytes, cpu);
+        }
+        profiles.setEntries(entries);
+        profiles.setOnPreferenceChangeListener(this);
+        updateProfileSummary(profiles, profiles.getValue());
+    }
+
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        updateProfileSummary((ListPreference) preference, (String) newValue);
+        return true;
+    }
+
+    private void updateProfileSummary(ListPreference profiles, String value) {
+        int index = profiles.findIndexOfValue(value);
+        if (index < 0 || RecordingProfile.CUSTOM.equals(value)) {
+            profiles.setSummary(R.string.pref_summary_recording_profile_custom);
+        } else {
+            profiles.setSummary(profiles.getEntries()[index]);
+        }
+    }
+
+    /**
+     * Returns the current preferences with a single volatile read.
+     */
+    public static Snapshot getSnapshot(Context context) {
+        Snapshot snapshot = sSnapshot;
+        return snapshot != null ? snapshot : createSnapshot(context);
+    }
+
+    private static synchronized Snapshot createSnapshot(Context context) {
+        if (sSnapshot == null) {
+            sContext = context.getApplicationContext();
+            SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(sContext);
+            settings.registerOnSharedPreferenceChangeListener(sPreferenceListener);
+            sSnapshot = new Snapshot(sContext, settings);
+        }
+        return sSnapshot;
+    }
+
+    public static synchronized void addSnapshotListener(OnSnapshotChangedListener listener) {
+        sListeners.add(listener);
+    }
+
+    public static synchronized void removeSnapshotListener(OnSnapshotChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    public static String getRecordingProfile(Context context) {
+        return getSnapshot(context).recordingProfile;
     }
 
     public static String getRecordType(Context context) {
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        return settings.getString(RECORD_TYPE, context.getString(R.string.prefDefault_recordType));
+        return getSnapshot(context).recordType;
     }
 
     public static boolean isHighQuality(Context context) {
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        return settings.getBoolean(ENABLE_HIGH_QUALITY, true);
+        return getSnapshot(context).highQuality;
     }
 
     public static boolean isEnabledSoundEffect(Context context) {
+        return getSnapshot(context).soundEffect;
+    }
+
+    public static boolean isAdaptiveQualityEnabled(Context context) {
+        return getSnapshot(context).adaptiveQuality;
+    }
+
+    public static int getSegmentMinutes(Context context) {
+        return getSnapshot(context).segmentMinutes;
+    }
+
+    public static int getSegmentMegabytes(Context context) {
+        return getSnapshot(context).segmentMegabytes;
+    }
+
+    public static boolean isStorageReservationEnabled(Context context) {
+        return getSnapshot(context).storageReservation;
+    }
+
+    /**
+     * Whether a recording made for another app is kept at full quality, with
+     * a compact copy of it returned to the app.
+     */
+    public static boolean isCompactCopyEnabled(Context context) {
+        return getSnapshot(context).compactCopy;
+    }
+
+    public static boolean isHighPassEnabled(Context context) {
+        return getSnapshot(context).highPass;
+    }
+
+    public static boolean isNoiseGateEnabled(Context context) {
+        return getSnapshot(context).noiseGate;
+    }
+
+    public static boolean isAutomaticGainEnabled(Context context) {
+        return getSnapshot(context).automaticGain;
+    }
+
+    public static boolean isLimiterEnabled(Context context) {
+        return getSnapshot(context).limiter;
+    }
+
+    public static boolean isSkipSilenceEnabled(Context context) {
+        return getSnapshot(context).skipSilence;
+    }
+
+    public static boolean isVoiceActivationEnabled(Context context) {
+        return getSnapshot(context).voiceActivation;
+    }
+
+    public static int getVoicePreRollMillis(Context context) {
+        return getSnapshot(context).voicePreRollMillis;
+    }
+
+    public static int getVoiceHangMillis(Context context) {
+        return getSnapshot(context).voiceHangMillis;
+    }
+
+    public static float getPlaybackSpeed(Context context) {
+        return getSnapshot(context).playbackSpeed;
+    }
+
+    public static void setPlaybackSpeed(Context context, float speed) {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        return settings.getBoolean(ENABLE_SOUND_EFFECT, true);
+        settings.edit().putFloat(PLAYBACK_SPEED, speed).commit();
     }
 }
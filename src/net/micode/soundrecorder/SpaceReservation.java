@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps storage for the next few minutes of a recording allocated in a hidden
+ * file next to it. MediaRecorder owns the output file, so the space cannot be
+ * preallocated in the file itself. Instead, whenever the recording has grown,
+ * the reserve is shrunk by the same amount, handing its blocks over to the
+ * recorder, and topped up again in chunks once it falls below half of the
+ * target. The reserve only takes space beyond the headroom the recording
+ * needs until the next update, and gives chunks back ahead of the recorder
+ * when other applications eat into that headroom. It keeps other
+ * applications from taking the space of the next minutes only while there
+ * is free space beside it; a card filled faster than between two updates
+ * still fails the recorder's writes.
+ */
+public class SpaceReservation {
+    private static final String TAG = "SpaceReservation";
+
+    private static final String RESERVE_SUFFIX = ".reserve";
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private final File mReserveFile;
+
+    private final long mTargetBytes;
+
+    private final long mBytesPerSecond;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private RandomAccessFile mReserve;
+
+    private FileChannel mChannel;
+
+    private ByteBuffer mZeros;
+
+    private volatile long mReservedBytes;
+
+    private long mLastRecordingSize;
+
+    // statistics of the zero-filling writes
+    private long mBytesWritten;
+
+    private long mWriteNanos;
+
+    /**
+     * @param recordingFile the file MediaRecorder writes to
+     * @param bitRate the bit rate of the recording in bits/sec
+     * @param minutes how many minutes of recording to keep reserved
+     */
+    public SpaceReservation(File recordingFile, int bitRate, int minutes) {
+        mReserveFile = RecordingFiles.sidecar(recordingFile, RESERVE_SUFFIX);
+        mBytesPerSecond = bitRate / 8;
+        mTargetBytes = mBytesPerSecond * minutes * 60;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public void start() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    mReserve = new RandomAccessFile(mReserveFile, "rw");
+                    mChannel = mReserve.getChannel();
+                    mZeros = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                    mLastRecordingSize = 0;
+                    fill(CHUNK_SIZE);
+                } catch (IOException e) {
+                    Log.w(TAG, "unable to reserve space: " + e);
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands the space the recording has grown into over from the reserve, and
+     * the space it will grow into before the next update if the storage
+     * outside the reserve doesn't hold it.
+     *
+     * @param recordingSize the current size of the recording in bytes
+     * @param intervalMillis the time until the next update
+     */
+    public void update(final long recordingSize, final long intervalMillis) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mChannel == null) {
+                    return;
+                }
+                try {
+                    long grown = recordingSize - mLastRecordingSize;
+                    mLastRecordingSize = recordingSize;
+                    if (grown > 0) {
+                        shrink(mReservedBytes - grown);
+                    }
+                    long headroom = Math.max(CHUNK_SIZE, mBytesPerSecond * intervalMillis / 1000);
+                    long free = freeBytes();
+                    if (free < headroom) {
+                        // whole chunks, the file system frees whole blocks
+                        long missing = (headroom - free + CHUNK_SIZE - 1) / CHUNK_SIZE
+                                * CHUNK_SIZE;
+                        shrink(mReservedBytes - missing);
+                        Log.d(TAG, "released " + (missing / 1024) + " KB ahead of the recording");
+                    } else if (mReservedBytes < mTargetBytes / 2) {
+                        fill(headroom);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "unable to update reserved space: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives the reserved space back and stops the reservation thread.
+     */
+    public void release() {
+        mHandler.post(new Runnable() {
+            public void run() {
+                close();
+                if (mBytesWritten > 0 && mWriteNanos > 0) {
+                    Log.d(TAG, "reserved " + (mBytesWritten / 1024) + " KB at "
+                            + (mBytesWritten * 1000000000L / mWriteNanos / 1024) + " KB/s");
+                }
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Deletes the reserve a killed process left next to a recording.
+     */
+    public static void discard(File recordingFile) {
+        RecordingFiles.sidecar(recordingFile, RESERVE_SUFFIX).delete();
+    }
+
+    /**
+     * Returns the number of bytes currently held for the recording.
+     */
+    public long reservedBytes() {
+        return mReservedBytes;
+    }
+
+    private void shrink(long reserved) throws IOException {
+        reserved = Math.max(0, reserved);
+        mReserve.setLength(reserved);
+        mReservedBytes = reserved;
+    }
+
+    private long freeBytes() {
+        StatFs fs = new StatFs(mReserveFile.getParent());
+        return (long) fs.getAvailableBlocks() * fs.getBlockSize();
+    }
+
+    /*
+     * Tops the reserve up to its target, leaving at least headroom bytes free
+     * for the recording.
+     */
+    private void fill(long headroom) throws IOException {
+        long start = System.nanoTime();
+        long filledFrom = mReservedBytes;
+        long position = mReservedBytes;
+        long target = Math.min(mTargetBytes, position + freeBytes() - headroom);
+        try {
+            // write real zeros, extending the length alone produces a sparse
+            // file on most file systems and reserves nothing
+            while (position < target) {
+                mZeros.clear();
+                mZeros.limit((int) Math.min(CHUNK_SIZE, target - position));
+                while (mZeros.hasRemaining()) {
+                    position += mChannel.write(mZeros, position);
+                }
+                mReservedBytes = position;
+            }
+            mChannel.force(false);
+        } catch (IOException e) {
+            // storage is full, keep what we got
+            mReserve.setLength(mReservedBytes);
+        }
+        mBytesWritten += mReservedBytes - filledFrom;
+        mWriteNanos += System.nanoTime() - start;
+    }
+
+    private void close() {
+        try {
+            if (mReserve != null) {
+                mReserve.close();
+            }
+        } catch (IOException e) {
+        }
+        mReserve = null;
+        mChannel = null;
+        mReservedBytes = 0;
+        mReserveFile.delete();
+    }
+}
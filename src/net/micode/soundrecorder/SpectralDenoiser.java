@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes stationary background noise from a 16 bit mono WAV file by spectral
+ * subtraction. The noise spectrum is tracked with minimum statistics, frames
+ * are windowed with a square root Hann window and put back together by
+ * overlap-add. Long files are cut into chunks processed in parallel, each
+ * worker streams its chunk with a fixed amount of memory and writes its own
+ * region of the output. A worker first runs its noise tracker over the audio
+ * preceding its chunk, so the seams do not stand out.
+ */
+public class SpectralDenoiser {
+    private static final String TAG = "SpectralDenoiser";
+
+    // longest frame, the frame size is the largest power of two below
+    private static final float FRAME_SECONDS = 0.04f;
+
+    // audio the noise tracker sees before its first output
+    private static final float WARMUP_SECONDS = 2;
+
+    // minimum statistics window, split in sub-windows
+    private static final float NOISE_WINDOW_SECONDS = 1.5f;
+
+    private static final int SUB_WINDOWS = 4;
+
+    // compensates the minimum being lower than the mean noise power
+    private static final float NOISE_BIAS = 1.5f;
+
+    private static final float POWER_SMOOTHING = 0.85f;
+
+    private static final float OVER_SUBTRACTION = 2;
+
+    // lowest gain, -20 dB, keeps some noise to avoid musical tones
+    private static final float GAIN_FLOOR = 0.1f;
+
+    private static final float GAIN_SMOOTHING = 0.5f;
+
+    // chunks shorter than this are not worth a thread of their own
+    private static final int MIN_CHUNK_SECONDS = 10;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File mSource;
+
+    private final int mSampleRate;
+
+    private final long mSamples;
+
+    private final int mFrameSize;
+
+    private final int mHop;
+
+    private final float[] mWindow;
+
+    private final AtomicLong mDone = new AtomicLong();
+
+    private ProgressListener mProgressListener;
+
+    /**
+     * @throws IOException if the source can't be read or is not a 16 bit mono
+     *             WAV file
+     */
+    public SpectralDenoiser(File source) throws IOException {
+        mSource = source;
+        WavReader reader = new WavReader(source);
+        mSampleRate = reader.getSampleRate();
+        mSamples = reader.getSampleCount();
+        reader.close();
+
+        int frameSize = Integer.highestOneBit((int) (mSampleRate * FRAME_SECONDS));
+        mFrameSize = Math.max(frameSize, 64);
+        mHop = mFrameSize / 2;
+        mWindow = new float[mFrameSize];
+        for (int i = 0; i < mFrameSize; i++) {
+            mWindow[i] = (float) Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * i / mFrameSize));
+        }
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Returns the duration of the source in milliseconds.
+     */
+    public long getDuration() {
+        return mSamples * 1000 / mSampleRate;
+    }
+
+    /**
+     * Writes the denoised audio into the target file, using up to the given
+     * number of threads.
+     */
+    public void process(File target, int threads) throws IOException {
+        long started = SystemClock.elapsedRealtime();
+
+        byte[] header = new byte[WavWriter.LARGE_HEADER_SIZE];
+        WavWriter.writeLargeHeader(header, WavWriter.FORMAT_PCM, mSampleRate, 1, mSamples * 2);
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(WavWriter.LARGE_HEADER_SIZE + mSamples * 2);
+            raf.write(header);
+        } finally {
+            raf.close();
+        }
+
+        long minChunk = (long) MIN_CHUNK_SECONDS * mSampleRate;
+        int chunks = (int) Math.max(1, Math.min(threads, mSamples / minChunk));
+        // chunk boundaries fall on frame boundaries
+        long chunkSize = (mSamples / chunks + mHop - 1) / mHop * mHop;
+
+        mDone.set(0);
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < chunks; i++) {
+                long start = i * chunkSize;
+                long end = i == chunks - 1 ? mSamples : Math.min(mSamples, start + chunkSize);
+                results.add(executor.submit(new Chunk(target, start, end)));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - started);
+        long audio = mSamples * 1000 / mSampleRate;
+        float factor = (float) audio / elapsed;
+        Log.d(TAG, "denoised " + audio + " ms of audio in " + elapsed + " ms on " + chunks
+                + " of " + threads + " threads, " + factor + "x real time, " + (factor / chunks)
+                + "x per thread");
+    }
+
+    /**
+     * Denoises the samples from start to end. The noise tracker is trained on
+     * the audio before start, or on the first seconds for the first chunk.
+     */
+    private class Chunk implements Callable<Void> {
+        private final File mTarget;
+
+        private final long mStart;
+
+        private final long mEnd;
+
+        private final Fft mFft = new Fft(mFrameSize);
+
+        private final int mBins = mFrameSize / 2 + 1;
+
+        private final float[] mRe = new float[mFrameSize];
+
+        private final float[] mIm = new float[mFrameSize];
+
+        private final float[] mInput = new float[mFrameSize];
+
+        private final float[] mOutput = new float[mFrameSize];
+
+        private final float[] mPower = new float[mBins];
+
+        private final float[] mGain = new float[mBins];
+
+        // minimum statistics of the smoothed power
+        private final float[] mSubMin = new float[mBins];
+
+        private final float[][] mMins = new float[SUB_WINDOWS][mBins];
+
+        private final float[] mWindowMin = new float[mBins];
+
+        private final int mSubWindowFrames;
+
+        private int mFrames;
+
+        private final byte[] mWriteBuffer = new byte[WRITE_BUFFER_SIZE];
+
+        private int mWritten;
+
+        private WavReader mIn;
+
+        Chunk(File target, long start, long end) {
+            mTarget = target;
+            mStart = start;
+            mEnd = end;
+            float hopSeconds = (float) mHop / mSampleRate;
+            mSubWindowFrames = Math.max(1,
+                    Math.round(NOISE_WINDOW_SECONDS / SUB_WINDOWS / hopSeconds));
+        }
+
+        public Void call() throws IOException {
+            // lowered further by the queue while recording
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Arrays.fill(mSubMin, Float.MAX_VALUE);
+            Arrays.fill(mWindowMin, Float.MAX_VALUE);
+            Arrays.fill(mGain, 1);
+
+            long warmup = (long) (WARMUP_SECONDS * mSampleRate) / mHop * mHop;
+            long first = mStart - mHop;
+            long trainFrom = mStart == 0 ? 0 : Math.max(0, first - warmup);
+            long trainTo = mStart == 0 ? Math.min(warmup, mSamples) : first;
+
+            mIn = new WavReader(mSource);
+            RandomAccessFile out = new RandomAccessFile(mTarget, "rw");
+            try {
+                // analysis only, nothing is written
+                seek(trainFrom);
+                for (long p = trainFrom; p < trainTo; p += mHop) {
+                    nextFrame();
+                    analyze();
+                }
+
+                out.seek(WavWriter.LARGE_HEADER_SIZE + mStart * 2);
+                seek(first);
+                for (long p = first; p < mEnd; p += mHop) {
+                    nextFrame();
+                    analyze();
+                    synthesize();
+
+                    // the first hop is complete, no later frame overlaps it
+                    long from = Math.max(p, mStart);
+                    long to = Math.min(p + mHop, mEnd);
+                    for (long s = from; s < to; s++) {
+                        write(out, mOutput[(int) (s - p)]);
+                    }
+                    System.arraycopy(mOutput, mHop, mOutput, 0, mHop);
+                    Arrays.fill(mOutput, mHop, mFrameSize, 0);
+                }
+                flush(out);
+            } finally {
+                out.close();
+                mIn.close();
+            }
+            return null;
+        }
+
+        /**
+         * Transforms the windowed input, updates the noise estimate and the
+         * gain of every bin.
+         */
+        private void analyze() {
+            for (int i = 0; i < mFrameSize; i++) {
+                mRe[i] = mInput[i] * mWindow[i];
+                mIm[i] = 0;
+            }
+            mFft.transform(mRe, mIm, false);
+
+            boolean first = mFrames == 0;
+            for (int k = 0; k < mBins; k++) {
+                float power = mRe[k] * mRe[k] + mIm[k] * mIm[k];
+                mPower[k] = first ? power
+                        : POWER_SMOOTHING * mPower[k] + (1 - POWER_SMOOTHING) * power;
+                mSubMin[k] = Math.min(mSubMin[k], mPower[k]);
+
+                float noise = NOISE_BIAS * Math.min(mSubMin[k], mWindowMin[k]);
+                float gain = power > 0 ? 1 - OVER_SUBTRACTION * noise / power : 0;
+                gain = (float) Math.sqrt(Math.max(gain, GAIN_FLOOR * GAIN_FLOOR));
+                mGain[k] = GAIN_SMOOTHING * mGain[k] + (1 - GAIN_SMOOTHING) * gain;
+            }
+
+            mFrames++;
+            if (mFrames % mSubWindowFrames == 0) {
+                int slot = (mFrames / mSubWindowFrames) % SUB_WINDOWS;
+                System.arraycopy(mSubMin, 0, mMins[slot], 0, mBins);
+                Arrays.fill(mSubMin, Float.MAX_VALUE);
+                int windows = Math.min(SUB_WINDOWS, mFrames / mSubWindowFrames);
+                for (int k = 0; k < mBins; k++) {
+                    float min = Float.MAX_VALUE;
+                    for (int w = 0; w < windows; w++) {
+                        min = Math.min(min, mMins[w][k]);
+                    }
+                    mWindowMin[k] = min;
+                }
+            }
+        }
+
+        /**
+         * Applies the gains to the spectrum of the last analyzed frame and adds
+         * it to the output.
+         */
+        private void synthesize() {
+            int n = mFrameSize;
+            mRe[0] *= mGain[0];
+            mIm[0] *= mGain[0];
+            for (int k = 1; k < mBins - 1; k++) {
+                float gain = mGain[k];
+                mRe[k] *= gain;
+                mIm[k] *= gain;
+                mRe[n - k] *= gain;
+                mIm[n - k] *= gain;
+            }
+            mRe[n / 2] *= mGain[n / 2];
+            mIm[n / 2] *= mGain[n / 2];
+
+            mFft.transform(mRe, mIm, true);
+            for (int i = 0; i < n; i++) {
+                mOutput[i] += mRe[i] * mWindow[i];
+            }
+        }
+
+        /**
+         * Positions the input at the first frame to read.
+         */
+        private void seek(long position) throws IOException {
+            mIn.seek(position);
+            mIn.read(mInput, mHop, mHop);
+        }
+
+        /**
+         * Moves the input on by a hop.
+         */
+        private void nextFrame() throws IOException {
+            System.arraycopy(mInput, mHop, mInput, 0, mHop);
+            mIn.read(mInput, mHop, mHop);
+        }
+
+        private void write(RandomAccessFile out, float value) throws IOException {
+            float x = value * 32768f;
+            int sample = x >= 32767 ? 32767 : x <= -32768 ? -32768 : (int) x;
+            mWriteBuffer[mWritten++] = (byte) sample;
+            mWriteBuffer[mWritten++] = (byte) (sample >> 8);
+            if (mWritten == WRITE_BUFFER_SIZE) {
+                flush(out);
+            }
+        }
+
+        private void flush(RandomAccessFile out) throws IOException {
+            if (mWritten == 0) {
+                return;
+            }
+            out.write(mWriteBuffer, 0, mWritten);
+            long done = mDone.addAndGet(mWritten / 2);
+            mWritten = 0;
+            ProgressListener listener = mProgressListener;
+            if (listener != null) {
+                listener.onProgress(done, mSamples);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Single poller of the remaining recording time, shared by RecorderService and
+ * the SoundRecorder activity. The polling interval follows the estimate: when
+ * hours are left the storage is checked rarely, close to the limit it is
+ * checked every half second.
+ */
+public class StorageMonitor {
+    private static final String TAG = "StorageMonitor";
+
+    private static final long MIN_POLL_INTERVAL = 500;
+
+    private static final long MAX_POLL_INTERVAL = 30000;
+
+    // while space is reserved, which is handed back ahead of the recording
+    private static final long MAX_RESERVED_POLL_INTERVAL = 5000;
+
+    // poll about this many times before the estimate would reach zero
+    private static final long POLLS_PER_REMAINING_TIME = 100;
+
+    public interface OnRemainingTimeChangedListener {
+        /**
+         * @param remaining remaining recording time in seconds
+         * @param lowerLimit one of the RemainingTimeCalculator limits
+         */
+        public void onRemainingTimeChanged(long remaining, int lowerLimit);
+    }
+
+    private static StorageMonitor sInstance;
+
+    private final RemainingTimeCalculator mCalculator = new RemainingTimeCalculator();
+
+    private final ArrayList<OnRemainingTimeChangedListener> mListeners = new ArrayList<OnRemainingTimeChangedListener>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mMonitoring = false;
+
+    private long mRemainingTime = -1;
+
+    private long mMonitorStartTime;
+
+    private long mSyscallsAtStart;
+
+    // stat calls issued for the space reservation
+    private long mReservationSyscalls;
+
+    private File mRecordingFile;
+
+    // size of the finished segments of the recording
+    private long mFinishedSegmentsSize;
+
+    private SpaceReservation mReservation;
+
+    private final Runnable mPollRemainingTime = new Runnable() {
+        public void run() {
+            if (mMonitoring) {
+                poll();
+            }
+        }
+    };
+
+    private StorageMonitor() {
+    }
+
+    public static synchronized StorageMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new StorageMonitor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts watching the storage for a new recording.
+     *
+     * @param file the file being recorded
+     * @param bitRate the bit rate of the recording in bits/sec
+     * @param maxBytes the maximum size of the file, or -1 for no limit
+     * @param reserveMinutes minutes of recording to keep space reserved for,
+     *            or 0 to not reserve any space
+     */
+    public void start(File file, int bitRate, long maxBytes, int reserveMinutes) {
+        mHandler.removeCallbacks(mPollRemainingTime);
+        releaseReservation();
+        mRecordingFile = file;
+        mFinishedSegmentsSize = 0;
+        if (reserveMinutes > 0) {
+            mReservation = new SpaceReservation(file, bitRate, reserveMinutes);
+            mReservation.start();
+        }
+        mCalculator.reset();
+        mCalculator.setBitRate(bitRate);
+        mCalculator.setFileSizeLimit(maxBytes != -1 ? file : null, maxBytes);
+        mMonitoring = true;
+        mRemainingTime = -1;
+        mMonitorStartTime = System.currentTimeMillis();
+        mSyscallsAtStart = mCalculator.syscallCount();
+        mReservationSyscalls = 0;
+        poll();
+    }
+
+    /**
+     * Applies the size limit to a copy written along with the recording
+     * instead of the recording itself.
+     *
+     * @param bitRate the bit rate of the copy in bits/sec
+     */
+    public void limitCopy(File copy, int bitRate, long maxBytes) {
+        mCalculator.setFileSizeLimit(copy, maxBytes, bitRate);
+        requestUpdate();
+    }
+
+    public void stop() {
+        if (!mMonitoring) {
+            return;
+        }
+        mMonitoring = false;
+        mHandler.removeCallbacks(mPollRemainingTime);
+        releaseReservation();
+
+        long minutes = Math.max(1, (System.currentTimeMillis() - mMonitorStartTime) / 60000);
+        long syscalls = mCalculator.syscallCount() - mSyscallsAtStart + mReservationSyscalls;
+        Log.d(TAG, "storage polling issued " + syscalls + " syscalls, " + (syscalls / minutes)
+                + " per minute of recording");
+    }
+
+    /**
+     * Continues monitoring a recording that moved on to a new segment file,
+     * possibly with a different bit rate. The new estimate is published with
+     * the next scheduled poll.
+     */
+    public void startSegment(File file, int bitRate) {
+        mFinishedSegmentsSize += mRecordingFile.length();
+        mRecordingFile = file;
+        mCalculator.reset();
+        mCalculator.setBitRate(bitRate);
+    }
+
+    /**
+     * Polls immediately instead of waiting for the next scheduled check.
+     */
+    public void requestUpdate() {
+        if (mMonitoring) {
+            mHandler.removeCallbacks(mPollRemainingTime);
+            poll();
+        }
+    }
+
+    public boolean isMonitoring() {
+        return mMonitoring;
+    }
+
+    /**
+     * Returns the latest estimate in seconds, or -1 if nothing is recorded.
+     */
+    public long remainingTime() {
+        return mMonitoring ? mRemainingTime : -1;
+    }
+
+    public int currentLowerLimit() {
+        return mCalculator.currentLowerLimit();
+    }
+
+    public boolean diskSpaceAvailable() {
+        return mCalculator.diskSpaceAvailable();
+    }
+
+    public void addListener(OnRemainingTimeChangedListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(OnRemainingTimeChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void poll() {
+        if (mReservation != null) {
+            mCalculator.setReservedBytes(mReservation.reservedBytes());
+        }
+        mRemainingTime = mCalculator.timeRemaining();
+        long interval = pollInterval(mRemainingTime);
+        if (mReservation != null) {
+            interval = Math.min(interval, MAX_RESERVED_POLL_INTERVAL);
+            mReservation.update(mFinishedSegmentsSize + mRecordingFile.length(), interval);
+            // stat of the recording and statfs of the reservation thread
+            mReservationSyscalls += 2;
+        }
+        int limit = mCalculator.currentLowerLimit();
+
+        OnRemainingTimeChangedListener[] listeners = mListeners
+                .toArray(new OnRemainingTimeChangedListener[mListeners.size()]);
+        for (OnRemainingTimeChangedListener listener : listeners) {
+            listener.onRemainingTimeChanged(mRemainingTime, limit);
+        }
+
+        if (mMonitoring) {
+            mHandler.postDelayed(mPollRemainingTime, interval);
+        }
+    }
+
+    private void releaseReservation() {
+        if (mReservation != null) {
+            mReservation.release();
+            mReservation = null;
+        }
+    }
+
+    private static long pollInterval(long remaining) {
+        long interval = remaining * 1000 / POLLS_PER_REMAINING_TIME;
+        return Math.max(MIN_POLL_INTERVAL, Math.min(MAX_POLL_INTERVAL, interval));
+    }
+}
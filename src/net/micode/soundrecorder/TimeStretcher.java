@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+/**
+ * Changes the speed of mono audio without changing its pitch, using WSOLA.
+ * Frames of 20 ms are taken from the input at the speed and overlap-added at
+ * a fixed hop of 10 ms. Each frame is moved by up to 10 ms to where it best
+ * continues the frame before, which keeps the pitch periods of a voice
+ * aligned. The search is done coarse and then fine on every other sample,
+ * so the cost per hop doesn't depend on the speed.
+ *
+ * The stretcher is fed input until needed() returns 0, then process()
+ * produces one hop of output. All buffers are allocated up front.
+ */
+public class TimeStretcher {
+    public static final float MIN_SPEED = 0.5f;
+
+    public static final float MAX_SPEED = 3.0f;
+
+    private static final float HOP_SECONDS = 0.01f;
+
+    private static final float SEARCH_SECONDS = 0.01f;
+
+    // coarse search step at 11025 Hz, scaled with the rate
+    private static final int COARSE_RATE = 11025;
+
+    private final int mHop;
+
+    private final int mSearch;
+
+    private final int mStep;
+
+    private final float[] mWindow;
+
+    private final float[] mOverlap;
+
+    private final float[] mInput;
+
+    // absolute position of mInput[0] and the samples held
+    private long mBase;
+
+    private int mLength;
+
+    // position the next frame is taken around, in samples
+    private double mTarget;
+
+    // start of the frame taken last
+    private long mPrevious;
+
+    private volatile float mSpeed = 1.0f;
+
+    public TimeStretcher(int sampleRate) {
+        mHop = Math.max(16, (int) (sampleRate * HOP_SECONDS));
+        mSearch = (int) (sampleRate * SEARCH_SECONDS);
+        mStep = Math.max(1, sampleRate / COARSE_RATE);
+        int frame = mHop * 2;
+        mWindow = new float[frame];
+        for (int i = 0; i < frame; i++) {
+            // periodic Hann, halves that overlap by a hop sum to one
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / frame));
+        }
+        mOverlap = new float[mHop];
+        mInput = new float[(int) Math.ceil(MAX_SPEED * mHop) + mSearch * 2 + frame + mHop];
+        reset(0);
+    }
+
+    /**
+     * Sets the speed, between MIN_SPEED and MAX_SPEED. May be called from
+     * any thread, the next hop uses the new speed.
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Returns the number of output samples process() produces.
+     */
+    public int hop() {
+        return mHop;
+    }
+
+    /**
+     * Drops all input and output. The next input sample added is at the
+     * given position, output starts with a fade in from it.
+     */
+    public void reset(long position) {
+        mBase = position;
+        mLength = 0;
+        mTarget = position;
+        mPrevious = position - mHop;
+        for (int i = 0; i < mHop; i++) {
+            mOverlap[i] = 0;
+        }
+    }
+
+    /**
+     * Returns how many more input samples the next hop needs.
+     */
+    public int needed() {
+        long target = Math.round(mTarget);
+        long end = Math.max(target + mSearch, mPrevious + mHop) + mHop * 2;
+        return (int) Math.max(0, end - (mBase + mLength));
+    }
+
+    /**
+     * Adds input, at most needed() samples.
+     */
+    public void add(float[] samples, int offset, int count) {
+        System.arraycopy(samples, offset, mInput, mLength, count);
+        mLength += count;
+    }
+
+    /**
+     * Produces one hop of output.
+     *
+     * @return the input position the output starts at
+     */
+    public long process(float[] out) {
+        long target = Math.round(mTarget);
+        long natural = mPrevious + mHop;
+        long chosen = target;
+        if (natural != target) {
+            chosen = search(target, natural);
+        }
+
+        int frame = (int) (chosen - mBase);
+        for (int i = 0; i < mHop; i++) {
+            out[i] = mOverlap[i] + mInput[frame + i] * mWindow[i];
+            mOverlap[i] = mInput[frame + mHop + i] * mWindow[mHop + i];
+        }
+
+        mPrevious = chosen;
+        mTarget += mSpeed * mHop;
+        discard(Math.min(Math.round(mTarget) - mSearch, chosen + mHop));
+        return target;
+    }
+
+    /*
+     * Finds the frame start near the target whose first half best matches
+     * the natural continuation of the frame before.
+     */
+    private long search(long target, long natural) {
+        long low = Math.max(mBase, target - mSearch);
+        long high = target + mSearch;
+        int reference = (int) (natural - mBase);
+
+        long best = target;
+        float bestScore = -Float.MAX_VALUE;
+        for (long start = low; start <= high; start += mStep) {
+            float score = correlate((int) (start - mBase), reference);
+            if (score > bestScore) {
+                bestScore = score;
+                best = start;
+            }
+        }
+        long coarse = best;
+        for (long start = Math.max(low, coarse - mStep + 1); start < coarse + mStep
+                && start <= high; start++) {
+            if (start == coarse) {
+                continue;
+            }
+            float score = correlate((int) (start - mBase), reference);
+            if (score > bestScore) {
+                bestScore = score;
+                best = start;
+            }
+        }
+        return best;
+    }
+
+    private float correlate(int candidate, int reference) {
+        float sum = 0;
+        for (int i = 0; i < mHop; i += 2) {
+            sum += mInput[candidate + i] * mInput[reference + i];
+        }
+        return sum;
+    }
+
+    private void discard(long position) {
+        int count = (int) Math.min(mLength, Math.max(0, position - mBase));
+        if (count > 0) {
+            System.arraycopy(mInput, count, mInput, 0, mLength - count);
+            mLength -= count;
+            mBase += count;
+        }
+    }
+}
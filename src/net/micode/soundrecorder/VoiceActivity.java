@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The voiced intervals of a recording, in milliseconds, found from the RMS
+ * levels of its peak index or, without one, of its WAV samples. Silence is
+ * judged against the noise floor of the recording, so the same threshold
+ * works for quiet rooms and for noisy ones. Only gaps long enough to be worth
+ * skipping separate the intervals, and each interval keeps some of the
+ * silence around it so that skipping never clips a word.
+ *
+ * The intervals are cached in a sidecar stamped with the size and the
+ * modification time of the recording.
+ */
+public class VoiceActivity {
+    private static final String TAG = "VoiceActivity";
+
+    private static final String VOICED_SUFFIX = ".voiced";
+
+    private static final int MAGIC = 0x53525641; // "SRVA"
+
+    private static final int VERSION = 1;
+
+    // shortest gap that is skipped, after the padding is taken off
+    private static final int MIN_SILENCE_MILLIS = 1000;
+
+    // silence kept before and after every interval
+    private static final int PADDING_MILLIS = 250;
+
+    // shorter bursts are clicks rather than speech
+    private static final int MIN_VOICED_MILLIS = 60;
+
+    // the noise floor is this percentile of the levels
+    private static final int NOISE_PERCENTILE = 20;
+
+    // lowest threshold, about -42 dBFS in the units of PeakIndex
+    private static final int MIN_THRESHOLD = 2;
+
+    private final int[] mStarts;
+
+    private final int[] mEnds;
+
+    // voiced time before each interval
+    private final long[] mPlayedBefore;
+
+    private final long mDuration;
+
+    private VoiceActivity(int[] starts, int[] ends, long duration) {
+        mStarts = starts;
+        mEnds = ends;
+        mDuration = duration;
+        mPlayedBefore = new long[starts.length];
+        for (int i = 1; i < starts.length; i++) {
+            mPlayedBefore[i] = mPlayedBefore[i - 1] + ends[i - 1] - starts[i - 1];
+        }
+    }
+
+    /**
+     * Returns the voiced intervals of a recording, analyzing it if they are
+     * not cached yet. May take a while for a long WAV file without a peak
+     * index, don't call it on the UI thread.
+     *
+     * @return the intervals, or null if the recording can't be analyzed
+     */
+    public static VoiceActivity load(File recording) {
+        File file = RecordingFiles.sidecar(recording, VOICED_SUFFIX);
+        VoiceActivity voice = read(file, recording);
+        if (voice != null) {
+            return voice;
+        }
+
+        long started = SystemClock.elapsedRealtime();
+        PeakIndex index = PeakIndex.open(recording);
+        if (index != null) {
+            voice = analyze(index);
+        } else if (recording.getName().endsWith(".wav")) {
+            try {
+                voice = analyze(recording);
+            } catch (IOException e) {
+                Log.w(TAG, "unable to analyze " + recording + ": " + e);
+            }
+        }
+        if (voice == null) {
+            return null;
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - started);
+        Log.d(TAG, recording.getName() + ": " + voice.count() + " voiced intervals, "
+                + voice.mDuration + " ms analyzed in " + elapsed + " ms, "
+                + (voice.mDuration / elapsed) + "x real time");
+        try {
+            voice.write(file, recording);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to write " + file + ": " + e);
+        }
+        return voice;
+    }
+
+    private static VoiceActivity analyze(PeakIndex index) {
+        int count = index.count(0);
+        byte[] levels = new byte[count];
+        for (int i = 0; i < count; i++) {
+            levels[i] = (byte) index.rms(0, i);
+        }
+        return analyze(levels, count, (int) index.bucketMillis(0));
+    }
+
+    /**
+     * Computes the RMS levels of a WAV file in buckets like those of the peak
+     * index.
+     */
+    private static VoiceActivity analyze(File wav) throws IOException {
+        WavReader reader = new WavReader(wav);
+        try {
+            int bucketSize = reader.getSampleRate() * PeakIndex.BUCKET_MILLIS / 1000;
+            long samples = reader.getSampleCount();
+            int count = (int) (samples / bucketSize);
+            byte[] levels = new byte[count];
+            float[] block = new float[bucketSize];
+            for (int i = 0; i < count; i++) {
+                reader.read(block, 0, bucketSize);
+                float squares = 0;
+                for (int j = 0; j < bucketSize; j++) {
+                    squares += block[j] * block[j];
+                }
+                int rms = (int) (Math.sqrt(squares / bucketSize) * 32768);
+                levels[i] = (byte) Math.min(255, rms >> 7);
+            }
+            return analyze(levels, count, PeakIndex.BUCKET_MILLIS);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static VoiceActivity analyze(byte[] levels, int count, int bucketMillis) {
+        int[] histogram = new int[256];
+        for (int i = 0; i < count; i++) {
+            histogram[levels[i] & 0xff]++;
+        }
+        int floor = 0;
+        for (int seen = 0; floor < 255; floor++) {
+            seen += histogram[floor];
+            if (seen * 100L >= count * (long) NOISE_PERCENTILE) {
+                break;
+            }
+        }
+        int threshold = Math.max(MIN_THRESHOLD, floor * 2);
+
+        int minVoiced = Math.max(1, MIN_VOICED_MILLIS / bucketMillis);
+        int padding = PADDING_MILLIS / bucketMillis;
+        int minGap = MIN_SILENCE_MILLIS / bucketMillis;
+
+        // runs of voiced buckets, padded and merged across short gaps
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int intervals = 0;
+        int run = -1;
+        for (int i = 0; i <= count; i++) {
+            boolean voiced = i < count && (levels[i] & 0xff) >= threshold;
+            if (voiced && run < 0) {
+                run = i;
+            } else if (!voiced && run >= 0) {
+                if (i - run >= minVoiced) {
+                    int start = Math.max(0, run - padding);
+                    int end = Math.min(count, i + padding);
+                    if (intervals > 0 && start - ends[intervals - 1] < minGap) {
+                        ends[intervals - 1] = end;
+                    } else {
+                        if (intervals == starts.length) {
+                            starts = grow(starts);
+                            ends = grow(ends);
+                        }
+                        starts[intervals] = start;
+                        ends[intervals] = end;
+                        intervals++;
+                    }
+                }
+                run = -1;
+            }
+        }
+
+        int[] startMillis = new int[intervals];
+        int[] endMillis = new int[intervals];
+        for (int i = 0; i < intervals; i++) {
+            startMillis[i] = starts[i] * bucketMillis;
+            endMillis[i] = ends[i] * bucketMillis;
+        }
+        return new VoiceActivity(startMillis, endMillis, (long) count * bucketMillis);
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static VoiceActivity read(File file, File recording) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readShort() != VERSION
+                    || in.readLong() != recording.length()
+                    || in.readLong() != recording.lastModified()) {
+                return null;
+            }
+            long duration = in.readLong();
+            int count = in.readInt();
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = in.readInt();
+                ends[i] = in.readInt();
+            }
+            return new VoiceActivity(starts, ends, duration);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void write(File file, File recording) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(recording.length());
+            out.writeLong(recording.lastModified());
+            out.writeLong(mDuration);
+            out.writeInt(mStarts.length);
+            for (int i = 0; i < mStarts.length; i++) {
+                out.writeInt(mStarts[i]);
+                out.writeInt(mEnds[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("unable to write " + file);
+        }
+    }
+
+    public int count() {
+        return mStarts.length;
+    }
+
+    public long start(int interval) {
+        return mStarts[interval];
+    }
+
+    public long end(int interval) {
+        return mEnds[interval];
+    }
+
+    /**
+     * Returns the interval containing the position, or the first one after
+     * it. Returns count() if the position is past the last interval.
+     */
+    public int intervalAt(long position) {
+        int low = 0;
+        int high = mEnds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mEnds[middle] <= position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Maps a position in the recording to the time line without the
+     * skipped gaps. A position within a gap maps to the end of the interval
+     * before it.
+     */
+    public long toPlayback(long position) {
+        if (mStarts.length == 0) {
+            return position;
+        }
+        // the last interval starting before the position
+        int low = 0;
+        int high = mStarts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mStarts[middle] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int interval = low - 1;
+        if (interval < 0) {
+            return 0;
+        }
+        return mPlayedBefore[interval] + Math.min(position, mEnds[interval])
+                - mStarts[interval];
+    }
+
+    /**
+     * Maps a position on the time line without gaps back to the recording.
+     */
+    public long toRecording(long playback) {
+        if (mStarts.length == 0) {
+            return playback;
+        }
+        // the last interval starting at or before the position
+        int low = 0;
+        int high = mStarts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mPlayedBefore[middle] <= playback) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int interval = Math.max(0, low - 1);
+        return Math.min(mStarts[interval] + playback - mPlayedBefore[interval],
+                mEnds[interval]);
+    }
+
+    /**
+     * Returns the duration without the skipped gaps.
+     */
+    public long playbackDuration() {
+        int last = mStarts.length - 1;
+        return last < 0 ? mDuration : mPlayedBefore[last] + mEnds[last] - mStarts[last];
+    }
+}
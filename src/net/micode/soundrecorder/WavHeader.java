@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The format and the position of the samples of a RIFF or RF64 WAV file.
+ * The chunks before the data are walked, so the JUNK chunk WavWriter
+ * reserves for a ds64 chunk and the chunks of other writers are skipped.
+ */
+public class WavHeader {
+    // chunks walked before giving up on finding the data
+    private static final int MAX_CHUNKS = 16;
+
+    public int format;
+
+    public int channels;
+
+    public int sampleRate;
+
+    public int bitsPerSample;
+
+    public long dataOffset;
+
+    // from the header if it is filled in, else up to the end of the file
+    public long dataSize;
+
+    public boolean rf64;
+
+    private WavHeader() {
+    }
+
+    public int frameSize() {
+        return channels * bitsPerSample / 8;
+    }
+
+    /**
+     * Reads the header of a WAV file.
+     *
+     * @return the header, or null if the file is not a WAV file or has no
+     *         format or data chunk
+     */
+    public static WavHeader read(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        byte[] chunk = new byte[12];
+        if (length < chunk.length) {
+            return null;
+        }
+        file.seek(0);
+        file.readFully(chunk);
+        WavHeader header = new WavHeader();
+        header.rf64 = WavWriter.hasTag(chunk, 0, "RF64");
+        if ((!header.rf64 && !WavWriter.hasTag(chunk, 0, "RIFF"))
+                || !WavWriter.hasTag(chunk, 8, "WAVE")) {
+            return null;
+        }
+        long position = 12;
+        long ds64DataSize = -1;
+        boolean hasFormat = false;
+        for (int i = 0; i < MAX_CHUNKS && position + 8 <= length; i++) {
+            file.seek(position);
+            file.readFully(chunk, 0, 8);
+            long size = WavWriter.getInt(chunk, 4) & 0xffffffffL;
+            long body = position + 8;
+            if (WavWriter.hasTag(chunk, 0, "data")) {
+                header.dataOffset = body;
+                if (size == 0xffffffffL && ds64DataSize >= 0) {
+                    size = ds64DataSize;
+                }
+                // 0 or too large in a file that was never closed
+                header.dataSize = size > 0 && body + size <= length ? size : length - body;
+                return hasFormat ? header : null;
+            } else if (WavWriter.hasTag(chunk, 0, "ds64") && size >= 16 && body + 16 <= length) {
+                byte[] ds64 = new byte[16];
+                file.readFully(ds64);
+                ds64DataSize = WavWriter.getLong(ds64, 8);
+            } else if (WavWriter.hasTag(chunk, 0, "fmt ") && size >= 16
+                    && body + 16 <= length) {
+                byte[] fmt = new byte[16];
+                file.readFully(fmt);
+                header.format = WavWriter.getShort(fmt, 0);
+                header.channels = WavWriter.getShort(fmt, 2);
+                header.sampleRate = WavWriter.getInt(fmt, 4);
+                header.bitsPerSample = WavWriter.getShort(fmt, 14);
+                hasFormat = true;
+            }
+            // chunks are padded to an even size
+            position = body + size + (size & 1);
+        }
+        return null;
+    }
+}
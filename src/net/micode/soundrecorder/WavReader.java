@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Streams the samples of a 16 bit mono WAV or RF64 file.
+ * Positions before the start and after the end of the file read as silence,
+ * so callers can run frames across the edges. Several readers can read the
+ * same file from different threads.
+ */
+public class WavReader {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mFile;
+
+    private final RandomAccessFile mIn;
+
+    private final int mSampleRate;
+
+    private final long mDataOffset;
+
+    private final long mSamples;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    private InputStream mStream;
+
+    private long mPosition;
+
+    /**
+     * @throws IOException if the file can't be read or is not a 16 bit mono
+     *             WAV file
+     */
+    public WavReader(File file) throws IOException {
+        mFile = file;
+        mIn = new RandomAccessFile(file, "r");
+        try {
+            WavHeader header = WavHeader.read(mIn);
+            if (header == null) {
+                throw new IOException("not a WAV file: " + file);
+            }
+            if (header.format != WavWriter.FORMAT_PCM || header.channels != 1
+                    || header.bitsPerSample != 16) {
+                throw new IOException("not a 16 bit mono WAV file: " + file);
+            }
+            mSampleRate = header.sampleRate;
+            if (mSampleRate <= 0) {
+                throw new IOException("bad sample rate in " + file);
+            }
+            mDataOffset = header.dataOffset;
+            mSamples = header.dataSize / 2;
+        } catch (IOException e) {
+            mIn.close();
+            throw e;
+        }
+        seek(0);
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * Returns the duration in milliseconds.
+     */
+    public long getDuration() {
+        return mSamples * 1000 / mSampleRate;
+    }
+
+    /**
+     * Moves to the given sample, which may lie outside the file.
+     */
+    public void seek(long position) throws IOException {
+        mPosition = position;
+        mIn.seek(mDataOffset + Math.min(Math.max(0, position), mSamples) * 2);
+        mStream = new BufferedInputStream(new FileInputStream(mIn.getFD()), BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the next samples as floats in the range -1 to 1.
+     */
+    public void read(float[] samples, int offset, int count) throws IOException {
+        int i = 0;
+        while (i < count && mPosition < 0) {
+            samples[offset + i++] = 0;
+            mPosition++;
+        }
+        while (i < count && mPosition < mSamples) {
+            int available = (int) Math.min(Math.min(count - i, mSamples - mPosition),
+                    BUFFER_SIZE / 2);
+            int bytes = available * 2;
+            int read = 0;
+            while (read < bytes) {
+                int n = mStream.read(mBuffer, read, bytes - read);
+                if (n < 0) {
+                    throw new IOException("unexpected end of " + mFile);
+                }
+                read += n;
+            }
+            for (int j = 0; j < available; j++) {
+                short sample = (short) ((mBuffer[j * 2] & 0xff) | mBuffer[j * 2 + 1] << 8);
+                samples[offset + i++] = sample / 32768f;
+            }
+            mPosition += available;
+        }
+        while (i < count) {
+            samples[offset + i++] = 0;
+            mPosition++;
+        }
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes 16 bit PCM or 8 bit mu-law into a WAV file through a FileChannel
+ * and a direct buffer. The sizes in the header are filled in when the file
+ * is closed, a file cut short by a crash is fixed by repair(). A large file
+ * reserves room for a ds64 chunk in a JUNK chunk and becomes RF64 if it
+ * grows past the 4 GB of RIFF.
+ */
+public class WavWriter {
+    public static final int HEADER_SIZE = 44;
+
+    // RIFF header, JUNK or ds64 chunk of 28 bytes, fmt chunk and data header
+    public static final int LARGE_HEADER_SIZE = 80;
+
+    public static final int FORMAT_PCM = 1;
+
+    public static final int FORMAT_MULAW = 7;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final long RIFF_LIMIT = 0xffffffffL;
+
+    private final RandomAccessFile mFile;
+
+    private final FileChannel mChannel;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final int mFormat;
+
+    private final int mSampleRate;
+
+    private final int mChannels;
+
+    private final boolean mLarge;
+
+    // bytes handed to the channel
+    private long mDataSize;
+
+    public WavWriter(File file, int sampleRate, int channels) throws IOException {
+        this(file, sampleRate, channels, FORMAT_PCM, false);
+    }
+
+    public WavWriter(File file, int sampleRate, int channels, int format) throws IOException {
+        this(file, sampleRate, channels, format, false);
+    }
+
+    /**
+     * @param format FORMAT_PCM for 16 bit samples or FORMAT_MULAW for 8 bit
+     * @param large whether the file may grow past 4 GB, otherwise the header
+     *            is the canonical 44 bytes
+     */
+    public WavWriter(File file, int sampleRate, int channels, int format, boolean large)
+            throws IOException {
+        mFormat = format;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mLarge = large;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        writeHeader();
+    }
+
+    /**
+     * Fills in a canonical 44 byte header of 16 bit PCM for the given data
+     * size.
+     */
+    static void writeHeader(byte[] header, int sampleRate, int channels, long dataSize) {
+        writeHeader(header, FORMAT_PCM, sampleRate, channels, dataSize);
+    }
+
+    static void writeHeader(byte[] header, int format, int sampleRate, int channels,
+            long dataSize) {
+        int data = (int) Math.min(dataSize, RIFF_LIMIT - 36);
+        putTag(header, 0, "RIFF");
+        putInt(header, 4, 36 + data);
+        putTag(header, 8, "WAVE");
+        putFormat(header, 12, format, sampleRate, channels);
+        putTag(header, 36, "data");
+        putInt(header, 40, data);
+    }
+
+    /**
+     * Fills in an 80 byte header, RIFF with a JUNK chunk up to 4 GB and RF64
+     * with a ds64 chunk in its place beyond.
+     */
+    static void writeLargeHeader(byte[] header, int format, int sampleRate, int channels,
+            long dataSize) {
+        long riffSize = LARGE_HEADER_SIZE - 8 + dataSize;
+        boolean rf64 = riffSize > RIFF_LIMIT;
+        putTag(header, 0, rf64 ? "RF64" : "RIFF");
+        putInt(header, 4, rf64 ? -1 : (int) riffSize);
+        putTag(header, 8, "WAVE");
+        putTag(header, 12, rf64 ? "ds64" : "JUNK");
+        putInt(header, 16, 28);
+        putLong(header, 20, rf64 ? riffSize : 0);
+        putLong(header, 28, rf64 ? dataSize : 0);
+        putLong(header, 36, rf64 ? dataSize / frameSize(format, channels) : 0);
+        putInt(header, 44, 0); // no table of other chunk sizes
+        putFormat(header, 48, format, sampleRate, channels);
+        putTag(header, 72, "data");
+        putInt(header, 76, rf64 ? -1 : (int) dataSize);
+    }
+
+    private static void putFormat(byte[] header, int offset, int format, int sampleRate,
+            int channels) {
+        int frameSize = frameSize(format, channels);
+        putTag(header, offset, "fmt ");
+        putInt(header, offset + 4, 16);
+        putShort(header, offset + 8, format);
+        putShort(header, offset + 10, channels);
+        putInt(header, offset + 12, sampleRate);
+        putInt(header, offset + 16, sampleRate * frameSize);
+        putShort(header, offset + 20, frameSize);
+        putShort(header, offset + 22, frameSize / channels * 8);
+    }
+
+    private static int frameSize(int format, int channels) {
+        return channels * (format == FORMAT_MULAW ? 1 : 2);
+    }
+
+    private void writeHeader() throws IOException {
+        byte[] header = new byte[mLarge ? LARGE_HEADER_SIZE : HEADER_SIZE];
+        if (mLarge) {
+            writeLargeHeader(header, mFormat, mSampleRate, mChannels, mDataSize);
+        } else {
+            writeHeader(header, mFormat, mSampleRate, mChannels, mDataSize);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    public long dataSize() {
+        return mDataSize + mBuffer.position();
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        long position = (mLarge ? LARGE_HEADER_SIZE : HEADER_SIZE) + mDataSize;
+        while (mBuffer.hasRemaining()) {
+            int written = mChannel.write(mBuffer, position);
+            position += written;
+            mDataSize += written;
+        }
+        mBuffer.clear();
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+            writeHeader();
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * Corrects the header sizes of a WAV file left behind by a crash.
+     *
+     * @return the duration of the file in milliseconds, or -1 if it is not a
+     *         WAV file written by this class
+     */
+    public static long repair(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            WavHeader header = WavHeader.read(raf);
+            if (header == null) {
+                return -1;
+            }
+            boolean large = header.dataOffset == LARGE_HEADER_SIZE;
+            int frameSize = frameSize(header.format, header.channels);
+            if ((!large && header.dataOffset != HEADER_SIZE) || header.sampleRate <= 0
+                    || header.channels <= 0
+                    || (header.format != FORMAT_PCM && header.format != FORMAT_MULAW)) {
+                return -1;
+            }
+            long dataSize = (raf.length() - header.dataOffset) / frameSize * frameSize;
+            raf.setLength(header.dataOffset + dataSize);
+            byte[] bytes = new byte[(int) header.dataOffset];
+            if (large) {
+                writeLargeHeader(bytes, header.format, header.sampleRate, header.channels,
+                        dataSize);
+            } else {
+                writeHeader(bytes, header.format, header.sampleRate, header.channels, dataSize);
+            }
+            raf.seek(0);
+            raf.write(bytes);
+            return dataSize / frameSize * 1000 / header.sampleRate;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void putTag(byte[] b, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            b[offset + i] = (byte) tag.charAt(i);
+        }
+    }
+
+    static boolean hasTag(byte[] b, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (b[offset + i] != (byte) tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) (value >> 16);
+        b[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        putInt(b, offset, (int) value);
+        putInt(b, offset + 4, (int) (value >> 32));
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >> 8);
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16
+                | (b[offset + 3] & 0xff) << 24;
+    }
+
+    static int getShort(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+    }
+
+    static long getLong(byte[] b, int offset) {
+        return (getInt(b, offset) & 0xffffffffL) | (long) getInt(b, offset + 4) << 32;
+    }
+}
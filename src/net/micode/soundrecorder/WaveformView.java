@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.soundrecorder;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Draws the waveform of a recording from its PeakIndex. The whole recording
+ * fits the width at zoom 1, higher zoom levels show a window around the play
+ * position.
+ */
+public class WaveformView extends View {
+    private static final String TAG = "WaveformView";
+
+    private static final int ZOOM_STEP = 4;
+
+    private static final int MAX_ZOOM = 256;
+
+    private PeakIndex mIndex;
+
+    private float mProgress;
+
+    private int mZoom = 1;
+
+    private Paint mPeakPaint;
+
+    private Paint mRmsPaint;
+
+    private Paint mCursorPaint;
+
+    private int[] mPeaks = new int[0];
+
+    private int[] mRms = new int[0];
+
+    private float[] mPeakLines = new float[0];
+
+    private float[] mRmsLines = new float[0];
+
+    private long mRenderedStart = -1;
+
+    private float mRenderedScale;
+
+    private int mLoggedZoom;
+
+    public WaveformView(Context context) {
+        super(context);
+        init();
+    }
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public WaveformView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+    private void init() {
+        mPeakPaint = new Paint();
+        mPeakPaint.setColor(Color.argb(0x7f, 0xff, 0xff, 0xff));
+        mRmsPaint = new Paint();
+        mRmsPaint.setColor(Color.WHITE);
+        mCursorPaint = new Paint();
+        mCursorPaint.setColor(Color.argb(0xff, 0xff, 0x80, 0x00));
+    }
+
+    public void setIndex(PeakIndex index) {
+        mIndex = index;
+        mZoom = 1;
+        mLoggedZoom = 0;
+        mRenderedStart = -1;
+        invalidate();
+    }
+
+    /**
+     * @param progress the play position, 0 - 1
+     */
+    public void setProgress(float progress) {
+        mProgress = progress;
+        invalidate();
+    }
+
+    /**
+     * Zooms in around the play position, wrapping back to the whole
+     * recording after the highest zoom.
+     */
+    public void zoomIn() {
+        mZoom = mZoom >= MAX_ZOOM ? 1 : mZoom * ZOOM_STEP;
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mRenderedStart = -1;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int width = getWidth();
+        int height = getHeight();
+        if (mIndex == null || mIndex.duration() == 0 || width == 0) {
+            return;
+        }
+
+        long duration = mIndex.duration();
+        float millisPerPixel = (float) duration / width / mZoom;
+        long visible = (long) (millisPerPixel * width);
+        long start = (long) (mProgress * duration) - visible / 2;
+        start = Math.max(0, Math.min(start, duration - visible));
+
+        if (mPeaks.length != width) {
+            mPeaks = new int[width];
+            mRms = new int[width];
+            mPeakLines = new float[width * 4];
+            mRmsLines = new float[width * 4];
+            mRenderedStart = -1;
+        }
+        if (start != mRenderedStart || millisPerPixel != mRenderedScale) {
+            long begin = System.nanoTime();
+            int level = mIndex.fill(start, millisPerPixel, mPeaks, mRms);
+            if (mZoom != mLoggedZoom) {
+                mLoggedZoom = mZoom;
+                Log.d(TAG, "rendered " + width + " columns at zoom " + mZoom + " from level "
+                        + level + " in " + ((System.nanoTime() - begin) / 1000) + " us");
+            }
+            mRenderedStart = start;
+            mRenderedScale = millisPerPixel;
+
+            float center = height / 2f;
+            float scale = center / 255f;
+            for (int x = 0; x < width; x++) {
+                mPeakLines[x * 4] = x;
+                mPeakLines[x * 4 + 1] = center - mPeaks[x] * scale;
+                mPeakLines[x * 4 + 2] = x;
+                mPeakLines[x * 4 + 3] = center + mPeaks[x] * scale;
+                mRmsLines[x * 4] = x;
+                mRmsLines[x * 4 + 1] = center - mRms[x] * scale;
+                mRmsLines[x * 4 + 2] = x;
+                mRmsLines[x * 4 + 3] = center + mRms[x] * scale;
+            }
+        }
+
+        canvas.drawLines(mPeakLines, 0, mPeakLines.length, mPeakPaint);
+        canvas.drawLines(mRmsLines, 0, mRmsLines.length, mRmsPaint);
+        float cursor = (mProgress * duration - start) / millisPerPixel;
+        canvas.drawLine(cursor, 0, cursor, height, mCursorPaint);
+    }
+}